@@ -38,6 +38,7 @@ import java.text.Normalizer;
 import java.text.Normalizer.Form;
 import java.time.Duration;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -68,6 +69,7 @@ import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.eclipse.jetty.server.handler.HandlerCollection;
 import org.eclipse.jetty.util.Jetty;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.h2.jdbcx.JdbcConnectionPool;
 import org.h2.mvstore.MVStoreException;
 import org.h2.tools.Shell;
@@ -90,7 +92,10 @@ import com.unascribed.partyflow.config.Config.StorageSection.StorageDriver;
 import com.unascribed.partyflow.data.QMeta;
 import com.unascribed.partyflow.handler.FilesHandler;
 import com.unascribed.partyflow.handler.api.v1.LoginApi;
+import com.unascribed.partyflow.handler.api.v1.ReleaseDownloadsApi;
+import com.unascribed.partyflow.handler.api.v1.ReleaseSegmentsApi;
 import com.unascribed.partyflow.handler.api.v1.ReleasesApi;
+import com.unascribed.partyflow.handler.api.v1.SchedulerApi;
 import com.unascribed.partyflow.handler.api.v1.ViewReleaseApi;
 import com.unascribed.partyflow.handler.api.v1.WhoAmIApi;
 import com.unascribed.partyflow.handler.frontend.AdminHandler;
@@ -110,6 +115,7 @@ import com.unascribed.partyflow.handler.frontend.release.ViewReleaseHandler;
 import com.unascribed.partyflow.handler.frontend.session.LoginHandler;
 import com.unascribed.partyflow.handler.frontend.session.LogoutHandler;
 import com.unascribed.partyflow.handler.frontend.transcode.TranscodeReleaseHandler;
+import com.unascribed.partyflow.handler.frontend.transcode.TranscodeReleaseSegmentHandler;
 import com.unascribed.partyflow.handler.frontend.transcode.TranscodeReleaseZipHandler;
 import com.unascribed.partyflow.handler.frontend.transcode.TranscodeTrackHandler;
 import com.unascribed.partyflow.handler.frontend.release.UnpublishReleaseHandler;
@@ -119,24 +125,28 @@ import com.unascribed.partyflow.handler.util.PathResolvingHandler;
 import com.unascribed.partyflow.handler.util.SimpleHandler;
 import com.unascribed.partyflow.jclouds.Java11HttpClientCommandExecutorServiceModule;
 import com.unascribed.partyflow.logic.AACSupport;
+import com.unascribed.partyflow.logic.AlbumRegenerator;
 import com.unascribed.partyflow.logic.CSRF;
+import com.unascribed.partyflow.logic.CachingBlobStore;
+import com.unascribed.partyflow.logic.DownloadRecorder;
 import com.unascribed.partyflow.logic.SessionHelper;
 import com.unascribed.partyflow.logic.SpecialTrack;
 import com.unascribed.partyflow.logic.Storage;
+import com.unascribed.partyflow.logic.TranscodeIndex;
+import com.unascribed.partyflow.logic.TranscodeJobs;
+import com.unascribed.partyflow.logic.TranscodeLimiter;
 import com.unascribed.partyflow.logic.Transcoder;
 import com.unascribed.partyflow.logic.URLs;
 import com.unascribed.partyflow.logic.UserRole;
 import com.unascribed.partyflow.util.Commands;
 import com.unascribed.partyflow.util.Dankson;
 import com.unascribed.partyflow.util.Services;
+import com.unascribed.partyflow.util.VirtualThreads;
 import com.google.common.base.Charsets;
 import com.google.common.base.Splitter;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
-import com.google.common.hash.BloomFilter;
 import com.google.common.io.BaseEncoding;
-import com.google.common.io.ByteStreams;
-import com.google.common.io.CountingOutputStream;
 import com.google.common.io.Files;
 import com.google.common.io.Resources;
 import com.google.common.net.UrlEscapers;
@@ -203,19 +213,6 @@ public class Partyflow {
 		AsyncSimpleLog.ban(Pattern.compile("^org\\.jclouds\\.(http|rest)\\.internal"));
 		log.info("Partyflow v{} starting up...", Version.FULL);
 		
-		if (config.database.expectedTraffic > 0) {
-			var counter = new CountingOutputStream(ByteStreams.nullOutputStream());
-			try {
-				BloomFilter.create((t, s) -> {}, config.database.expectedTraffic, 0.1).writeTo(counter);
-			} catch (IOException e2) {
-				throw new AssertionError(e2);
-			}
-			log.debug("Expected bloom filter size: {} bytes", counter.getCount());
-			if (counter.getCount() > 2048) {
-				log.warn("The current value of expectedTraffic ({}) will result in a large Bloom filter ({}K)", config.database.expectedTraffic, counter.getCount()/1024);
-			}
-		}
-		
 		if (config.programs.runWineserver) {
 			log.debug("Starting the wineserver");
 			try {
@@ -399,6 +396,10 @@ public class Partyflow {
 					.build(BlobStoreContext.class)
 					.getBlobStore();
 			storageContainer = c.bucket;
+			if (config.storage.localCacheSize > 0) {
+				storage = new CachingBlobStore(storage, new File(config.storage.localCacheDir).getAbsoluteFile(),
+						config.storage.localCacheSize*1024*1024);
+			}
 		} else {
 			log.error("Unknown storage driver");
 			System.exit(1);
@@ -426,7 +427,15 @@ public class Partyflow {
 		} else {
 			displayBind = config.http.bind;
 		}
-		var server = new Server();
+		var threadPool = new QueuedThreadPool();
+		threadPool.setName("Jetty");
+		VirtualThreads.check();
+		var virtualExecutor = VirtualThreads.executor("Jetty Request");
+		if (virtualExecutor != null) {
+			log.info("Handling requests on virtual threads");
+			threadPool.setVirtualThreadsExecutor(virtualExecutor);
+		}
+		var server = new Server(threadPool);
 		var cfg = new HttpConfiguration();
 		// we handle this ourselves
 		cfg.setSendServerVersion(false);
@@ -463,6 +472,7 @@ public class Partyflow {
 				
 				handler("track/", new TrackHandler()),
 				handler("transcode/release-zip/{}", new TranscodeReleaseZipHandler()),
+				handler("transcode/release-segment/{}", new TranscodeReleaseSegmentHandler()),
 				handler("transcode/release/{}", new TranscodeReleaseHandler()),
 				handler("transcode/track/{}", new TranscodeTrackHandler()),
 				handler("download/", new DownloadHandler()),
@@ -471,8 +481,11 @@ public class Partyflow {
 				
 				handler("api/v1/login", new LoginApi()),
 				handler("api/v1/whoami", new WhoAmIApi()),
+				handler("api/v1/release/{}/segments", new ReleaseSegmentsApi()),
+				handler("api/v1/release/{}/downloads", new ReleaseDownloadsApi()),
 				handler("api/v1/release/{}", new ViewReleaseApi()),
-				handler("api/v1/releases", new ReleasesApi())
+				handler("api/v1/releases", new ReleasesApi()),
+				handler("api/v1/scheduler", new SchedulerApi())
 			);
 		server.setHandler(hc);
 		server.setErrorHandler(new PartyflowErrorHandler());
@@ -506,10 +519,22 @@ public class Partyflow {
 					log.warn("Failed to check for the existence of admin users", e);
 				}
 				
-				try (var rs = s.executeQuery("SELECT release_id, title FROM releases WHERE concat_master IS NULL;")) {
+				try (var rs = s.executeQuery("SELECT release_id, title, concat_master FROM releases WHERE concat_master IS NULL OR concat_master LIKE 'concats/%';")) {
+					Map<Long, String> stored = new LinkedHashMap<>();
 					while (rs.next()) {
-						log.info("Processing for release {} was interrupted, restarting", rs.getString("title"));
-						AddTrackHandler.regenerateAlbumFile(rs.getLong("release_id"));
+						long releaseId = rs.getLong("release_id");
+						String concatMaster = rs.getString("concat_master");
+						if (concatMaster == null) {
+							log.info("Processing for release {} was interrupted, restarting", rs.getString("title"));
+							AlbumRegenerator.request(releaseId);
+						} else {
+							log.debug("Replacing stored album file for release {} with a virtual one", rs.getString("title"));
+							stored.put(releaseId, concatMaster);
+						}
+					}
+					if (!stored.isEmpty()) {
+						// one at a time; they're quick, and there may be a lot of them
+						Services.genericPool.execute(() -> stored.forEach(AlbumRegenerator::virtualize));
 					}
 				} catch (SQLException e) {
 					log.warn("Failed to check for unprocessed releases", e);
@@ -519,9 +544,14 @@ public class Partyflow {
 			log.warn("Failed to perform startup checks", e);
 		}
 
+		// loaded before anything gets a chance to prune
+		TranscodeIndex.start();
+		DownloadRecorder.start();
 		Services.cron.scheduleWithFixedDelay(SessionHelper::cleanup, 0, 1, TimeUnit.HOURS);
 		Services.cron.scheduleWithFixedDelay(CSRF::cleanup, 15, 15, TimeUnit.MINUTES);
-		Services.cron.scheduleWithFixedDelay(Transcoder::cleanup, 0, 1, config.storage.pruneTime.toHours() <= 0 ? TimeUnit.MINUTES : TimeUnit.HOURS);
+		Services.cron.scheduleWithFixedDelay(Transcoder::cleanup, 0, 1, !config.storage.pruneTime.isZero() && config.storage.pruneTime.toHours() <= 0 ? TimeUnit.MINUTES : TimeUnit.HOURS);
+		TranscodeLimiter.start();
+		TranscodeJobs.start();
 		
 		if (Boolean.getBoolean("partyflow.sqlShell")) {
 			try (Connection c = sql.getConnection()) {
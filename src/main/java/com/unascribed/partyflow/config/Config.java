@@ -23,6 +23,7 @@ import java.time.Duration;
 import java.util.Map;
 
 import com.unascribed.asyncsimplelog.AsyncSimpleLog.LogLevel;
+import com.unascribed.partyflow.util.RingBufferTee.SlowBranchPolicy;
 
 public final class Config {
 
@@ -35,6 +36,7 @@ public final class Config {
 		public boolean cacheTemplates;
 		public String publicUrl;
 		public boolean trustProxy;
+		public boolean virtualThreads;
 	}
 
 	public LoggerSection logger;
@@ -63,6 +65,7 @@ public final class Config {
 		public DatabaseDriver driver;
 		
 		public int expectedTraffic;
+		public boolean downloadHistory;
 
 		public H2Section h2;
 		public static final class H2Section {
@@ -114,7 +117,14 @@ public final class Config {
 		}
 		
 		public Duration pruneTime;
+		public long transcodeBudget;
 		public String publicUrlPattern;
+		public String localCacheDir;
+		public long localCacheSize;
+		public boolean writeBack;
+		public boolean multiNode;
+		public int partSize;
+		public int uploadConcurrency;
 	}
 
 	public ProgramsSection programs;
@@ -122,6 +132,12 @@ public final class Config {
 		public String[] ffmpeg;
 		public String[] magickConvert;
 		public int maxTranscodes;
+		public boolean adaptiveTranscodes;
+		public int minTranscodes;
+		public Duration transcodeTimeout;
+		public int teeBuffer;
+		public SlowBranchPolicy slowCachePolicy;
+		public double prewarmBudget;
 		
 		public boolean runWineserver;
 		public String[] wineserver;
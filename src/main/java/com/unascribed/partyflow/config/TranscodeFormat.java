@@ -19,6 +19,7 @@
 
 package com.unascribed.partyflow.config;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -59,8 +60,8 @@ public record TranscodeFormat(
 		String name, String subtitle, Usage usage, String displayName, String description, String icon, int ytdlPriority,
 		String fileExtension, String mimeType, ImmutableList<String> args,
 		String altcmd, ImmutableList<String> altcmdargs,
-		BooleanSupplier availableWhen, Predicate<UserData> suggestWhen, boolean direct, boolean cache, boolean lossless, boolean uncompressed,
-		ToDoubleFunction<TrackData> sizeEstimator,
+		BooleanSupplier availableWhen, Predicate<UserData> suggestWhen, boolean direct, boolean cache, Prewarm prewarm, boolean lossless, boolean uncompressed,
+		boolean segmented, ToDoubleFunction<TrackData> sizeEstimator,
 		ImmutableMap<String, Function<ReplayGainData, String>> replaygain,
 		ImmutableList<Shortcut> shortcuts
 	) {
@@ -140,8 +141,42 @@ public record TranscodeFormat(
 		}
 	}
 
+	public enum Prewarm {
+		/**
+		 * Only transcode when someone asks for it.
+		 */
+		NEVER,
+		/**
+		 * Transcode ahead of time if this is one of the most requested formats of its usage.
+		 */
+		POPULAR,
+		/**
+		 * Always transcode ahead of time.
+		 */
+		ALWAYS,
+		;
+		public static Prewarm defaultFor(Usage usage) {
+			return switch (usage) {
+				case STREAM -> ALWAYS;
+				case DOWNLOAD -> POPULAR;
+				case STREAM_LOW -> NEVER;
+			};
+		}
+	}
+
+	/**
+	 * A way to produce a format from an existing transcode to another format, usually by
+	 * remuxing. {@code source} is only meant to be used for its name; it won't have any
+	 * shortcuts of its own.
+	 */
 	public record Shortcut(TranscodeFormat source, ImmutableList<String> args) {}
 	
+	private TranscodeFormat withShortcuts(ImmutableList<Shortcut> shortcuts) {
+		return new TranscodeFormat(name, subtitle, usage, displayName, description, icon, ytdlPriority, fileExtension, mimeType, args,
+				altcmd, altcmdargs, availableWhen, suggestWhen, direct, cache, prewarm, lossless, uncompressed, segmented, sizeEstimator,
+				replaygain, shortcuts);
+	}
+	
 	public static void load(JsonObject obj, JsonObject addn) {
 		var engine = new Engine(new JexlBuilder()
 				.strict(true)
@@ -160,9 +195,15 @@ public record TranscodeFormat(
 		var availableWhenCtx = new MapContext(new HashMap<>(defs.row("availableWhen")));
 		availableWhenCtx.set("config", Partyflow.config);
 		ImmutableList.Builder<TranscodeFormat> out = ImmutableList.builder();
-		scanFormats(obj, engine, defs, mapDefs, availableWhenCtx, out);
-		if (addn != null) scanFormats(addn, engine, defs, mapDefs, availableWhenCtx, out);
-		formats = out.build();
+		Map<String, JsonObject> rawShortcuts = new HashMap<>();
+		scanFormats(obj, engine, defs, mapDefs, availableWhenCtx, out, rawShortcuts);
+		if (addn != null) scanFormats(addn, engine, defs, mapDefs, availableWhenCtx, out, rawShortcuts);
+		// shortcuts refer to other formats, so can only be resolved once they all exist
+		var firstPass = out.build();
+		var firstPassByName = firstPass.stream().collect(ImmutableMap.toImmutableMap(TranscodeFormat::name, f -> f));
+		formats = firstPass.stream()
+				.map(tf -> rawShortcuts.containsKey(tf.name()) ? tf.withShortcuts(resolveShortcuts(tf, rawShortcuts.get(tf.name()), firstPassByName)) : tf)
+				.collect(ImmutableList.toImmutableList());
 		var formatsByPublicNameBldr = ImmutableMultimap.<String, TranscodeFormat>builder();
 		formats.stream()
 			.map(tf -> Map.entry(tf.publicName(), tf))
@@ -188,7 +229,62 @@ public record TranscodeFormat(
 		}
 	}
 	
-	private static void scanFormats(JsonObject obj, Engine engine, Table<String, String, JexlExpression> defs, Table<String, String, Map<String, JexlExpression>> mapDefs, MapContext availableWhenCtx, ImmutableList.Builder<TranscodeFormat> out) {
+	private static ImmutableList<Shortcut> resolveShortcuts(TranscodeFormat target, JsonObject raw, Map<String, TranscodeFormat> formats) {
+		var out = ImmutableList.<Shortcut>builder();
+		for (var en : raw.entrySet()) {
+			String srcName = en.getKey();
+			var src = formats.get(srcName);
+			if (src == null) {
+				log.warn("Ignoring shortcut for {} from unknown format {}", target.name(), srcName);
+				continue;
+			}
+			if (src == target) {
+				log.warn("Ignoring shortcut for {} from itself", target.name());
+				continue;
+			}
+			if (!src.cache()) {
+				log.warn("Ignoring shortcut for {} from {}, as {} is never cached", target.name(), srcName, srcName);
+				continue;
+			}
+			if (target.lossless() && !src.lossless()) {
+				log.warn("Ignoring shortcut for lossless format {} from lossy format {}", target.name(), srcName);
+				continue;
+			}
+			if (!(en.getValue() instanceof JsonArray arr) || arr.isEmpty()) {
+				log.warn("Ignoring shortcut for {} from {}, as it has no arguments", target.name(), srcName);
+				continue;
+			}
+			var args = arr.stream()
+					.map(ele -> ((JsonPrimitive)ele).asString())
+					.collect(ImmutableList.toImmutableList());
+			if (!target.lossless() && args.contains("copy")
+					&& (src.args() == null || target.args() == null || !codecArgs(src.args()).equals(codecArgs(target.args())))) {
+				log.warn("Ignoring shortcut for {} from {}, as copying from it wouldn't match {}'s encoding parameters", target.name(), srcName, target.name());
+				continue;
+			}
+			out.add(new Shortcut(src, args));
+		}
+		return out.build();
+	}
+	
+	/**
+	 * @return the given FFmpeg arguments without the container format, i.e. just what decides
+	 * 		how the audio is encoded
+	 */
+	private static List<String> codecArgs(List<String> args) {
+		var out = new ArrayList<String>(args.size());
+		for (int i = 0; i < args.size(); i++) {
+			if (args.get(i).equals("-f") && i+1 < args.size()) {
+				i++;
+				continue;
+			}
+			out.add(args.get(i));
+		}
+		return out;
+	}
+	
+	private static void scanFormats(JsonObject obj, Engine engine, Table<String, String, JexlExpression> defs, Table<String, String, Map<String, JexlExpression>> mapDefs, MapContext availableWhenCtx, ImmutableList.Builder<TranscodeFormat> out,
+			Map<String, JsonObject> rawShortcuts) {
 		for (Usage usage : Usage.values()) {
 			var child = obj.getObject(usage.name().toLowerCase(Locale.ROOT));
 			if (child == null) continue;
@@ -204,6 +300,19 @@ public record TranscodeFormat(
 				String type = jo.get(String.class, "type");
 				boolean direct = jo.getBoolean("direct", false);
 				boolean cache = jo.getBoolean("cache", true);
+				Prewarm prewarm = Prewarm.defaultFor(usage);
+				if (jo.containsKey("prewarm")) {
+					String prewarmStr = jo.get(String.class, "prewarm");
+					try {
+						prewarm = Prewarm.valueOf(prewarmStr.toUpperCase(Locale.ROOT));
+					} catch (IllegalArgumentException | NullPointerException e) {
+						log.warn("Unknown prewarm policy {} for format {}, using {}", prewarmStr, name, prewarm.name().toLowerCase(Locale.ROOT));
+					}
+				}
+				if (!cache) {
+					// nowhere to put the result
+					prewarm = Prewarm.NEVER;
+				}
 				ImmutableList<String> args = jo.get(JsonArray.class, "args").stream()
 						.map(ele -> ((JsonPrimitive)ele).asString())
 						.collect(ImmutableList.toImmutableList());
@@ -266,8 +375,17 @@ public record TranscodeFormat(
 
 				boolean lossless = jo.getBoolean("lossless", false);
 				boolean uncompressed = jo.getBoolean("uncompressed", false);
+				boolean segmented = jo.getBoolean("segmented", false);
+				if (segmented && altcmd != null) {
+					log.warn("Format {} can't be segmented, as it uses an altcmd", name);
+					segmented = false;
+				}
+				
+				if (jo.getObject("shortcuts") != null) {
+					rawShortcuts.put(name, jo.getObject("shortcuts"));
+				}
 				
-				out.add(new TranscodeFormat(name, subtitle, usage, displayName, description, icon, ytdlPriority, ext, type, args, altcmd, altcmdargs, availableWhen, suggestWhen, direct, cache, lossless, uncompressed, sizeEstimate, replaygain, ImmutableList.of()));
+				out.add(new TranscodeFormat(name, subtitle, usage, displayName, description, icon, ytdlPriority, ext, type, args, altcmd, altcmdargs, availableWhen, suggestWhen, direct, cache, prewarm, lossless, uncompressed, segmented, sizeEstimate, replaygain, ImmutableList.of()));
 			}
 		}
 	}
@@ -337,6 +455,7 @@ public record TranscodeFormat(
 					var obj = new com.google.gson.JsonObject();
 					obj.addProperty("name", tf.publicName());
 					obj.addProperty("mime", tf.mimeType());
+					obj.addProperty("segmented", tf.segmented());
 					return obj;
 				}).forEach(arr::add);
 		return arr;
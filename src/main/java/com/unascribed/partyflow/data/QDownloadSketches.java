@@ -0,0 +1,132 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.data;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.unascribed.partyflow.data.util.QBase;
+import com.unascribed.partyflow.util.HyperLogLog;
+
+import com.google.common.base.Strings;
+
+/**
+ * Unique downloader sketches for each release, over all time and optionally per day and per
+ * week. Periods are named so that sorting them as strings sorts them by time within each kind:
+ * {@code all}, {@code d:2024-03-09}, {@code w:2024-W10}.
+ */
+public class QDownloadSketches extends QBase {
+
+	private static final Logger log = LoggerFactory.getLogger(QDownloadSketches.class);
+
+	public static final String ALL = "all";
+
+	private static final int MAX_ATTEMPTS = 5;
+
+	/**
+	 * Merge the given sketch into the stored one, creating it if needed. Other nodes may be
+	 * doing the same thing at the same time, so the write only goes through if nobody else has
+	 * written in between; otherwise we read their version and merge into that instead.
+	 * @return the merged sketch
+	 */
+	public static HyperLogLog merge(long releaseId, String period, HyperLogLog sketch) throws SQLException {
+		for (int i = 0; i < MAX_ATTEMPTS; i++) {
+			byte[] data = null;
+			int version = 0;
+			try (var rs = select("SELECT `sketch`, `version` FROM `download_sketches` WHERE `release_id` = ? AND `period` = ?;",
+					releaseId, period)) {
+				if (rs.first()) {
+					data = rs.getBytes("sketch");
+					version = rs.getInt("version");
+				}
+			}
+			if (data == null) {
+				if (tryInsert(releaseId, period, sketch)) return sketch;
+				continue;
+			}
+			var merged = decode(data, releaseId, period);
+			merged.merge(sketch);
+			if (update("UPDATE `download_sketches` SET `sketch` = ?, `version` = `version` + 1, `updated_at` = NOW() "
+					+ "WHERE `release_id` = ? AND `period` = ? AND `version` = ?;",
+					merged.toBytes(), releaseId, period, version) > 0) {
+				return merged;
+			}
+		}
+		throw new SQLException("Gave up merging downloads sketch "+period+" for release "+releaseId+" after "+MAX_ATTEMPTS+" conflicting writes");
+	}
+
+	/**
+	 * @return the stored sketches for the given release among the given periods; missing
+	 * 		periods are left out
+	 */
+	public static Map<String, HyperLogLog> get(long releaseId, Collection<String> periods) throws SQLException {
+		Map<String, HyperLogLog> out = new HashMap<>();
+		if (periods.isEmpty()) return out;
+		var args = new Object[periods.size()+1];
+		args[0] = releaseId;
+		int i = 1;
+		for (var p : periods) args[i++] = p;
+		try (var rs = select("SELECT `period`, `sketch` FROM `download_sketches` "
+				+ "WHERE `release_id` = ? AND `period` IN (?"+Strings.repeat(", ?", periods.size()-1)+");", args)) {
+			while (rs.next()) {
+				var period = rs.getString("period");
+				out.put(period, decode(rs.getBytes("sketch"), releaseId, period));
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Delete the sketches of the given kind (the part of the period before the colon) for
+	 * periods that sort before the given one.
+	 */
+	public static int prune(String kind, String before) throws SQLException {
+		return update("DELETE FROM `download_sketches` WHERE `period` LIKE ? AND `period` < ?;",
+				kind+":%", before);
+	}
+
+	private static boolean tryInsert(long releaseId, String period, HyperLogLog sketch) throws SQLException {
+		try {
+			update("INSERT INTO `download_sketches` (`release_id`, `period`, `sketch`, `version`, `updated_at`) "
+					+ "VALUES (?, ?, ?, 0, NOW());",
+					releaseId, period, sketch.toBytes());
+			return true;
+		} catch (SQLException e) {
+			// integrity constraint violation; someone else inserted it first
+			if (e.getSQLState() != null && e.getSQLState().startsWith("23")) return false;
+			throw e;
+		}
+	}
+
+	private static HyperLogLog decode(byte[] data, long releaseId, String period) {
+		try {
+			return HyperLogLog.fromBytes(data);
+		} catch (IllegalArgumentException e) {
+			log.warn("Discarding unreadable downloads sketch {} for release {}", period, releaseId, e);
+			return new HyperLogLog();
+		}
+	}
+
+}
@@ -19,34 +19,26 @@
 
 package com.unascribed.partyflow.data;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.net.InetAddress;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.OptionalInt;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import com.unascribed.partyflow.Partyflow;
 import com.unascribed.partyflow.data.util.Artful;
 import com.unascribed.partyflow.data.util.QBase;
 
-import com.google.common.hash.BloomFilter;
-import com.google.common.hash.PrimitiveSink;
+import com.google.common.base.Strings;
 
 import com.unascribed.partyflow.logic.SessionHelper.Session;
 import com.unascribed.partyflow.util.UncheckedSQLException;
-import com.unascribed.partyflow.util.Yap;
 
 public class QReleases extends QBase {
 	
-	private static final Logger log = LoggerFactory.getLogger(QReleases.class);
-	
 	public record Release(
 			String slug, long userId, String title, String subtitle, String description,
 			boolean published, @SubstNull("NOW()") Date createdAt, @SubstNull("NOW()") Date lastUpdated) {}
@@ -122,63 +114,58 @@ public class QReleases extends QBase {
 		return get(s, "", "", " ORDER BY `created_at` DESC LIMIT 5");
 	}
 	
-	public static void maybeRecordDownload(String slug, InetAddress addr) throws SQLException {
-		_maybeRecordDownload("slug", slug, addr);
-	}
-	
-
-	public static void maybeRecordDownload(long releaseId, InetAddress addr) throws SQLException {
-		_maybeRecordDownload("release_id", releaseId, addr);
+	/**
+	 * @return the slugs of the releases that exist out of those given by ID or by slug, by ID
+	 */
+	public static Map<Long, String> resolve(Collection<Long> ids, Collection<String> slugs) throws SQLException {
+		Map<Long, String> out = new HashMap<>();
+		if (ids.isEmpty() && slugs.isEmpty()) return out;
+		StringBuilder where = new StringBuilder();
+		if (!ids.isEmpty()) where.append("`release_id` IN (?"+Strings.repeat(", ?", ids.size()-1)+")");
+		if (!slugs.isEmpty()) where.append((where.length() > 0 ? " OR " : "")+"`slug` IN (?"+Strings.repeat(", ?", slugs.size()-1)+")");
+		List<Object> args = new ArrayList<>(ids);
+		args.addAll(slugs);
+		try (var rs = select("SELECT `release_id`, `slug` FROM `releases` WHERE "+where+";", args.toArray())) {
+			while (rs.next()) {
+				out.put(rs.getLong("release_id"), rs.getString("slug"));
+			}
+		}
+		return out;
 	}
 	
-
-	private static void _maybeRecordDownload(String col, Object param, InetAddress addr) throws SQLException {
-		if (Partyflow.config.database.expectedTraffic == 0) {
-			update("UPDATE `releases` (`downloads`) VALUES (`downloads` + 1);");
-			return;
-		}
-		// uses a bloom filter for privacy
-		if (addr.isLoopbackAddress() || addr.isLinkLocalAddress()) {
-			Yap.BAD_PROXY.warn();
-		}
-		try (var rs = select("SELECT `dl_bloom` FROM `releases` WHERE `"+col+"` = ?;", param)) {
-			if (rs.first()) {
-				byte[] data = rs.getBytes("dl_bloom");
-				BloomFilter<InetAddress> filter;
-				if (data != null) {
-					filter = BloomFilter.readFrom(new ByteArrayInputStream(data), QReleases::inetFunnel);
-				} else {
-					filter = BloomFilter.create(QReleases::inetFunnel, Partyflow.config.database.expectedTraffic);
-				}
-				if (filter.expectedFpp() > 0.4) {
-					boolean needsReplacement;
-					try {
-						needsReplacement = filter.approximateElementCount() < Partyflow.config.database.expectedTraffic;
-					} catch (ArithmeticException e) {
-						// when fully saturated, approximateElementCount throws `ArithmeticException: input is infinite or NaN`
-						needsReplacement = true;
-					}
-					if (needsReplacement) {
-						log.debug("Reallocating saturated downloads filter for {} {}", col, param);
-						filter = BloomFilter.create(QReleases::inetFunnel, Partyflow.config.database.expectedTraffic);
-					} else {
-						Yap.SATURATED_FILTER.warn(Partyflow.config.database.expectedTraffic);
-					}
-				}
-				if (filter.put(addr)) {
-					var baos = new ByteArrayOutputStream();
-					filter.writeTo(baos);
-					update("UPDATE `releases` SET `downloads` = `downloads` + 1, `dl_bloom` = ? WHERE `"+col+"` = ?;",
-							baos.toByteArray(), param);
-				}
+	/**
+	 * Add to the download counts of releases, without regard to who downloaded them.
+	 */
+	public static void addDownloads(Map<Long, Integer> counts) throws SQLException {
+		if (counts.isEmpty()) return;
+		try (var c = conn();
+				var ps = c.prepareStatement("UPDATE `releases` SET `downloads` = `downloads` + ?, "
+						+ "`legacy_downloads` = `legacy_downloads` + ? WHERE `release_id` = ?;")) {
+			for (var en : counts.entrySet()) {
+				ps.setInt(1, en.getValue());
+				ps.setInt(2, en.getValue());
+				ps.setLong(3, en.getKey());
+				ps.addBatch();
 			}
-		} catch (IOException e) {
-			throw new SQLException(e);
+			ps.executeBatch();
 		}
 	}
 	
-	private static void inetFunnel(InetAddress a, PrimitiveSink into) {
-		into.putBytes(a.getAddress());
+	/**
+	 * Update the download counts of releases from their estimated unique downloaders. Anything
+	 * counted before unique downloaders were tracked, or while they weren't, is kept on top.
+	 */
+	public static void setUniqueDownloads(Map<Long, Long> uniques) throws SQLException {
+		if (uniques.isEmpty()) return;
+		try (var c = conn();
+				var ps = c.prepareStatement("UPDATE `releases` SET `downloads` = `legacy_downloads` + ? WHERE `release_id` = ?;")) {
+			for (var en : uniques.entrySet()) {
+				ps.setLong(1, en.getValue());
+				ps.setLong(2, en.getKey());
+				ps.addBatch();
+			}
+			ps.executeBatch();
+		}
 	}
 
 }
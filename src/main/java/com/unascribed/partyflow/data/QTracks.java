@@ -20,6 +20,7 @@
 package com.unascribed.partyflow.data;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.OptionalInt;
 
@@ -42,13 +43,48 @@ public class QTracks extends QBase {
 		String trackNumberStr() { return trackNumber.isPresent() ? trackNumber.getAsInt()+"." : ""; }
 	}
 	
+	/**
+	 * @param histogram a serialized {@link com.unascribed.partyflow.util.audio.LoudnessHistogram},
+	 * 		or null for tracks ingested before they were kept
+	 */
+	/**
+	 * @param duration in samples
+	 */
+	public record TrackMaster(String master, long duration) {}
+	
+	public record TrackLoudness(long trackId, String master, byte[] histogram, int peak) {}
+	
 	private static final String COLUMNS = columnsForRecord("tracks", Track.class);
 	
 	public static List<Track> get(long releaseId) throws SQLException {
 		try (var stream = unpack(Track.class, select("SELECT "+COLUMNS+" FROM `tracks` "
-						+ "WHERE `release_id` = ? ORDER BY `track_number` ASC;", releaseId))) {
+						+ "WHERE `release_id` = ? ORDER BY `track_number` ASC, `track_id` ASC;", releaseId))) {
+			return stream.toList();
+		}
+	}
+	
+	/**
+	 * @return the masters of every track in a release, in the same order as {@link #get}
+	 */
+	public static List<TrackMaster> getMasters(long releaseId) throws SQLException {
+		try (var stream = unpack(TrackMaster.class, select("SELECT `master`, `duration` FROM `tracks` "
+						+ "WHERE `release_id` = ? ORDER BY `track_number` ASC, `track_id` ASC;", releaseId))) {
 			return stream.toList();
 		}
 	}
+	
+	public static List<TrackLoudness> getLoudness(long releaseId) throws SQLException {
+		List<TrackLoudness> out = new ArrayList<>();
+		try (var rs = select("SELECT `track_id`, `master`, `loudness_histogram`, `peak` FROM `tracks` WHERE `release_id` = ?;", releaseId)) {
+			while (rs.next()) {
+				out.add(new TrackLoudness(rs.getLong("track_id"), rs.getString("master"), rs.getBytes("loudness_histogram"), rs.getInt("peak")));
+			}
+		}
+		return out;
+	}
+	
+	public static void setLoudnessHistogram(long trackId, byte[] histogram) throws SQLException {
+		update("UPDATE `tracks` SET `loudness_histogram` = ? WHERE `track_id` = ?;", histogram, trackId);
+	}
 
 }
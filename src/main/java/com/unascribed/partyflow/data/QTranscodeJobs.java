@@ -0,0 +1,186 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.data;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import com.unascribed.partyflow.config.TranscodeFormat;
+import com.unascribed.partyflow.data.QTranscodes.TranscodeSource;
+import com.unascribed.partyflow.data.util.QBase;
+import com.unascribed.partyflow.util.UncheckedSQLException;
+
+public class QTranscodeJobs extends QBase {
+
+	/**
+	 * Stored by ordinal. Don't reorder.
+	 */
+	public enum JobState {
+		QUEUED,
+		RUNNING,
+		FAILED,
+		;
+		public int id() { return ordinal(); }
+	}
+
+	public record Job(long jobId, String master, String format, String kind, String slug,
+			Long trackId, Long releaseId, int state, int priority, int attempts) {}
+
+	private static final String COLUMNS = columnsForRecord("transcode_jobs", Job.class);
+
+	private static final int QUEUED = JobState.QUEUED.id();
+	private static final int RUNNING = JobState.RUNNING.id();
+	private static final int FAILED = JobState.FAILED.id();
+
+	/**
+	 * Record that a transcode should be performed eventually. If a job already exists for this
+	 * master and format, its priority is raised to at least the given priority, and if it had
+	 * failed it is given a fresh set of attempts.
+	 */
+	public static void enqueue(TranscodeSource src, TranscodeFormat format, int priority) throws SQLException {
+		if (tryInsert(src, format, QUEUED, priority, null, null)) return;
+		update("UPDATE `transcode_jobs` SET "
+					+ "`priority` = CASE WHEN `priority` < ? THEN ? ELSE `priority` END, "
+					+ "`attempts` = CASE WHEN `state` = ? THEN 0 ELSE `attempts` END, "
+					+ "`lease_expires` = CASE WHEN `state` = ? THEN NULL ELSE `lease_expires` END, "
+					+ "`state` = CASE WHEN `state` = ? THEN ? ELSE `state` END, "
+					+ "`updated_at` = NOW() "
+				+ "WHERE `master` = ? AND `format` = ?;",
+				priority, priority, FAILED, FAILED, FAILED, QUEUED, src.master(), format.name());
+	}
+
+	/**
+	 * Attempt to take the lease on a job right now, creating it if needed. Succeeds unless
+	 * someone other than the given owner holds a live lease on it; the caller is responsible for
+	 * not racing itself. Ignores retry backoff, as someone is waiting.
+	 * @return {@code true} if the caller now owns the job
+	 */
+	public static boolean acquire(TranscodeSource src, TranscodeFormat format, int priority, String owner, Timestamp leaseExpires) throws SQLException {
+		if (tryInsert(src, format, RUNNING, priority, owner, leaseExpires)) return true;
+		return update("UPDATE `transcode_jobs` SET `state` = ?, `lease_owner` = ?, `lease_expires` = ?, "
+					+ "`attempts` = `attempts` + 1, `updated_at` = NOW() "
+				+ "WHERE `master` = ? AND `format` = ? AND (`state` <> ? OR `lease_expires` < ? OR `lease_owner` = ?);",
+				RUNNING, owner, leaseExpires, src.master(), format.name(), RUNNING, now(), owner) > 0;
+	}
+
+	/**
+	 * Take the lease on up to {@code limit} runnable jobs within the given priority range
+	 * (inclusive), highest priority first. A job is runnable if it's queued and not backing off,
+	 * or if whoever was running it let its lease lapse.
+	 */
+	public static List<Job> claim(String owner, Timestamp leaseExpires, int limit, int minPriority, int maxPriority) throws SQLException {
+		List<Job> candidates;
+		try (var stream = unpack(Job.class, select("SELECT "+COLUMNS+" FROM `transcode_jobs` "
+				+ "WHERE `state` <> ? AND (`lease_expires` IS NULL OR `lease_expires` < ?) AND `priority` BETWEEN ? AND ? "
+				+ "ORDER BY `priority` DESC, `job_id` ASC LIMIT "+limit+";",
+				FAILED, now(), minPriority, maxPriority))) {
+			candidates = stream.toList();
+		} catch (UncheckedSQLException e) {
+			throw e.getCause();
+		}
+		List<Job> out = new ArrayList<>();
+		for (var j : candidates) {
+			// someone else may have beaten us to it between the select and now
+			if (update("UPDATE `transcode_jobs` SET `state` = ?, `lease_owner` = ?, `lease_expires` = ?, "
+						+ "`attempts` = `attempts` + 1, `updated_at` = NOW() "
+					+ "WHERE `job_id` = ? AND `state` <> ? AND (`lease_expires` IS NULL OR `lease_expires` < ?);",
+					RUNNING, owner, leaseExpires, j.jobId(), FAILED, now()) > 0) {
+				out.add(j);
+			}
+		}
+		return out;
+	}
+
+	public static Optional<Job> get(String master, TranscodeFormat format) throws SQLException {
+		try (var rs = select("SELECT "+COLUMNS+" FROM `transcode_jobs` WHERE `master` = ? AND `format` = ?;",
+				master, format.name())) {
+			if (rs.first()) {
+				return Optional.of(unpackOne(Job.class, rs));
+			} else {
+				return Optional.empty();
+			}
+		}
+	}
+
+	/**
+	 * Extend every lease held by the given owner.
+	 */
+	public static int renew(String owner, Timestamp leaseExpires) throws SQLException {
+		return update("UPDATE `transcode_jobs` SET `lease_expires` = ? WHERE `lease_owner` = ? AND `state` = ?;",
+				leaseExpires, owner, RUNNING);
+	}
+
+	/**
+	 * Put every job held by the given owner back in the queue. Used on startup, as anything we
+	 * were running before a restart isn't running anymore.
+	 */
+	public static int requeueAll(String owner) throws SQLException {
+		return update("UPDATE `transcode_jobs` SET `state` = ?, `lease_owner` = NULL, `lease_expires` = NULL, `updated_at` = NOW() "
+				+ "WHERE `lease_owner` = ? AND `state` = ?;",
+				QUEUED, owner, RUNNING);
+	}
+
+	public static void complete(String master, TranscodeFormat format) throws SQLException {
+		update("DELETE FROM `transcode_jobs` WHERE `master` = ? AND `format` = ?;",
+				master, format.name());
+	}
+
+	public static void delete(long jobId) throws SQLException {
+		update("DELETE FROM `transcode_jobs` WHERE `job_id` = ?;",
+				jobId);
+	}
+
+	/**
+	 * Give up our lease on a job after it failed. It'll be retried after {@code retryAt} unless
+	 * it's out of attempts, in which case it's parked as failed until someone enqueues it again.
+	 */
+	public static void fail(String master, TranscodeFormat format, String owner, String error,
+			int maxAttempts, Timestamp retryAt) throws SQLException {
+		update("UPDATE `transcode_jobs` SET "
+					+ "`state` = CASE WHEN `attempts` >= ? THEN ? ELSE ? END, "
+					+ "`lease_owner` = NULL, `lease_expires` = ?, `last_error` = ?, `updated_at` = NOW() "
+				+ "WHERE `master` = ? AND `format` = ? AND `lease_owner` = ?;",
+				maxAttempts, FAILED, QUEUED, retryAt, error, master, format.name(), owner);
+	}
+
+	private static boolean tryInsert(TranscodeSource src, TranscodeFormat format, int state, int priority,
+			String owner, Timestamp leaseExpires) throws SQLException {
+		try {
+			update("INSERT INTO `transcode_jobs` (`master`, `format`, `kind`, `slug`, `track_id`, `release_id`, "
+						+ "`state`, `priority`, `attempts`, `lease_owner`, `lease_expires`, `created_at`, `updated_at`) "
+					+ "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, NOW(), NOW());",
+					src.master(), format.name(), src.kind(), src.slug(), src.trackId(), src.releaseId(),
+					state, priority, state == RUNNING ? 1 : 0, owner, leaseExpires);
+			return true;
+		} catch (SQLException e) {
+			// integrity constraint violation; the unique index on master and format
+			if (e.getSQLState() != null && e.getSQLState().startsWith("23")) return false;
+			throw e;
+		}
+	}
+
+	private static Timestamp now() {
+		return new Timestamp(System.currentTimeMillis());
+	}
+
+}
@@ -21,17 +21,36 @@ package com.unascribed.partyflow.data;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.unascribed.partyflow.config.TranscodeFormat;
+import com.unascribed.partyflow.config.TranscodeFormat.ReplayGainData;
 import com.unascribed.partyflow.config.TranscodeFormat.Shortcut;
 import com.unascribed.partyflow.data.util.QBase;
+import com.unascribed.partyflow.logic.DownloadRecorder;
+import com.unascribed.partyflow.logic.SessionHelper.Session;
+import com.unascribed.partyflow.logic.SpecialTrack;
 import com.unascribed.partyflow.logic.Storage;
+import com.unascribed.partyflow.logic.TranscodeIndex;
+import com.unascribed.partyflow.util.UncheckedSQLException;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
 
 public class QTranscodes extends QBase {
 	
@@ -42,23 +61,330 @@ public class QTranscodes extends QBase {
 	public record FoundTranscode(String blob) implements TranscodeFindResult {}
 	public record FoundShortcut(Shortcut shortcut, String srcBlob) implements TranscodeFindResult {}
 	
+	/**
+	 * Everything the transcoder needs to know about a track or release.
+	 */
+	public record TranscodeSource(String kind, String slug, String master, String title, String releaseTitle, String creator,
+			String art, String lyrics, boolean published, Long trackId, Long releaseId, Integer trackNumber,
+			ReplayGainData rgd, int year) {
+		
+		public static TranscodeSource of(SpecialTrack st) {
+			return new TranscodeSource("track", st.slug(), st.slug(), st.title(), "Partyflow", st.artist(),
+					null, null, true, null, null, null, st.rg(), st.year());
+		}
+		
+	}
+	
+	private static final String TRACK_SOURCE_QUERY = """
+			SELECT `tracks`.`master` AS `master`, `tracks`.`slug` AS `slug`, `tracks`.`title` AS `title`, `releases`.`title` AS `release_title`,
+					`users`.`display_name` AS `creator`, `releases`.`published` AS `published`, `releases`.`release_id` AS `release_id`,
+					`track_id`, `releases`.`peak` AS `album_peak`, `releases`.`loudness` AS `album_loudness`,
+					`tracks`.`loudness` AS `track_loudness`, `tracks`.`peak` AS `track_peak`,
+					`tracks`.`art` AS `art`, `releases`.`art` AS `fallback_art`,
+					EXTRACT(YEAR FROM `tracks`.`created_at`) AS `year`, `tracks`.`track_number` AS `track_number`,
+					`lyrics`
+			FROM `tracks`
+				JOIN `releases` ON `tracks`.`release_id` = `releases`.`release_id`
+				JOIN `users` ON `releases`.`user_id` = `users`.`user_id`
+			WHERE {where};""";
+	
+	private static final String RELEASE_SOURCE_QUERY = """
+			SELECT `concat_master` AS `master`, `releases`.`slug` AS `slug`, `title`, NULL as `release_title`, `users`.`display_name` AS `creator`,
+					`releases`.`published` AS `published`, `release_id`, NULL as `track_id`,
+					`releases`.`peak` AS `album_peak`, `releases`.`loudness` AS `album_loudness`,
+					`releases`.`peak` AS `track_peak`, `releases`.`loudness` AS `track_loudness`,
+					`art`, NULL AS `fallback_art`, NULL AS `track_number`, NULL AS `lyrics`,
+					EXTRACT(YEAR FROM `releases`.`created_at`) AS `year`
+			FROM `releases`
+				JOIN `users` ON `users`.`user_id` = `releases`.`user_id`
+			WHERE {where};""";
+	
+	/**
+	 * Look up a track or release by slug, as the given session is permitted to see it.
+	 * @param kind "track" or "release"
+	 */
+	public static Optional<TranscodeSource> findSource(Connection c, String kind, String slug, Session s) throws SQLException {
+		var st = SpecialTrack.BY_SLUG.get(slug);
+		if ("track".equals(kind) && st != null) {
+			return Optional.of(TranscodeSource.of(st));
+		}
+		String permissionQuery = (s.isEmpty() ? "false" : "`releases`.`user_id` = ?");
+		String where = "`"+kind+"s`.`slug` = ? AND (`releases`.`published` = true OR "+permissionQuery+")";
+		if (s.isPresent()) {
+			return findSource(c, kind, where, slug, s.userId().getAsInt());
+		} else {
+			return findSource(c, kind, where, slug);
+		}
+	}
+	
+	/**
+	 * Look up a track or release by ID, regardless of who can see it.
+	 * @param kind "track" or "release"
+	 */
+	public static Optional<TranscodeSource> findSource(Connection c, String kind, long id) throws SQLException {
+		return findSource(c, kind, "`"+kind+"s`.`"+kind+"_id` = ?", id);
+	}
+	
+	/**
+	 * Look up every track in a release by the release's ID, regardless of who can see it.
+	 */
+	public static List<TranscodeSource> findTrackSources(Connection c, long releaseId) throws SQLException {
+		return findSources(c, "track", "`tracks`.`release_id` = ?", releaseId);
+	}
+	
+	private static Optional<TranscodeSource> findSource(Connection c, String kind, String where, Object... args) throws SQLException {
+		return findSources(c, kind, where, args).stream().findFirst();
+	}
+	
+	private static List<TranscodeSource> findSources(Connection c, String kind, String where, Object... args) throws SQLException {
+		String query = switch (kind) {
+			case "track" -> TRACK_SOURCE_QUERY;
+			case "release" -> RELEASE_SOURCE_QUERY;
+			default -> throw new IllegalArgumentException("Unknown kind "+kind);
+		};
+		try (PreparedStatement ps = c.prepareStatement(query.replace("{where}", where))) {
+			for (int i = 0; i < args.length; i++) {
+				setObjectExt(ps, i+1, args[i]);
+			}
+			try (ResultSet rs = ps.executeQuery()) {
+				List<TranscodeSource> out = new ArrayList<>();
+				while (rs.next()) {
+					long trackId = rs.getLong("track_id");
+					boolean hasTrackId = !rs.wasNull();
+					int trackNumber = rs.getInt("track_number");
+					boolean hasTrackNumber = !rs.wasNull();
+					out.add(new TranscodeSource(kind, rs.getString("slug"), rs.getString("master"),
+							rs.getString("title"), rs.getString("release_title"), rs.getString("creator"),
+							rs.getString("art") == null ? rs.getString("fallback_art") : rs.getString("art"),
+							rs.getString("lyrics"), rs.getBoolean("published"),
+							hasTrackId ? trackId : null, rs.getLong("release_id"), hasTrackNumber ? trackNumber : null,
+							new ReplayGainData(rs.getInt("album_loudness")/10D, rs.getInt("track_loudness")/10D,
+									rs.getInt("album_peak")/10D, rs.getInt("track_peak")/10D),
+							rs.getInt("year")));
+				}
+				return out;
+			}
+		}
+	}
+	
+	/**
+	 * @return the names of every format the tracks in the given release have been transcoded to,
+	 * 		keyed by master
+	 */
+	public static Multimap<String, String> findTranscodedFormats(Connection c, long releaseId) throws SQLException {
+		try (PreparedStatement ps = c.prepareStatement("SELECT `master`, `format` FROM `transcodes` WHERE `release_id` = ?;")) {
+			ps.setLong(1, releaseId);
+			try (ResultSet rs = ps.executeQuery()) {
+				Multimap<String, String> out = HashMultimap.create();
+				while (rs.next()) {
+					out.put(rs.getString("master"), rs.getString("format"));
+				}
+				return out;
+			}
+		}
+	}
+	
+	/**
+	 * @return the names of the given formats, ordered by how many masters have been transcoded to
+	 * 		them, most first
+	 */
+	public static List<String> rankFormatsByUse(Connection c, Collection<TranscodeFormat> formats) throws SQLException {
+		if (formats.isEmpty()) return List.of();
+		String params = Strings.repeat(", ?", formats.size()-1);
+		try (PreparedStatement ps = c.prepareStatement("SELECT `format`, COUNT(*) AS `uses` FROM `transcodes` "
+				+ "WHERE `format` IN (?"+params+") GROUP BY `format` ORDER BY `uses` DESC;")) {
+			int i = 1;
+			for (var f : formats) {
+				ps.setString(i++, f.name());
+			}
+			try (ResultSet rs = ps.executeQuery()) {
+				List<String> out = new ArrayList<>();
+				while (rs.next()) {
+					out.add(rs.getString("format"));
+				}
+				return out;
+			}
+		}
+	}
+	
+	public static void insertTranscode(Connection c, String master, TranscodeFormat format, String blob,
+			Long trackId, Long releaseId, long size, long encodeMillis) throws SQLException {
+		insertTranscode(c, master, format.name(), blob, trackId, releaseId, size, encodeMillis);
+	}
+	
+	/**
+	 * @param format the name of a format, or the key of a segment of one
+	 * @param size the size of the blob, in bytes
+	 * @param encodeMillis how long it took to make, so eviction can tell what's expensive to redo
+	 */
+	public static void insertTranscode(Connection c, String master, String format, String blob,
+			Long trackId, Long releaseId, long size, long encodeMillis) throws SQLException {
+		try (PreparedStatement ps = c.prepareStatement("INSERT INTO `transcodes` "
+				+ "(`master`, `format`, `file`, `track_id`, `release_id`, `size`, `encode_millis`, `created_at`, `last_downloaded`) "
+				+ "VALUES (?, ?, ?, ?, ?, ?, ?, NOW(), NOW());", Statement.RETURN_GENERATED_KEYS)) {
+			ps.setString(1, master);
+			ps.setString(2, format);
+			ps.setString(3, blob);
+			if (trackId == null) {
+				ps.setNull(4, Types.BIGINT);
+			} else {
+				ps.setLong(4, trackId);
+			}
+			if (releaseId == null) {
+				ps.setNull(5, Types.BIGINT);
+			} else {
+				ps.setLong(5, releaseId);
+			}
+			ps.setLong(6, size);
+			ps.setLong(7, encodeMillis);
+			ps.execute();
+			try (var rs = ps.getGeneratedKeys()) {
+				if (rs.first()) TranscodeIndex.add(master, format, rs.getLong(1), blob);
+			}
+		}
+	}
+	
+	public record IndexedTranscode(long transcodeId, String master, String format, String file) {}
+	
+	public static List<IndexedTranscode> findAllTranscodes() throws SQLException {
+		try (var stream = unpack(IndexedTranscode.class, select("SELECT `transcode_id`, `master`, `format`, `file` FROM `transcodes`;"))) {
+			return stream.toList();
+		} catch (UncheckedSQLException e) {
+			throw e.getCause();
+		}
+	}
+	
+	/**
+	 * @param counts how many times each transcode was downloaded, by ID
+	 */
+	public static void markDownloaded(Map<Long, Integer> counts) throws SQLException {
+		// almost everything is downloaded once or twice between flushes, so this is only a few statements
+		Multimap<Integer, Long> byCount = HashMultimap.create();
+		counts.forEach((id, n) -> byCount.put(n, id));
+		for (var en : byCount.asMap().entrySet()) {
+			for (var batch : Lists.partition(List.copyOf(en.getValue()), 500)) {
+				List<Object> args = new ArrayList<>();
+				args.add(en.getKey());
+				args.addAll(batch);
+				update("UPDATE `transcodes` SET `last_downloaded` = NOW(), `downloads` = `downloads` + ? "
+						+ "WHERE `transcode_id` IN (?"+Strings.repeat(", ?", batch.size()-1)+");",
+						args.toArray());
+			}
+		}
+	}
+	
+	public record CachedTranscode(long transcodeId, String file, long size, long encodeMillis, int downloads,
+			Date createdAt, Date lastDownloaded) {}
+	
+	private static final String CACHED_COLUMNS = columnsForRecord("transcodes", CachedTranscode.class);
+	
+	/**
+	 * @return every cached transcode, or only those not downloaded since the given time if it's
+	 * 		non-null
+	 */
+	public static List<CachedTranscode> findCachedTranscodes(Date idleSince) throws SQLException {
+		var q = "SELECT "+CACHED_COLUMNS+" FROM `transcodes` WHERE `master` != '__testtrack'";
+		try (var stream = unpack(CachedTranscode.class, idleSince == null
+				? select(q+";")
+				: select(q+" AND `last_downloaded` <= ?;", new Timestamp(idleSince.getTime())))) {
+			return stream.toList();
+		} catch (UncheckedSQLException e) {
+			throw e.getCause();
+		}
+	}
+	
+	/**
+	 * Fill in the size of a transcode recorded before sizes were.
+	 */
+	public static void setSize(long transcodeId, long size) throws SQLException {
+		update("UPDATE `transcodes` SET `size` = ? WHERE `transcode_id` = ?;", size, transcodeId);
+	}
+	
+	public static void deleteTranscodes(Collection<Long> transcodeIds) throws SQLException {
+		for (var batch : Lists.partition(List.copyOf(transcodeIds), 500)) {
+			update("DELETE FROM `transcodes` WHERE `transcode_id` IN (?"+Strings.repeat(", ?", batch.size()-1)+");",
+					batch.toArray());
+		}
+	}
+	
+	public static void deleteTranscode(long transcodeId) throws SQLException {
+		update("DELETE FROM `transcodes` WHERE `transcode_id` = ?;", transcodeId);
+	}
+	
+	public static boolean transcodeExists(long transcodeId) throws SQLException {
+		try (var rs = select("SELECT 1 FROM `transcodes` WHERE `transcode_id` = ?;", transcodeId)) {
+			return rs.first();
+		}
+	}
+	
+	/**
+	 * Segments are kept alongside whole transcodes, under a key naming both the format and which
+	 * segment it is, so they get pruned the same way.
+	 * @return the blob holding the given segment of the given master, or null if there isn't one
+	 */
+	public static String findSegment(Connection c, String master, String key) throws SQLException {
+		return findSegment(c, master, key, true);
+	}
+	
+	/**
+	 * @param download if true, record that the segment was downloaded
+	 */
+	public static String findSegment(Connection c, String master, String key, boolean download) throws SQLException {
+		var hit = TranscodeIndex.get(master, key, download);
+		if (hit != null) return hit.blob();
+		if (TranscodeIndex.knownMissing(master, key)) return null;
+		try (var ps = c.prepareStatement("SELECT `transcode_id`, `file` FROM `transcodes` WHERE `master` = ? AND `format` = ?;")) {
+			ps.setString(1, master);
+			ps.setString(2, key);
+			try (var rs = ps.executeQuery()) {
+				if (!rs.first()) {
+					TranscodeIndex.missing(master, key);
+					return null;
+				}
+				if (!Storage.blobExists(rs.getString("file"))) {
+					try (PreparedStatement ps2 = c.prepareStatement("DELETE FROM `transcodes` WHERE `transcode_id` = ?;")) {
+						ps2.setInt(1, rs.getInt("transcode_id"));
+						ps2.executeUpdate();
+					}
+					return null;
+				}
+				if (download) DownloadRecorder.transcodeDownloaded(rs.getLong("transcode_id"));
+				TranscodeIndex.add(master, key, rs.getLong("transcode_id"), rs.getString("file"));
+				return rs.getString("file");
+			}
+		}
+	}
+	
 	public static TranscodeFindResult findExistingTranscode(Connection c, boolean updateLastDownload, String kind, String slug,
 			TranscodeFormat format, String master) throws SQLException {
+		var hit = TranscodeIndex.get(master, format.name(), updateLastDownload);
+		if (hit != null) return new FoundTranscode(hit.blob());
+		for (Shortcut sc : format.shortcuts()) {
+			var src = TranscodeIndex.get(master, sc.source().name(), false);
+			if (src != null) return new FoundShortcut(sc, src.blob());
+		}
+		if (TranscodeIndex.knownMissing(master, format.name())) return null;
 		String addnFormats = Strings.repeat(", ?", format.shortcuts().size());
 		try (var ps = c.prepareStatement("SELECT `transcode_id`, `file`, `format` FROM `transcodes` "
-				+ "WHERE `master` = ? AND `transcodes`.`format` IN (?"+addnFormats+");")) {
+				+ "WHERE `master` = ? AND `transcodes`.`format` IN (?"+addnFormats+") "
+				// a real transcode always beats a shortcut
+				+ "ORDER BY CASE WHEN `transcodes`.`format` = ? THEN 0 ELSE 1 END;")) {
 			int i = 1;
 			ps.setString(i++, master);
 			ps.setString(i++, format.name());
 			for (Shortcut sc : format.shortcuts()) {
 				ps.setString(i++, sc.source().name());
 			}
+			ps.setString(i++, format.name());
 			try (var rs = ps.executeQuery()) {
 				if (rs.first()) {
 					String id = rs.getString("transcodes.format");
 					if (!format.name().equals(id)) {
 						for (Shortcut sc : format.shortcuts()) {
 							if (sc.source().name().equals(id)) {
+								// if it's gone missing, the cleanup below will catch it next time it's asked for directly
+								if (!Storage.blobExists(rs.getString("transcodes.file"))) return null;
+								TranscodeIndex.add(master, id, rs.getLong("transcode_id"), rs.getString("transcodes.file"));
 								return new FoundShortcut(sc, rs.getString("transcodes.file"));
 							}
 						}
@@ -66,11 +392,9 @@ public class QTranscodes extends QBase {
 					} else {
 						if (Storage.blobExists(rs.getString("transcodes.file"))) {
 							if (updateLastDownload) {
-								try (PreparedStatement ps2 = c.prepareStatement("UPDATE `transcodes` SET `last_downloaded` = NOW() WHERE `transcode_id` = ?;")) {
-									ps2.setInt(1, rs.getInt("transcode_id"));
-									ps2.execute();
-								}
+								DownloadRecorder.transcodeDownloaded(rs.getLong("transcode_id"));
 							}
+							TranscodeIndex.add(master, id, rs.getLong("transcode_id"), rs.getString("transcodes.file"));
 							return new FoundTranscode(rs.getString("transcodes.file"));
 						} else {
 							log.warn("A transcode of {} {} to {} has gone missing!", kind, slug, format.name());
@@ -82,6 +406,7 @@ public class QTranscodes extends QBase {
 						}
 					}
 				} else {
+					TranscodeIndex.missing(master, format.name());
 					return null;
 				}
 			}
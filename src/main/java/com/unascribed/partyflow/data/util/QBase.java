@@ -32,6 +32,7 @@ import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.lang.reflect.RecordComponent;
 import java.math.BigDecimal;
 import java.net.URL;
@@ -335,21 +336,46 @@ public class QBase {
 	
 	private static final ThreadLocal<Connection> keptConnection = new ThreadLocal<>();
 	
+	/**
+	 * Keep a connection for this thread's queries until the returned connection is closed.
+	 * Closing it forgets it, so nothing is left behind in the thread local; this matters with
+	 * virtual threads, where there may be thousands of threads and none are reused.
+	 */
 	public static Connection begin() throws SQLException {
 		var conn = Partyflow.sql.getConnection();
 		keptConnection.set(conn);
-		return conn;
+		return wrap(conn, () -> {
+			if (keptConnection.get() == conn) keptConnection.remove();
+			conn.close();
+		});
 	}
 
 	// UTILITY //
 	
 	protected static Connection conn() throws SQLException {
 		var kept = keptConnection.get();
-		if (kept != null && !kept.isClosed()) return kept;
-		keptConnection.set(null);
+		if (kept != null && !kept.isClosed()) {
+			// queries close what they're given; the kept connection is closed by whoever began it
+			return wrap(kept, () -> {});
+		}
+		keptConnection.remove();
 		return Partyflow.sql.getConnection();
 	}
 	
+	private static Connection wrap(Connection conn, SQLRunnable onClose) {
+		return (Connection)Proxy.newProxyInstance(QBase.class.getClassLoader(), new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+			if (method.getName().equals("close") && method.getParameterCount() == 0) {
+				onClose.run();
+				return null;
+			}
+			try {
+				return method.invoke(conn, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		});
+	}
+	
 	@SuppressWarnings("deprecation") // overriding and delegating deprecated methods
 	private static class CascadingResultSet implements ResultSet {
 		
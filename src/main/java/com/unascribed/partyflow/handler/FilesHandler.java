@@ -19,7 +19,10 @@
 
 package com.unascribed.partyflow.handler;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
 import java.util.List;
 
 import jakarta.servlet.ServletException;
@@ -38,6 +41,9 @@ import com.unascribed.partyflow.handler.util.SimpleHandler.GetOrHead;
 import com.unascribed.partyflow.handler.util.SimpleHandler.Options;
 import com.unascribed.partyflow.logic.Storage;
 import com.unascribed.partyflow.logic.URLs;
+import com.unascribed.partyflow.logic.WriteBack;
+
+import com.google.common.io.ByteStreams;
 
 public class FilesHandler extends SimpleHandler implements GetOrHead, Options {
 
@@ -50,6 +56,8 @@ public class FilesHandler extends SimpleHandler implements GetOrHead, Options {
 	@Override
 	public void getOrHead(String path, HttpServletRequest req, HttpServletResponse res, boolean head)
 			throws IOException, ServletException {
+		var pending = WriteBack.get(path);
+		if (pending != null && servePending(pending, req, res, head)) return;
 		if (!Partyflow.config.storage.publicUrlPattern.startsWith("files/")
 				&& !Partyflow.config.storage.publicUrlPattern.startsWith(URLs.relative("files/"))) {
 			res.setStatus(HTTP_307_TEMPORARY_REDIRECT);
@@ -135,4 +143,56 @@ public class FilesHandler extends SimpleHandler implements GetOrHead, Options {
 		}
 	}
 
+	/**
+	 * Serve a transcode that's still being uploaded from its local copy.
+	 * @return false if the upload finished before we could open it, and it should be served from
+	 * 		storage instead
+	 */
+	private boolean servePending(WriteBack.Pending p, HttpServletRequest req, HttpServletResponse res, boolean head) throws IOException {
+		RandomAccessFile raf;
+		try {
+			raf = new RandomAccessFile(p.file(), "r");
+		} catch (FileNotFoundException e) {
+			return false;
+		}
+		try (raf) {
+			long fullLen = raf.length();
+			res.setHeader("Accept-Ranges", "bytes");
+			// it's not public yet, so nobody else should hang on to it
+			res.setHeader("Cache-Control", "private");
+			res.setHeader("Content-Type", p.contentType() == null ? "application/octet-stream" : p.contentType());
+			if (p.contentDisposition() != null) {
+				res.setHeader("Content-Disposition", p.contentDisposition());
+			}
+			var rangesHdr = req.getHeaders("Range");
+			InclusiveByteRange range = null;
+			if (rangesHdr != null && rangesHdr.hasMoreElements()) {
+				var ranges = InclusiveByteRange.satisfiableRanges(rangesHdr, fullLen);
+				if (ranges == null || ranges.isEmpty()) {
+					res.sendError(HTTP_416_RANGE_NOT_SATISFIABLE);
+					return true;
+				}
+				if (ranges.size() == 1) range = ranges.get(0);
+			}
+			long start = 0;
+			long count = fullLen;
+			if (range != null) {
+				start = range.getFirst();
+				count = range.getSize();
+				res.setHeader("Content-Range", range.toHeaderRangeString(fullLen));
+				res.setStatus(HTTP_206_PARTIAL_CONTENT);
+			} else {
+				res.setStatus(HTTP_200_OK);
+			}
+			res.setContentLengthLong(count);
+			try (var out = res.getOutputStream()) {
+				if (!head) {
+					raf.seek(start);
+					ByteStreams.copy(ByteStreams.limit(Channels.newInputStream(raf.getChannel()), count), out);
+				}
+			}
+			return true;
+		}
+	}
+
 }
@@ -0,0 +1,50 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.handler.api.v1;
+
+import java.sql.SQLException;
+
+import com.unascribed.partyflow.data.QReleases;
+import com.unascribed.partyflow.data.util.QBase;
+import com.unascribed.partyflow.handler.util.ApiHandler;
+import com.unascribed.partyflow.handler.util.UserVisibleException;
+import com.unascribed.partyflow.logic.DownloadRecorder;
+import com.unascribed.partyflow.logic.DownloadRecorder.Uniques;
+import com.unascribed.partyflow.logic.SessionHelper.Session;
+
+public class ReleaseDownloadsApi extends ApiHandler {
+
+	@GET
+	public static Uniques invoke(Session session, @RequestPath String slug)
+			throws UserVisibleException, SQLException {
+		if (!DownloadRecorder.countsUniques()) throw new UserVisibleException(409, "Unique downloaders are not being counted");
+		try (var c = QBase.begin()) {
+			var releaseOpt = QReleases.get(session, slug);
+			if (releaseOpt.isPresent()) {
+				var r = releaseOpt.get();
+				if (!session.userId().stream().anyMatch(id -> id == r.userId())) throw new UserVisibleException(403);
+				return DownloadRecorder.uniques(r.releaseId());
+			} else {
+				throw new UserVisibleException(404);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,54 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.handler.api.v1;
+
+import java.sql.SQLException;
+
+import com.unascribed.partyflow.config.TranscodeFormat;
+import com.unascribed.partyflow.data.QReleases;
+import com.unascribed.partyflow.data.QTracks;
+import com.unascribed.partyflow.data.util.QBase;
+import com.unascribed.partyflow.handler.util.ApiHandler;
+import com.unascribed.partyflow.handler.util.UserVisibleException;
+import com.unascribed.partyflow.logic.Segmenter;
+import com.unascribed.partyflow.logic.Segmenter.Manifest;
+import com.unascribed.partyflow.logic.SessionHelper.Session;
+
+public class ReleaseSegmentsApi extends ApiHandler {
+
+	@GET
+	public static Manifest invoke(Session session, @RequestPath String slug, String format)
+			throws UserVisibleException, SQLException {
+		var fmt = TranscodeFormat.byPublicName(format)
+				.filter(TranscodeFormat::segmented)
+				.orElseThrow(() -> new UserVisibleException(400, "Unrecognized or unsegmented format "+format));
+		try (var c = QBase.begin()) {
+			var releaseOpt = QReleases.get(session, slug);
+			if (releaseOpt.isPresent()) {
+				var r = releaseOpt.get();
+				if (r.concatMaster() == null) throw new UserVisibleException(409, "Release is still processing");
+				return Segmenter.manifest(r.slug(), fmt, QTracks.get(r.releaseId()));
+			} else {
+				throw new UserVisibleException(404);
+			}
+		}
+	}
+
+}
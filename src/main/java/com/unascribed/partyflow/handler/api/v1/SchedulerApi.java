@@ -0,0 +1,60 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.unascribed.partyflow.handler.api.v1;
+
+import java.util.List;
+
+import com.unascribed.partyflow.handler.util.ApiHandler;
+import com.unascribed.partyflow.handler.util.UserVisibleException;
+import com.unascribed.partyflow.logic.CachingBlobStore;
+import com.unascribed.partyflow.logic.DownloadRecorder;
+import com.unascribed.partyflow.logic.MultipartUploader;
+import com.unascribed.partyflow.logic.SessionHelper.Session;
+import com.unascribed.partyflow.logic.Storage;
+import com.unascribed.partyflow.logic.TranscodeIndex;
+import com.unascribed.partyflow.logic.TranscodeLimiter;
+import com.unascribed.partyflow.logic.Transcoder;
+import com.unascribed.partyflow.logic.Transcoder.ShortcutStats;
+import com.unascribed.partyflow.logic.WriteBack;
+import com.unascribed.partyflow.logic.permission.Permission;
+import com.unascribed.partyflow.util.FairPriorityPool.ClassStats;
+import com.unascribed.partyflow.util.ProcessPipeline;
+import com.unascribed.partyflow.util.RingBufferTee;
+import com.unascribed.partyflow.util.Services;
+
+public class SchedulerApi extends ApiHandler {
+	
+	public record SchedulerResponse(int threads, int limit, boolean adaptive, double throughputGradient, List<ClassStats> classes,
+			ProcessPipeline.Stats pipelines, RingBufferTee.Stats tees, List<ShortcutStats> shortcuts,
+			CachingBlobStore.Stats blobCache, WriteBack.Stats writeBack, MultipartUploader.Stats uploads,
+			TranscodeIndex.Stats transcodeIndex, DownloadRecorder.Stats downloads) {}
+	
+	@GET
+	public static SchedulerResponse invoke(Session session)
+			throws UserVisibleException {
+		session.assertPresent()
+				.assertPermission(Permission.admin.administrate);
+		return new SchedulerResponse(Services.transcodePool.getThreads(), Services.transcodePool.getConcurrency(),
+				TranscodeLimiter.enabled(), TranscodeLimiter.gradient(), Services.transcodePool.getStats(),
+				ProcessPipeline.getStats(), RingBufferTee.getStats(), Transcoder.getShortcutStats(),
+				Storage.getCacheStats(), WriteBack.getStats(), MultipartUploader.getStats(),
+				TranscodeIndex.getStats(), DownloadRecorder.getStats());
+	}
+
+}
@@ -46,12 +46,12 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.unascribed.partyflow.Partyflow;
 import com.unascribed.partyflow.config.TranscodeFormat;
-import com.unascribed.partyflow.handler.frontend.release.AddTrackHandler;
 import com.unascribed.partyflow.handler.util.MultipartData;
 import com.unascribed.partyflow.handler.util.MustacheHandler;
 import com.unascribed.partyflow.handler.util.SimpleHandler;
 import com.unascribed.partyflow.handler.util.SimpleHandler.GetOrHead;
 import com.unascribed.partyflow.handler.util.SimpleHandler.UrlEncodedOrMultipartPost;
+import com.unascribed.partyflow.logic.AlbumRegenerator;
 import com.unascribed.partyflow.logic.ProseHelper;
 import com.unascribed.partyflow.logic.SessionHelper;
 import com.unascribed.partyflow.logic.Storage;
@@ -239,7 +239,7 @@ public class TrackHandler extends SimpleHandler implements GetOrHead, UrlEncoded
 					ps.setLong(1, trackId);
 					ps.executeUpdate();
 				}
-				AddTrackHandler.regenerateAlbumFile(releaseId);
+				AlbumRegenerator.request(releaseId);
 				res.sendRedirect(URLs.relative("release/"+escPathSeg(releaseSlug)));
 			} catch (SQLException e) {
 				throw new ServletException(e);
@@ -20,9 +20,8 @@
 package com.unascribed.partyflow.handler.frontend.release;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -31,8 +30,11 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -56,20 +58,26 @@ import com.unascribed.partyflow.handler.util.SimpleHandler;
 import com.unascribed.partyflow.handler.util.UserVisibleException;
 import com.unascribed.partyflow.handler.util.SimpleHandler.GetOrHead;
 import com.unascribed.partyflow.handler.util.SimpleHandler.MultipartPost;
+import com.unascribed.partyflow.logic.AlbumRegenerator;
+import com.unascribed.partyflow.logic.MultipartUploader;
 import com.unascribed.partyflow.logic.SessionHelper;
 import com.unascribed.partyflow.logic.Storage;
+import com.unascribed.partyflow.logic.TranscodeLimiter;
 import com.unascribed.partyflow.logic.Transcoder;
 import com.unascribed.partyflow.logic.URLs;
 import com.unascribed.partyflow.logic.permission.Permission;
 import com.unascribed.partyflow.util.Commands;
+import com.unascribed.partyflow.util.FairPriorityPool.TaskClass;
 import com.unascribed.partyflow.util.MoreByteStreams;
 import com.unascribed.partyflow.util.Processes;
+import com.unascribed.partyflow.util.RingBufferTee;
+import com.unascribed.partyflow.util.RingBufferTee.SlowBranchPolicy;
 import com.unascribed.partyflow.util.Services;
+import com.unascribed.partyflow.util.audio.FlacDecoder;
+import com.unascribed.partyflow.util.audio.LoudnessMeter;
+import com.unascribed.partyflow.util.audio.TagReader;
 
-import com.google.common.base.Charsets;
 import com.google.common.io.ByteStreams;
-import com.google.common.io.Files;
-import com.google.common.primitives.Doubles;
 import com.google.common.primitives.Ints;
 
 public class AddTrackHandler extends SimpleHandler implements GetOrHead, MultipartPost {
@@ -78,15 +86,17 @@ public class AddTrackHandler extends SimpleHandler implements GetOrHead, Multipa
 
 	private static final File WORK_DIR = new File(System.getProperty("java.io.tmpdir"), "partyflow/work");
 
-	private static final Pattern DURATION_FFPROBE_PATTERN = Pattern.compile("^format.duration=\"?(.*?)\"?$", Pattern.MULTILINE);
 	private static final Pattern TITLE_FFPROBE_PATTERN = Pattern.compile("^(?:format|streams.stream.0).tags.(?:title|TITLE)=\"?(.*?)\"?$", Pattern.MULTILINE);
 	private static final Pattern TRACK_FFPROBE_PATTERN = Pattern.compile("^(?:format|streams.stream.0).tags.(?:track|TRACK)=\"?(.*?)\"?$", Pattern.MULTILINE);
 	private static final Pattern LYRICS_FFPROBE_PATTERN = Pattern.compile("^(?:format|streams.stream.0).tags.(?:unsynced|UNSYNCED)?(?:lyrics|LYRICS)=\"?(.*?)\"?$", Pattern.MULTILINE);
 	
-	private static final Pattern LOUDNESS_FFMPEG_PATTERN = Pattern.compile("^\\s+I:\\s+(-?\\d+\\.\\d+) LUFS$", Pattern.MULTILINE);
-	private static final Pattern PEAK_FFMPEG_PATTERN = Pattern.compile("^\\s+Peak:\\s+(-?(?:\\d+\\.\\d+|inf)) dBFS$", Pattern.MULTILINE);
+	/**
+	 * How far FFprobe may fall behind the encode before it's cut off. It only needs the
+	 * beginning of the file, so this is mostly to absorb scheduling hiccups.
+	 */
+	private static final int PROBE_BUFFER_SIZE = 1024*1024;
 	
-	private static final BigDecimal TO_SAMPLES = new BigDecimal(48000);
+	private static final ThreadFactory probeFactory = Services.helperFactory("Probe");
 
 	@Override
 	public void getOrHead(String slugs, HttpServletRequest req, HttpServletResponse res, boolean head)
@@ -157,16 +167,25 @@ public class AddTrackHandler extends SimpleHandler implements GetOrHead, Multipa
 					}
 				}
 				WORK_DIR.mkdirs();
-				record TrackData(String title, int trackNumber, String blobName, long duration, double loudness, double peak, String lyrics) {}
+				record TrackData(String title, int trackNumber, String blobName, long duration, double loudness, double peak, byte[] histogram, String lyrics) {}
 				List<Future<TrackData>> futures = new ArrayList<>();
 				for (Part master : masters) {
-					futures.add(Services.transcodePool.submit(() -> {
+					futures.add(Services.transcodePool.submit(TaskClass.INGEST, "user:"+s.userId(), () -> {
 						File tmpFile = File.createTempFile("transcode-", ".flac", WORK_DIR);
 						try {
 							log.debug("Processing master {}...", master.getSubmittedFileName());
-							Process p = Commands.ffmpeg("-v", "info", "-nostats",
+							long startTime = System.nanoTime();
+							// the common formats can have their tags read in-process by peeking at the header
+							TagReader.Info info;
+							try (var in = master.getInputStream()) {
+								info = TagReader.read(in);
+							} catch (IOException | RuntimeException e) {
+								log.debug("Failed to read tags from master {}, falling back to FFprobe", master.getSubmittedFileName(), e);
+								info = null;
+							}
+							long[] probeNanos = {info == null ? 0 : System.nanoTime()-startTime};
+							Process p = Commands.ffmpeg("-v", "error", "-nostats",
 									"-i", "-", "-map", "a",
-									"-af", "ebur128=framelog=verbose:peak=true",
 									// required reading before changing any of this
 									// https://people.xiph.org/~xiphmont/demo/neil-young.html
 									"-dither_method", "improved_e_weighted",
@@ -179,32 +198,31 @@ public class AddTrackHandler extends SimpleHandler implements GetOrHead, Multipa
 									"-map_metadata", "-1",
 									"-metadata", "comment=Generated by Partyflow v"+Version.FULL+" hosted at "+Partyflow.publicUri.getHost(),
 									"-f", "flac",
+									"-threads", TranscodeLimiter.ffmpegThreads(),
 									"-y", tmpFile.getAbsolutePath()).start();
-							try (var in = master.getInputStream();
-									var out = p.getOutputStream()) {
-								ByteStreams.copy(in, out);
-							} catch (IOException e) {
-								if (!"Broken pipe".equals(e.getMessage())) {
-									throw e;
-								}
-							}
-							while (p.isAlive()) {
+							// drained as it comes, so a flood of warnings can't fill the pipe and wedge FFmpeg
+							var mpegErrOut = new CompletableFuture<String>();
+							probeFactory.newThread(() -> {
 								try {
-									p.waitFor();
-								} catch (InterruptedException e) {
+									mpegErrOut.complete(MoreByteStreams.slurp(p.getErrorStream()));
+								} catch (Throwable t) {
+									mpegErrOut.completeExceptionally(t);
 								}
+							}).start();
+							// anything else gets probed alongside the encode instead of reading the upload twice
+							Process probe = info != null ? null : Commands.ffprobe("-v", "error", "-print_format", "flat", "-show_format", "-show_streams", "-").start();
+							var probeOut = new CompletableFuture<String>();
+							if (probe != null) {
+								probeFactory.newThread(() -> {
+									try {
+										String out = MoreByteStreams.slurp(probe.getInputStream());
+										probeNanos[0] = System.nanoTime()-startTime;
+										probeOut.complete(out);
+									} catch (Throwable t) {
+										probeOut.completeExceptionally(t);
+									}
+								}).start();
 							}
-							String mpegErr = MoreByteStreams.slurp(p.getErrorStream());
-							if (p.exitValue() != 0) {
-								log.warn("Failed to process audio with FFmpeg, output:\n{}", mpegErr);
-								throw new ServletException("Failed to transcode; FFmpeg exited with code "+p.exitValue());
-							}
-							double loudness = find(LOUDNESS_FFMPEG_PATTERN, mpegErr)
-									.map(Doubles::tryParse)
-									.orElse(0D);
-							double peak = find(PEAK_FFMPEG_PATTERN, mpegErr)
-									.map(Doubles::tryParse)
-									.orElse(0D);
 							String blobName;
 							do {
 								String rand = Partyflow.randomString(Services.random, 16);
@@ -218,73 +236,90 @@ public class AddTrackHandler extends SimpleHandler implements GetOrHead, Multipa
 							Blob blob = Storage.blobBuilder(blobName)
 									.payload(tmpFile)
 									.cacheControl("private")
-									.contentLength(tmpFile.length())
 									.contentDisposition("attachment; filename="+filename+"; filename*=utf-8''"+filename)
 									.contentType("audio/flac")
 									.build();
-							Storage.putBlob(blob, new PutOptions().multipart().setBlobAccess(BlobAccess.PRIVATE));
-							String titleFromFilename = sfm.contains(".") ? sfm.substring(0, sfm.lastIndexOf('.')) : sfm;
-							Process probeIn = Commands.ffprobe("-v", "error", "-print_format", "flat", "-show_format", "-show_streams", "-").start();
+							// big masters spend as long uploading as encoding, so do both at once
+							Future<String> upload = MultipartUploader.putWhileWriting(blob, new PutOptions().setBlobAccess(BlobAccess.PRIVATE), p);
+							// FFprobe hangs up once it's seen enough, and must never hold up the encode
 							try (var in = master.getInputStream();
-									var out = probeIn.getOutputStream()) {
+									var out = probe == null ? p.getOutputStream() : new RingBufferTee(p.getOutputStream(), probe.getOutputStream(), PROBE_BUFFER_SIZE,
+											SlowBranchPolicy.DROP, () -> closeQuietly(probe), WORK_DIR)) {
 								ByteStreams.copy(in, out);
 							} catch (IOException e) {
 								if (!"Broken pipe".equals(e.getMessage())) {
 									throw e;
 								}
 							}
-							while (probeIn.isAlive()) {
+							Processes.waitForUninterruptibly(p);
+							long encodeNanos = System.nanoTime()-startTime;
+							String mpegErr = mpegErrOut.get();
+							if (p.exitValue() != 0) {
+								if (probe != null) probe.destroy();
+								log.warn("Failed to process audio with FFmpeg, output:\n{}", mpegErr);
+								throw new ServletException("Failed to transcode; FFmpeg exited with code "+p.exitValue());
+							}
+							// measured from the master as stored, as that's what gets served. FFmpeg goes back and
+							// fills in the sample count when it finishes, so STREAMINFO can be trusted for the duration
+							long duration;
+							double loudness;
+							double peak;
+							byte[] histogram;
+							try (var dec = new FlacDecoder(new FileInputStream(tmpFile))) {
+								duration = dec.streamInfo().totalSamples();
+								var meter = LoudnessMeter.measure(dec);
+								loudness = meter.integrated();
+								peak = meter.peakDbfs();
+								histogram = meter.histogram().toBytes();
+							} catch (IOException e) {
+								// a master we just encoded ourselves should always decode; storing made-up
+								// loudness would quietly wreck ReplayGain for the whole album
+								log.warn("Failed to measure FLAC master", e);
+								if (probe != null) probe.destroy();
+								// don't leave the upload behind with nothing pointing at it
 								try {
-									probeIn.waitFor();
-								} catch (InterruptedException e) {
-								}
+									upload.get();
+									Storage.removeBlob(blobName);
+								} catch (ExecutionException e2) {}
+								throw new ServletException("Failed to measure loudness of the encoded master", e);
+							}
+							if (duration == 0 && info != null && info.duration().isPresent()) {
+								duration = (long)(info.duration().getAsDouble()*48000);
 							}
+							if (duration == 0) log.warn("Couldn't determine duration of master {}", master.getSubmittedFileName());
+							String titleFromFilename = sfm.contains(".") ? sfm.substring(0, sfm.lastIndexOf('.')) : sfm;
 							String title;
 							int trackNumber = -1;
-							long duration;
 							String lyrics;
-							if (probeIn.exitValue() != 0) {
-								String str = MoreByteStreams.slurp(probeIn.getErrorStream());
+							if (info != null) {
+								title = info.title() == null ? titleFromFilename : info.title();
+								trackNumber = info.trackNumber().orElse(-1);
+								lyrics = info.lyrics();
+							} else if (Processes.waitForUninterruptibly(probe) != 0) {
+								String str = MoreByteStreams.slurp(probe.getErrorStream());
 								log.warn("Failed to probe master with FFprobe:\n{}", str);
 								title = titleFromFilename;
 								lyrics = null;
 							} else {
-								String probeOut = MoreByteStreams.slurp(probeIn.getInputStream());
-								title = find(TITLE_FFPROBE_PATTERN, probeOut)
+								String tags = probeOut.get();
+								title = find(TITLE_FFPROBE_PATTERN, tags)
 										.orElse(titleFromFilename);
-								trackNumber = find(TRACK_FFPROBE_PATTERN, probeOut)
+								trackNumber = find(TRACK_FFPROBE_PATTERN, tags)
 										.map(Ints::tryParse)
 										.filter(i -> i >= 1)
 										.orElse(-1);
-								lyrics = find(LYRICS_FFPROBE_PATTERN, probeOut)
+								lyrics = find(LYRICS_FFPROBE_PATTERN, tags)
 										.map(str -> str.replace("\\n", "\n").replace("\\r", ""))
 										.orElse(null);
 							}
-							Process probeFlac = Commands.ffprobe("-v", "error", "-print_format", "flat", "-show_format", tmpFile.getAbsolutePath()).start();
-							probeFlac.getOutputStream().close();
-							while (probeFlac.isAlive()) {
-								try {
-									probeFlac.waitFor();
-								} catch (InterruptedException e) {
-								}
-							}
-							if (probeFlac.exitValue() != 0) {
-								String str = MoreByteStreams.slurp(probeFlac.getErrorStream());
-								log.warn("Failed to probe FLAC master with FFprobe:\n{}", str);
-								duration = 0;
-							} else {
-								String probeOut = MoreByteStreams.slurp(probeFlac.getInputStream());
-								duration = find(DURATION_FFPROBE_PATTERN, probeOut)
-										.map(this::tryParseBigDecimal)
-										.map(bd -> bd.multiply(TO_SAMPLES))
-										.map(BigDecimal::longValue)
-										.orElseGet(() -> {
-											log.warn("Couldn't parse duration from FFprobe output:\n{}", probeOut);
-											return 0L;
-										});
-							}
-							log.debug("Processed master {}. {} successfully.\nDuration: {}ms, loudness: {}LUFS, peak: {}dBFS", trackNumber, title, duration/48, loudness, peak);
-							return new TrackData(title, trackNumber, blobName, duration, loudness, peak, lyrics);
+							upload.get();
+							long totalNanos = System.nanoTime()-startTime;
+							log.debug("Processed master {}. {} successfully.\nDuration: {}ms, loudness: {}LUFS, peak: {}dBFS\n"
+									+ "Probe done at {}ms, encode at {}ms, upload at {}ms",
+									trackNumber, title, duration/48, loudness, peak,
+									TimeUnit.NANOSECONDS.toMillis(probeNanos[0]), TimeUnit.NANOSECONDS.toMillis(encodeNanos),
+									TimeUnit.NANOSECONDS.toMillis(totalNanos));
+							return new TrackData(title, trackNumber, blobName, duration, loudness, peak, histogram, lyrics);
 						} finally {
 							tmpFile.delete();
 						}
@@ -317,8 +352,8 @@ public class AddTrackHandler extends SimpleHandler implements GetOrHead, Multipa
 					String slug = QGeneric.findSlug("tracks", Partyflow.sanitizeSlug(td.title));
 					lastSlug = slug;
 					try (PreparedStatement ps = c.prepareStatement(
-							"INSERT INTO `tracks` (`release_id`, `title`, `subtitle`, `slug`, `master`, `description`, `track_number`, `loudness`, `peak`, `duration`, `lyrics`, `created_at`, `last_updated`) "
-							+ "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, NOW(), NOW());")) {
+							"INSERT INTO `tracks` (`release_id`, `title`, `subtitle`, `slug`, `master`, `description`, `track_number`, `loudness`, `peak`, `loudness_histogram`, `duration`, `lyrics`, `created_at`, `last_updated`) "
+							+ "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, NOW(), NOW());")) {
 						ps.setInt(1, releaseId);
 						ps.setString(2, td.title);
 						ps.setString(3, "");
@@ -328,14 +363,15 @@ public class AddTrackHandler extends SimpleHandler implements GetOrHead, Multipa
 						ps.setInt(7, trackNumber);
 						ps.setInt(8, (int)(td.loudness*10));
 						ps.setInt(9, (int)(td.peak*10));
-						ps.setLong(10, td.duration);
-						ps.setString(11, td.lyrics);
+						ps.setBytes(10, td.histogram);
+						ps.setLong(11, td.duration);
+						ps.setString(12, td.lyrics);
 						ps.execute();
 					}
 				}
 				c.commit();
 				committed = true;
-				regenerateAlbumFile(releaseId);
+				AlbumRegenerator.request(releaseId);
 			} finally {
 				if (!committed) {
 					c.rollback();
@@ -352,143 +388,14 @@ public class AddTrackHandler extends SimpleHandler implements GetOrHead, Multipa
 		}
 	}
 	
-	private BigDecimal tryParseBigDecimal(String s) {
+	private static void closeQuietly(Process p) {
 		try {
-			return new BigDecimal(s);
-		} catch (IllegalArgumentException e) {
-			return null;
+			p.getOutputStream().close();
+		} catch (IOException e) {
+			// it's already hung up, which is what we wanted
 		}
 	}
 	
-	public static void regenerateAlbumFile(long releaseId) {
-		Services.genericPool.execute(() -> {
-			List<File> tmpFiles = new ArrayList<>();
-			try (Connection c = Partyflow.sql.getConnection()) {
-				List<String> concatLines = new ArrayList<>();
-				concatLines.add("ffconcat version 1.0");
-				log.debug("Regenerating gapless album file for release ID {}", releaseId);
-				List<String> masters = new ArrayList<>();
-				double loudness = -70;
-				double peak = 0;
-				try (PreparedStatement ps = c.prepareStatement("SELECT `master`, `loudness`, `peak` FROM `tracks` WHERE `release_id` = ? ORDER BY `track_number` ASC;")) {
-					ps.setLong(1, releaseId);
-					try (ResultSet rs = ps.executeQuery()) {
-						while (rs.next()) {
-							loudness = rs.getInt("loudness")/10D;
-							peak = rs.getInt("peak")/10D;
-							masters.add(rs.getString("master"));
-						}
-						
-					}
-				}
-				if (masters.isEmpty()) {
-					log.debug("Trivial case: No tracks. Empty concat.");
-					updateConcatMaster(c, releaseId, -70, 0, null);
-					return;
-				}
-				if (masters.size() == 1) {
-					log.debug("Trivial case: One track. Concat = sole track.");
-					updateConcatMaster(c, releaseId, loudness, peak, masters.get(0));
-					return;
-				}
-				for (String m : masters) {
-					File tmpFile = File.createTempFile("concat-", ".flac", WORK_DIR);
-					tmpFiles.add(tmpFile);
-					try (var p = Storage.getBlob(m).getPayload();
-							var in = p.openStream();
-							var out = new FileOutputStream(tmpFile)) {
-						ByteStreams.copy(in, out);
-					}
-					concatLines.add("file "+tmpFile.getName());
-				}
-				File concatFile = File.createTempFile("concat-", ".txt", WORK_DIR);
-				tmpFiles.add(concatFile);
-				Files.asCharSink(concatFile, Charsets.UTF_8).writeLines(concatLines);
-				File outFile = File.createTempFile("concat-", ".flac", WORK_DIR);
-				tmpFiles.add(outFile);
-				Process p = Commands.ffmpeg("-v", "info", "-nostdin", "-nostats",
-						"-i", concatFile.getAbsolutePath(), "-map", "a",
-						"-af", "ebur128=framelog=verbose:peak=true",
-						"-sample_fmt", "s16",
-						"-dither_method", "improved_e_weighted",
-						"-map_metadata", "-1",
-						"-metadata", "comment=Generated by Partyflow v"+Version.FULL+" hosted at "+Partyflow.publicUri.getHost(),
-						"-f", "flac",
-						"-y", outFile.getAbsolutePath()).start();
-				p.getOutputStream().close();
-				Processes.waitForUninterruptibly(p);
-				String mpegErr = MoreByteStreams.slurp(p.getErrorStream());
-				if (p.exitValue() != 0) {
-					log.warn("Failed to process audio with FFmpeg, output:\n{}", mpegErr);
-					return;
-				}
-				loudness = find(LOUDNESS_FFMPEG_PATTERN, mpegErr)
-						.map(Doubles::tryParse)
-						.orElse(0D);
-				peak = find(PEAK_FFMPEG_PATTERN, mpegErr)
-						.map(Doubles::tryParse)
-						.orElse(0D);
-				String blobName;
-				do {
-					String rand = Partyflow.randomString(Services.random, 16);
-					blobName = "concats/"+rand.substring(0, 3)+"/"+rand+".flac";
-				} while (Storage.blobExists(blobName));
-				Blob blob = Storage.blobBuilder(blobName)
-						.payload(outFile)
-						.cacheControl("private")
-						.contentLength(outFile.length())
-						.contentDisposition("attachment")
-						.contentType("audio/flac")
-						.build();
-				Storage.putBlob(blob, new PutOptions().multipart().setBlobAccess(BlobAccess.PRIVATE));
-				updateConcatMaster(c, releaseId, loudness, peak, blobName);
-			} catch (Throwable e) {
-				log.warn("Failed to regenerate album file for release ID {}", releaseId, e);
-			} finally {
-				tmpFiles.forEach(File::delete);
-			}
-		});
-	}
-
-	private static void updateConcatMaster(Connection c, long releaseId, double loudness, double peak, String blobName) throws SQLException {
-		try {
-			c.setAutoCommit(false);
-			boolean committed = false;
-			String oldBlob = null;
-			try {
-				try (PreparedStatement ps = c.prepareStatement("SELECT `concat_master` FROM `releases` WHERE `release_id` = ?;")) {
-					ps.setLong(1, releaseId);
-					try (ResultSet rs = ps.executeQuery()) {
-						if (rs.first()) {
-							oldBlob = rs.getString("concat_master");
-						}
-					}
-				}
-				boolean success = false;
-				try (PreparedStatement ps = c.prepareStatement("UPDATE `releases` SET `concat_master` = ?, `loudness` = ?, `peak` = ? WHERE `release_id` = ?;")) {
-					ps.setString(1, blobName);
-					ps.setInt(2, (int)(loudness*10));
-					ps.setInt(3, (int)(peak*10));
-					ps.setLong(4, releaseId);
-					success = (ps.executeUpdate() > 0);
-				}
-				c.commit();
-				committed = true;
-				log.debug("Processed concatenation successfully.\nAlbum loudness: {}LUFS, album peak: {}dBFS", loudness, peak);
-				if (success && oldBlob != null) {
-					log.trace("Deleting {}", oldBlob);
-					Storage.removeBlob(oldBlob);
-				}
-			} finally {
-				if (!committed) {
-					c.rollback();
-				}
-			}
-		} finally {
-			c.setAutoCommit(true);
-		}
-	}
-
 	private static Optional<String> find(Pattern pattern, String haystack) {
 		Matcher m = pattern.matcher(haystack);
 		if (m.find()) {
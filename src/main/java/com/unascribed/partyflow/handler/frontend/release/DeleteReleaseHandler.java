@@ -35,6 +35,7 @@ import com.unascribed.partyflow.Partyflow;
 import com.unascribed.partyflow.handler.util.SimpleHandler;
 import com.unascribed.partyflow.handler.util.SimpleHandler.GetOrHead;
 import com.unascribed.partyflow.handler.util.SimpleHandler.UrlEncodedPost;
+import com.unascribed.partyflow.logic.AlbumRegenerator;
 import com.unascribed.partyflow.logic.SessionHelper;
 import com.unascribed.partyflow.logic.Storage;
 import com.unascribed.partyflow.logic.URLs;
@@ -72,7 +73,7 @@ public class DeleteReleaseHandler extends SimpleHandler implements GetOrHead, Ur
 							Storage.removeBlob(art);
 						}
 						String concatMaster = Strings.emptyToNull(rs.getString("concat_master"));
-						if (concatMaster != null) {
+						if (AlbumRegenerator.isMaterialized(concatMaster)) {
 							log.trace("Deleting {}", concatMaster);
 							Storage.removeBlob(concatMaster);
 						}
@@ -40,6 +40,7 @@ import com.unascribed.partyflow.handler.util.MultipartData;
 import com.unascribed.partyflow.handler.util.SimpleHandler;
 import com.unascribed.partyflow.handler.util.SimpleHandler.GetOrHead;
 import com.unascribed.partyflow.handler.util.SimpleHandler.MultipartPost;
+import com.unascribed.partyflow.logic.Prewarmer;
 import com.unascribed.partyflow.logic.ProseHelper;
 import com.unascribed.partyflow.logic.SessionHelper;
 import com.unascribed.partyflow.logic.URLs;
@@ -130,6 +131,9 @@ public class EditReleaseHandler extends SimpleHandler implements GetOrHead, Mult
 				ps.setInt(i++, s.userId());
 				ps.executeUpdate();
 			}
+			if (!published && data.getPart("publish") != null) {
+				Prewarmer.onPublish(slug);
+			}
 			if (data.getPart("addTrack") != null) {
 				res.sendRedirect(URLs.relative("release/"+escPathSeg(slug)+"/add-track"));
 			} else {
@@ -31,6 +31,7 @@ import org.slf4j.LoggerFactory;
 import com.unascribed.partyflow.data.QReleases;
 import com.unascribed.partyflow.handler.util.SimpleHandler;
 import com.unascribed.partyflow.handler.util.SimpleHandler.UrlEncodedPost;
+import com.unascribed.partyflow.logic.Prewarmer;
 import com.unascribed.partyflow.logic.SessionHelper;
 import com.unascribed.partyflow.logic.URLs;
 import com.unascribed.partyflow.handler.util.SimpleHandler.GetOrHead;
@@ -53,6 +54,7 @@ public class PublishReleaseHandler extends SimpleHandler implements GetOrHead, U
 				.assertCsrf(params.get("csrf"));
 		
 		if (QReleases.publish(slug, s.userId(), true)) {
+			Prewarmer.onPublish(slug);
 			res.sendRedirect(URLs.relative("release/"+escPathSeg(slug)));
 		} else {
 			res.sendRedirect(URLs.relative("release/"+escPathSeg(slug)+"?error=You're not allowed to do that"));
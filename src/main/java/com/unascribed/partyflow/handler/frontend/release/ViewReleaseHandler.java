@@ -39,6 +39,7 @@ import com.unascribed.partyflow.data.util.QBase;
 import com.unascribed.partyflow.handler.util.MustacheHandler;
 import com.unascribed.partyflow.handler.util.SimpleHandler;
 import com.unascribed.partyflow.handler.util.SimpleHandler.GetOrHead;
+import com.unascribed.partyflow.logic.Segmenter;
 import com.unascribed.partyflow.logic.SessionHelper;
 import com.unascribed.partyflow.util.Services;
 
@@ -61,9 +62,10 @@ public class ViewReleaseHandler extends SimpleHandler implements GetOrHead {
 			if (releaseOpt.isPresent()) {
 				var r = releaseOpt.get();
 				var _tracks = QTracks.get(r.releaseId());
+				var boundaries = Segmenter.boundaries(_tracks);
 				JsonArray _tracksJson = new JsonArray();
-				long durAccum = 0;
-				for (var t : _tracks) {
+				for (int i = 0; i < _tracks.size(); i++) {
+					var t = _tracks.get(i);
 					JsonObject obj = new JsonObject();
 					obj.addProperty("title", t.title());
 					obj.addProperty("subtitle", t.subtitle());
@@ -71,9 +73,8 @@ public class ViewReleaseHandler extends SimpleHandler implements GetOrHead {
 					obj.addProperty("art", t.art());
 					if (t.trackNumber().isPresent())
 						obj.addProperty("trackNumber", t.trackNumber().getAsInt());
-					obj.addProperty("start", durAccum/48000D);
-					durAccum += t.duration();
-					obj.addProperty("end", durAccum/48000D);
+					obj.addProperty("start", boundaries.get(i).start());
+					obj.addProperty("end", boundaries.get(i).end());
 					_tracksJson.add(obj);
 				}
 				res.setStatus(HTTP_200_OK);
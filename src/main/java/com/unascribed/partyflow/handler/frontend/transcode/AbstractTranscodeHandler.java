@@ -20,45 +20,51 @@
 package com.unascribed.partyflow.handler.frontend.transcode;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Types;
 import java.util.Map;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.server.InclusiveByteRange;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.unascribed.partyflow.Partyflow;
 import com.unascribed.partyflow.config.TranscodeFormat;
-import com.unascribed.partyflow.config.TranscodeFormat.ReplayGainData;
 import com.unascribed.partyflow.config.TranscodeFormat.Shortcut;
 import com.unascribed.partyflow.config.TranscodeFormat.Usage;
-import com.unascribed.partyflow.data.QReleases;
 import com.unascribed.partyflow.data.QTranscodes;
 import com.unascribed.partyflow.data.QTranscodes.FoundShortcut;
 import com.unascribed.partyflow.data.QTranscodes.FoundTranscode;
 import com.unascribed.partyflow.data.QTranscodes.TranscodeFindResult;
+import com.unascribed.partyflow.data.QTranscodes.TranscodeSource;
 import com.unascribed.partyflow.handler.util.SimpleHandler;
 import com.unascribed.partyflow.handler.util.UserVisibleException;
 import com.unascribed.partyflow.handler.util.SimpleHandler.GetOrHead;
+import com.unascribed.partyflow.logic.DownloadRecorder;
+import com.unascribed.partyflow.logic.Prewarmer;
 import com.unascribed.partyflow.logic.SessionHelper;
 import com.unascribed.partyflow.logic.SpecialTrack;
+import com.unascribed.partyflow.logic.TranscodeJobs;
+import com.unascribed.partyflow.logic.TranscodeJobs.Claim;
+import com.unascribed.partyflow.logic.TranscodeJobs.Inflight;
+import com.unascribed.partyflow.logic.TranscodeJobs.SharedStream;
 import com.unascribed.partyflow.logic.Transcoder;
+import com.unascribed.partyflow.logic.Transcoder.InProcessTranscode;
 import com.unascribed.partyflow.logic.URLs;
+import com.unascribed.partyflow.logic.WriteBack;
 import com.unascribed.partyflow.util.Services;
+import com.unascribed.partyflow.util.FairPriorityPool.TaskClass;
 
 import com.google.common.base.MoreObjects;
-import com.google.common.collect.HashBasedTable;
-import com.google.common.collect.Table;
-import com.google.common.collect.Tables;
 import com.google.common.hash.Hashing;
 import com.google.common.net.InetAddresses;
 
@@ -66,13 +72,15 @@ public abstract class AbstractTranscodeHandler extends SimpleHandler implements
 
 	private static final Logger log = LoggerFactory.getLogger(AbstractTranscodeHandler.class);
 
-	private static final Table<String, TranscodeFormat, Object> mutexes = Tables.synchronizedTable(HashBasedTable.create());
+	// in-process transcodes are mostly waiting on the client, so this is well above the core count
+	private static final int MAX_IN_PROCESS_STREAMS = Math.max(8, Runtime.getRuntime().availableProcessors()*4);
+	private static final long IN_PROCESS_WAIT_SECONDS = 15;
+	private static final Semaphore inProcessStreams = new Semaphore(MAX_IN_PROCESS_STREAMS, true);
 	
-	private final String kind, masterQuery;
+	private final String kind;
 	
-	protected AbstractTranscodeHandler(String kind, String masterQuery) {
+	protected AbstractTranscodeHandler(String kind) {
 		this.kind = kind;
-		this.masterQuery = masterQuery;
 	}
 
 	@Override
@@ -87,64 +95,17 @@ public abstract class AbstractTranscodeHandler extends SimpleHandler implements
 		TranscodeFormat format = TranscodeFormat.byPublicName(formatString)
 				.orElseThrow(() -> new UserVisibleException(HTTP_400_BAD_REQUEST, "Unrecognized format "+formatString));
 		var s = SessionHelper.get(req);
-		String permissionQuery = (s.isEmpty() ? "false" : "`releases`.`user_id` = ?");
 		try (Connection c = Partyflow.sql.getConnection()) {
 			String shortcutSource = null;
 			Shortcut shortcut = null;
-			String master;
-			String title;
-			String releaseTitle;
-			String creator;
-			String art;
-			String lyrics;
-			boolean published;
-			Long trackId;
-			Long releaseId;
-			Integer trackNumber;
-			ReplayGainData rgd;
-			int year;
 			var st = SpecialTrack.BY_SLUG.get(slug);
-			if ("track".equals(kind) && st != null) {
-				master = slug;
-				title = st.title();
-				releaseTitle = "Partyflow";
-				creator = st.artist();
-				art = null;
-				lyrics = null;
-				year = st.year();
-				published = true;
-				trackId = null;
-				releaseId = null;
-				trackNumber = null;
-				rgd = st.rg();
-			} else {
-				try (PreparedStatement ps = c.prepareStatement(masterQuery.replace("{}", permissionQuery))) {
-					ps.setString(1, slug);
-					if (s.isPresent()) ps.setInt(2, s.userId().getAsInt());
-					try (ResultSet rs = ps.executeQuery()) {
-						if (rs.first()) {
-							master = rs.getString("master");
-							title = rs.getString("title");
-							releaseTitle = rs.getString("release_title");
-							creator = rs.getString("creator");
-							published = rs.getBoolean("published");
-							releaseId = rs.getLong("release_id");
-							long trackIdL = rs.getLong("track_id");
-							trackId = rs.wasNull() ? null : trackIdL;
-							rgd = new ReplayGainData(rs.getInt("album_loudness")/10D, rs.getInt("track_loudness")/10D,
-									rs.getInt("album_peak")/10D, rs.getInt("track_peak")/10D);
-							year = rs.getInt("year");
-							art = rs.getString("art") == null ? rs.getString("fallback_art") : rs.getString("art");
-							lyrics = rs.getString("lyrics");
-							int trackNumberI = rs.getInt("track_number");
-							trackNumber = rs.wasNull() ? null : trackNumberI;
-						} else {
-							res.sendError(HTTP_404_NOT_FOUND);
-							return;
-						}
-					}
-				}
+			var srcOpt = QTranscodes.findSource(c, kind, slug, s);
+			if (srcOpt.isEmpty()) {
+				res.sendError(HTTP_404_NOT_FOUND);
+				return;
 			}
+			TranscodeSource src = srcOpt.get();
+			String master = src.master();
 			if (master == null) {
 				res.sendError(HTTP_409_CONFLICT);
 				return;
@@ -157,10 +118,13 @@ public abstract class AbstractTranscodeHandler extends SimpleHandler implements
 				return;
 			}
 			
-			if (format.usage() == Usage.DOWNLOAD && !prepare && releaseId != null) {
+			String range = req.getHeader("Range");
+			// resuming a download isn't a new download
+			boolean resuming = range != null && !range.trim().startsWith("bytes=0-");
+			if (format.usage() == Usage.DOWNLOAD && !prepare && !resuming && src.releaseId() != null) {
 				try {
 					var addr = InetAddresses.forString(req.getRemoteAddr().replace("[", "").replace("]", ""));
-					QReleases.maybeRecordDownload(releaseId, addr);
+					DownloadRecorder.releaseDownloaded(src.releaseId(), addr);
 				} catch (IllegalArgumentException e) {
 					log.warn("Exception recording download", e);
 				}
@@ -188,6 +152,29 @@ public abstract class AbstractTranscodeHandler extends SimpleHandler implements
 				res.getOutputStream().close();
 				return;
 			}
+			if (!prepare && shortcut == null && st == null && !format.cache()) {
+				// reading the master's headers waits its turn like any other transcode would, but the
+				// streaming after that goes as fast as the client reads and mustn't hold a pool slot
+				var opened = Services.transcodePool.submit(TaskClass.DOWNLOAD, req.getRemoteAddr(),
+						() -> Transcoder.openInProcess(format, master, src.title(), src.releaseTitle(), src.creator(),
+								src.art(), src.lyrics(), src.year(), src.trackNumber() == null ? -1 : src.trackNumber(), src.rgd()));
+				InProcessTranscode ipt = await(opened);
+				if (ipt != null) {
+					try (ipt) {
+						if (!inProcessStreams.tryAcquire(IN_PROCESS_WAIT_SECONDS, TimeUnit.SECONDS)) {
+							res.setHeader("Retry-After", "5");
+							res.sendError(HTTP_503_SERVICE_UNAVAILABLE);
+							return;
+						}
+						try {
+							serveInProcess(format, ipt, req, res, etag);
+						} finally {
+							inProcessStreams.release();
+						}
+					}
+					return;
+				}
+			}
 			boolean direct = !prepare && format.direct();
 			boolean cache = format.cache();
 			if (prepare && !cache) {
@@ -196,87 +183,134 @@ public abstract class AbstractTranscodeHandler extends SimpleHandler implements
 				res.getOutputStream().close();
 				return;
 			}
-			if (direct) {
-				log.debug("Streaming {} from master...", format, st == null ? "master" : "built-in track \""+st.title()+"\"");
-			} else if (shortcut == null) {
-				log.debug("Transcoding to {} from {}...", format, st == null ? "master" : "built-in track \""+st.title()+"\"");
-			} else {
-				log.debug("Remuxing to {} from {}...", format, shortcut.source());
+			if (cache && format.usage() == Usage.STREAM && "track".equals(kind) && src.trackId() != null) {
+				// nobody's listened to this yet, so they'll probably want the rest of the release too
+				Prewarmer.onFirstPlay(src.releaseId());
 			}
 			
-			if (cache) {
-				Object mutex = mutexes.get(master, format);
-				if (mutex != null) {
-					while (mutexes.get(master, format) == mutex) {
-						synchronized (mutex) {
-							mutex.wait();
-						}
-					}
+			if (cache && !direct) {
+				// nothing to stream, so let the job queue take care of it
+				var existing = TranscodeJobs.get(master, format);
+				Inflight inf = existing.orElse(null);
+				if (inf == null) {
+					log.debug("Queueing {} of {} {} to {}", shortcut == null ? "transcode" : "remux", kind, slug, format);
+					inf = TranscodeJobs.enqueue(src, format, TranscodeJobs.PRIORITY_INTERACTIVE, req.getRemoteAddr());
+				}
+				String blobNameRes = inf.blob().get();
+				res.setHeader("Transcode-Status", existing.isPresent() ? "SHARED" : shortcut != null ? "SHORTCUT" : "FRESH");
+				if (prepare) {
+					res.setStatus(HTTP_204_NO_CONTENT);
+					res.getOutputStream().close();
+					res.setHeader("Transcode-Result", WriteBack.url(blobNameRes));
+				} else {
+					res.sendRedirect(WriteBack.url(blobNameRes));
 				}
+				return;
 			}
 			
-			Object mutex = new Object();
-			if (cache) mutexes.put(master, format, mutex);
-			final Shortcut fshortcut = shortcut;
-			final String fshortcutSource = shortcutSource;
+			Claim claim = cache ? TranscodeJobs.claim(src, format) : null;
+			if (claim != null && !claim.owner()) {
+				// someone else is already working on this; tag along instead of doing it again
+				SharedStream ss = claim.inflight().stream().get();
+				InputStream in = ss == null ? null : ss.buffer().newReader();
+				if (in != null) {
+					log.debug("Joining in-flight transcode of {} {} to {}", kind, slug, format);
+					res.setHeader("Transcode-Status", "DIRECT, SHARED");
+					res.setHeader("Content-Type", format.mimeType());
+					res.setHeader("Content-Disposition", "attachment; filename="+ss.filename()+"; filename*=utf-8''"+ss.filename());
+					res.setStatus(HTTP_200_OK);
+					try (in; var out = res.getOutputStream()) {
+						in.transferTo(out);
+					}
+					return;
+				}
+				String blobNameRes = claim.inflight().blob().get();
+				res.setHeader("Transcode-Status", "SHARED");
+				res.sendRedirect(WriteBack.url(blobNameRes));
+				return;
+			}
 			
-			Callable<String> transcoder = () -> {
-				return Transcoder.performTranscode(format, kind, slug, MoreObjects.firstNonNull(fshortcutSource, master), title, releaseTitle, creator, art, lyrics, year,
-						trackNumber == null ? -1 : trackNumber, rgd, cache, published, fshortcut, direct ? (filename) -> {
+			log.debug("Streaming {} from {}...", format, st == null ? "master" : "built-in track \""+st.title()+"\"");
+			Inflight ours = claim == null ? null : claim.inflight();
+			String input = MoreObjects.firstNonNull(shortcutSource, master);
+			Shortcut sc = shortcut;
+			// FFmpeg runs for as long as the client takes to read, so this takes a pool slot like
+			// any other transcode; streams get to go ahead of everything else
+			var cls = format.usage() == Usage.STREAM ? TaskClass.STREAM : TaskClass.DOWNLOAD;
+			try {
+				var tr = await(Services.transcodePool.submit(cls, req.getRemoteAddr(), () -> Transcoder.performTranscode(format, kind, slug, input,
+						src.title(), src.releaseTitle(), src.creator(), src.art(), src.lyrics(), src.year(),
+						src.trackNumber() == null ? -1 : src.trackNumber(), src.rgd(), cache, src.published(), sc, (filename) -> {
 					res.setHeader("Transcode-Status", "DIRECT"+(cache ? ", WILL-CACHE" : ""));
 					res.setHeader("Content-Type", format.mimeType());
 					res.setHeader("Content-Disposition", "attachment; filename="+filename+"; filename*=utf-8''"+filename);
 					res.setStatus(HTTP_200_OK);
 					return res.getOutputStream();
-				} : null).blob();
-			};
-
-			String blobNameRes;
-			synchronized (mutex) {
-				if (direct) {
-					try {
-						blobNameRes = transcoder.call();
-					} catch (Exception e) {
-						throw new ServletException(e);
-					}
-					if (!cache) return;
-				} else {
-					blobNameRes = Services.transcodePool.submit(transcoder).get();
-				}
-				try (PreparedStatement ps = c.prepareStatement("INSERT INTO `transcodes` "
-						+ "(`master`, `format`, `file`, `track_id`, `release_id`, `created_at`, `last_downloaded`) "
-						+ "VALUES (?, ?, ?, ?, ?, NOW(), NOW());")) {
-					ps.setString(1, master);
-					ps.setString(2, format.name());
-					ps.setString(3, blobNameRes);
-					if (trackId == null) {
-						ps.setNull(4, Types.BIGINT);
-					} else {
-						ps.setLong(4, trackId);
-					}
-					if (releaseId == null) {
-						ps.setNull(5, Types.BIGINT);
+				}, ours == null ? null : (filename, buf) -> ours.stream().complete(new SharedStream(filename, buf)))));
+				if (ours != null) {
+					if (tr.blob() == null) {
+						// the cache copy was dropped; let the job be picked up again in the background
+						TranscodeJobs.fail(master, format, ours, new IOException("Cache copy was dropped"));
 					} else {
-						ps.setLong(5, releaseId);
+						TranscodeJobs.stored(src, format, ours, tr);
 					}
-					ps.execute();
-				}
-				mutexes.row(master).remove(format, mutex);
-				mutex.notifyAll();
-			}
-			if (!direct) {
-				res.setHeader("Transcode-Status", fshortcut != null ? "SHORTCUT" : "FRESH");
-				if (prepare) {
-					res.setStatus(HTTP_204_NO_CONTENT);
-					res.getOutputStream().close();
-					res.setHeader("Transcode-Result", URLs.blob(blobNameRes));
-				} else {
-					res.sendRedirect(URLs.blob(blobNameRes));
 				}
+			} catch (Throwable t) {
+				if (ours != null) TranscodeJobs.fail(master, format, ours, t);
+				throw t;
 			}
 		} catch (SQLException | InterruptedException | ExecutionException e) {
 			throw new ServletException(e);
 		}
 	}
 
+	private static <T> T await(Future<T> future) throws IOException, ServletException, InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException ioe) throw ioe;
+			if (e.getCause() instanceof ServletException se) throw se;
+			if (e.getCause() instanceof RuntimeException re) throw re;
+			if (e.getCause() instanceof Error err) throw err;
+			throw new ServletException(e.getCause());
+		}
+	}
+
+	private void serveInProcess(TranscodeFormat format, InProcessTranscode ipt, HttpServletRequest req, HttpServletResponse res,
+			String etag) throws IOException {
+		long length = ipt.length();
+		res.setHeader("Accept-Ranges", "bytes");
+		res.setHeader("Transcode-Status", "DIRECT, IN-PROCESS");
+		res.setHeader("Content-Type", format.mimeType());
+		String filename = Transcoder.encodeFilename(ipt.filename());
+		res.setHeader("Content-Disposition", "attachment; filename="+filename+"; filename*=utf-8''"+filename);
+		var rangesHdr = req.getHeaders("Range");
+		String ifRange = req.getHeader("If-Range");
+		InclusiveByteRange range = null;
+		if (rangesHdr != null && rangesHdr.hasMoreElements() && (ifRange == null || ifRange.equals(etag))) {
+			var ranges = InclusiveByteRange.satisfiableRanges(rangesHdr, length);
+			if (ranges == null || ranges.isEmpty()) {
+				res.setHeader("Content-Range", InclusiveByteRange.to416HeaderRangeString(length));
+				res.sendError(HTTP_416_RANGE_NOT_SATISFIABLE);
+				return;
+			}
+			// multiple ranges aren't worth the trouble; sending everything is allowed
+			if (ranges.size() == 1) range = ranges.get(0);
+		}
+		long start = 0;
+		long count = length;
+		if (range != null) {
+			start = range.getFirst();
+			count = range.getSize();
+			res.setHeader("Content-Range", range.toHeaderRangeString(length));
+			res.setStatus(HTTP_206_PARTIAL_CONTENT);
+		} else {
+			res.setStatus(HTTP_200_OK);
+		}
+		res.setContentLengthLong(count);
+		try (var out = res.getOutputStream()) {
+			ipt.writeTo(out, start, count);
+		}
+	}
+
 }
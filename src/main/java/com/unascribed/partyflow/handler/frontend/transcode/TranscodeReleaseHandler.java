@@ -22,16 +22,7 @@ package com.unascribed.partyflow.handler.frontend.transcode;
 public class TranscodeReleaseHandler extends AbstractTranscodeHandler {
 
 	public TranscodeReleaseHandler() {
-		super("release", """
-				SELECT `concat_master` AS `master`, `title`, NULL as `release_title`, `users`.`display_name` AS `creator`,
-						`releases`.`published` AS `published`, `release_id`, NULL as `track_id`,
-						`releases`.`peak` AS `album_peak`, `releases`.`loudness` AS `album_loudness`,
-						`releases`.`peak` AS `track_peak`, `releases`.`loudness` AS `track_loudness`,
-						`art`, NULL AS `fallback_art`, NULL AS `track_number`, NULL AS `lyrics`,
-						EXTRACT(YEAR FROM `releases`.`created_at`) AS `year`
-				FROM `releases`
-					JOIN `users` ON `users`.`user_id` = `releases`.`user_id`
-				WHERE `slug` = ? AND (`published` = true OR {});""");
+		super("release");
 	}
 
 }
@@ -0,0 +1,96 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.handler.frontend.transcode;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Map;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import com.unascribed.partyflow.config.TranscodeFormat;
+import com.unascribed.partyflow.data.QTracks;
+import com.unascribed.partyflow.data.QTranscodes;
+import com.unascribed.partyflow.data.util.QBase;
+import com.unascribed.partyflow.handler.util.SimpleHandler;
+import com.unascribed.partyflow.handler.util.SimpleHandler.GetOrHead;
+import com.unascribed.partyflow.handler.util.UserVisibleException;
+import com.unascribed.partyflow.logic.Segmenter;
+import com.unascribed.partyflow.logic.SessionHelper;
+import com.unascribed.partyflow.logic.URLs;
+
+import com.google.common.primitives.Ints;
+
+public class TranscodeReleaseSegmentHandler extends SimpleHandler implements GetOrHead {
+
+	@Override
+	public void getOrHead(String slug, HttpServletRequest req, HttpServletResponse res, boolean head)
+			throws IOException, ServletException, SQLException {
+		Map<String, String> query = parseQuery(req);
+		String formatString = query.get("format");
+		if (formatString == null) {
+			throw new UserVisibleException(HTTP_400_BAD_REQUEST, "Format is required");
+		}
+		TranscodeFormat format = TranscodeFormat.byPublicName(formatString)
+				.filter(TranscodeFormat::segmented)
+				.orElseThrow(() -> new UserVisibleException(HTTP_400_BAD_REQUEST, "Unrecognized or unsegmented format "+formatString));
+		Integer index = query.containsKey("index") ? Ints.tryParse(query.get("index")) : null;
+		if (index == null || index < 0) {
+			throw new UserVisibleException(HTTP_400_BAD_REQUEST, "Segment index is required");
+		}
+		var s = SessionHelper.get(req);
+		try (var c = QBase.begin()) {
+			var srcOpt = QTranscodes.findSource(c, "release", slug, s);
+			if (srcOpt.isEmpty()) {
+				res.sendError(HTTP_404_NOT_FOUND);
+				return;
+			}
+			var src = srcOpt.get();
+			if (src.master() == null) {
+				res.sendError(HTTP_409_CONFLICT);
+				return;
+			}
+			long total = Segmenter.totalSamples(QTracks.get(src.releaseId()));
+			if (index >= Segmenter.segmentCount(total)) {
+				res.sendError(HTTP_404_NOT_FOUND);
+				return;
+			}
+			String existing = QTranscodes.findSegment(c, src.master(), Segmenter.key(format, index));
+			if (existing != null) {
+				res.setHeader("Transcode-Status", "CACHED");
+				res.sendRedirect(URLs.blob(existing));
+				return;
+			}
+			if (head) {
+				res.setStatus(HTTP_204_NO_CONTENT);
+				res.setHeader("Transcode-Status", "UNAVAILABLE");
+				res.setHeader("Comment", "Transcodes are not performed in response to HEAD requests");
+				res.getOutputStream().close();
+				return;
+			}
+			String blob = Segmenter.getSegment(c, src, format, index, total, req.getRemoteAddr());
+			res.setHeader("Transcode-Status", "FRESH");
+			res.sendRedirect(URLs.blob(blob));
+		}
+	}
+
+}
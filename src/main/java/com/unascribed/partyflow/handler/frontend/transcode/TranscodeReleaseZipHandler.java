@@ -50,19 +50,23 @@ import com.unascribed.partyflow.Partyflow;
 import com.unascribed.partyflow.config.TranscodeFormat;
 import com.unascribed.partyflow.config.TranscodeFormat.ReplayGainData;
 import com.unascribed.partyflow.config.TranscodeFormat.Shortcut;
-import com.unascribed.partyflow.data.QReleases;
 import com.unascribed.partyflow.data.QTranscodes;
 import com.unascribed.partyflow.data.QTranscodes.FoundShortcut;
 import com.unascribed.partyflow.data.QTranscodes.FoundTranscode;
 import com.unascribed.partyflow.data.QTranscodes.TranscodeFindResult;
+import com.unascribed.partyflow.data.QTranscodes.TranscodeSource;
 import com.unascribed.partyflow.handler.util.SimpleHandler;
 import com.unascribed.partyflow.handler.util.UserVisibleException;
 import com.unascribed.partyflow.handler.util.SimpleHandler.GetOrHead;
+import com.unascribed.partyflow.logic.DownloadRecorder;
 import com.unascribed.partyflow.logic.SessionHelper;
 import com.unascribed.partyflow.logic.Storage;
+import com.unascribed.partyflow.logic.TranscodeJobs;
 import com.unascribed.partyflow.logic.Transcoder;
 import com.unascribed.partyflow.logic.Transcoder.TranscodeResult;
+import com.unascribed.partyflow.logic.WriteBack;
 import com.unascribed.partyflow.util.Services;
+import com.unascribed.partyflow.util.FairPriorityPool.TaskClass;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.MoreObjects;
@@ -71,6 +75,8 @@ import com.google.common.net.InetAddresses;
 public class TranscodeReleaseZipHandler extends SimpleHandler implements GetOrHead {
 
 	private static final Logger log = LoggerFactory.getLogger(TranscodeReleaseZipHandler.class);
+	
+	private record CollectResult(TranscodeResult tr, long trackId, String master, File directFile) {}
 
 	@Override
 	public void getOrHead(String slug, HttpServletRequest req, HttpServletResponse res, boolean head)
@@ -95,7 +101,6 @@ public class TranscodeReleaseZipHandler extends SimpleHandler implements GetOrHe
 				res.getOutputStream().close();
 				return;
 			}
-			record CollectResult(TranscodeResult tr, boolean isNew, long trackId, String master, File directFile) {}
 			List<File> tmpFiles = Collections.synchronizedList(new ArrayList<>());
 			try {
 				List<Future<CollectResult>> futures = new ArrayList<>();
@@ -146,26 +151,10 @@ public class TranscodeReleaseZipHandler extends SimpleHandler implements GetOrHe
 									albumPeak, rs.getInt("peak")/10D);
 							int year = rs.getInt("year");
 							int trackNumber = rs.getInt("track_number");
-							TranscodeFindResult fr = QTranscodes.findExistingTranscode(c, true, "track", rs.getString("slug"), format, master);
+							String trackSlug = rs.getString("slug");
+							TranscodeFindResult fr = QTranscodes.findExistingTranscode(c, true, "track", trackSlug, format, master);
 							if (fr instanceof FoundTranscode ft) {
-								futures.add(Services.genericPool.submit(() -> {
-									BlobMetadata meta = Storage.blobMetadata(ft.blob());
-									String filename;
-									if (meta.getContentMetadata().getContentDisposition() != null) {
-										String disp = meta.getContentMetadata().getContentDisposition();
-										String pfx = "filename*=utf-8''";
-										int idx = disp.indexOf(pfx);
-										if (idx != -1) {
-											filename = URLDecoder.decode(disp.substring(idx+pfx.length()), Charsets.UTF_8);
-										} else {
-											filename = meta.getName();
-										}
-									} else {
-										filename = meta.getName();
-									}
-									return new CollectResult(new TranscodeResult(ft.blob(), meta.getSize() == null ? -1 : meta.getSize(), filename),
-											false, trackId, master, null);
-								}));
+								futures.add(Services.genericPool.submit(() -> collectStored(ft.blob(), trackId, master)));
 							} else {
 								allCached = false;
 								String shortcutSource;
@@ -177,44 +166,34 @@ public class TranscodeReleaseZipHandler extends SimpleHandler implements GetOrHe
 									shortcutSource = null;
 									shortcut = null;
 								}
-								futures.add(Services.transcodePool.submit(() -> {
-									if (format.direct()) {
+								if (format.direct()) {
+									futures.add(Services.transcodePool.submit(TaskClass.ZIP, req.getRemoteAddr(), () -> {
 										File tmp = File.createTempFile("releasezip-", ".dat", Transcoder.WORK_DIR);
 										tmpFiles.add(tmp);
 										return new CollectResult(Transcoder.performTranscode(format, "release-zip", slug, MoreObjects.firstNonNull(shortcutSource, master),
 													title, releaseTitle, creator, art, lyrics, year, trackNumber, rgd,
 													false, published, shortcut, (fname) -> new FileOutputStream(tmp)),
-												true, trackId, master, tmp);
-									}
-									return new CollectResult(Transcoder.performTranscode(format, "release-zip", slug, MoreObjects.firstNonNull(shortcutSource, master),
-												title, releaseTitle, creator, art, lyrics, year, trackNumber, rgd,
-												true, published, shortcut, null),
-											true, trackId, master, null);
-								}));
+												trackId, master, tmp);
+									}));
+								} else {
+									var src = new TranscodeSource("track", trackSlug, master, title, releaseTitle, creator, art, lyrics,
+											published, trackId, releaseId, trackNumber, rgd, year);
+									// the zip is read back out of storage, so a written-back transcode has to land first
+									futures.add(TranscodeJobs.enqueue(src, format, TranscodeJobs.PRIORITY_DOWNLOAD, req.getRemoteAddr()).blob()
+											.thenCompose(blob -> WriteBack.whenStored(blob).thenApply(v -> blob))
+											.thenApplyAsync(blob -> collectStored(blob, trackId, master), Services.genericPool));
+								}
 							}
 						}
 					}
 				}
 				List<CollectResult> results = new ArrayList<>();
 				for (var f : futures) {
-					CollectResult cr;
 					try {
-						cr = f.get();
+						results.add(f.get());
 					} catch (InterruptedException | ExecutionException e) {
 						throw new ServletException(e);
 					}
-					if (cr.isNew() && !format.direct()) {
-						try (PreparedStatement ps = c.prepareStatement("INSERT INTO `transcodes` (`master`, `format`, `file`, `track_id`, `release_id`, `created_at`, `last_downloaded`) "
-								+ "VALUES (?, ?, ?, ?, ?, NOW(), NOW());")) {
-							ps.setString(1, cr.master());
-							ps.setString(2, format.name());
-							ps.setString(3, cr.tr().blob());
-							ps.setLong(4, cr.trackId());
-							ps.setLong(5, releaseId);
-							ps.execute();
-						}
-					}
-					results.add(cr);
 				}
 				
 				if (prepare) {
@@ -226,7 +205,7 @@ public class TranscodeReleaseZipHandler extends SimpleHandler implements GetOrHe
 
 				try {
 					var addr = InetAddresses.forString(req.getRemoteAddr());
-					QReleases.maybeRecordDownload(slug, addr);
+					DownloadRecorder.releaseDownloaded(slug, addr);
 				} catch (IllegalArgumentException e) {}
 				
 				String filename = creator+" - "+releaseTitle+".zip";
@@ -269,4 +248,23 @@ public class TranscodeReleaseZipHandler extends SimpleHandler implements GetOrHe
 		}
 	}
 
+	private static CollectResult collectStored(String blob, long trackId, String master) {
+		BlobMetadata meta = Storage.blobMetadata(blob);
+		String filename;
+		if (meta.getContentMetadata().getContentDisposition() != null) {
+			String disp = meta.getContentMetadata().getContentDisposition();
+			String pfx = "filename*=utf-8''";
+			int idx = disp.indexOf(pfx);
+			if (idx != -1) {
+				filename = URLDecoder.decode(disp.substring(idx+pfx.length()), Charsets.UTF_8);
+			} else {
+				filename = meta.getName();
+			}
+		} else {
+			filename = meta.getName();
+		}
+		return new CollectResult(new TranscodeResult(blob, meta.getSize() == null ? -1 : meta.getSize(), filename, 0),
+				trackId, master, null);
+	}
+
 }
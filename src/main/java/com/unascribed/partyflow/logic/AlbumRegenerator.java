@@ -0,0 +1,278 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.logic;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.unascribed.partyflow.Partyflow;
+import com.unascribed.partyflow.data.QTracks;
+import com.unascribed.partyflow.util.Services;
+import com.unascribed.partyflow.util.FairPriorityPool.TaskClass;
+import com.unascribed.partyflow.util.audio.FlacDecoder;
+import com.unascribed.partyflow.util.audio.LoudnessHistogram;
+import com.unascribed.partyflow.util.audio.LoudnessMeter;
+
+/**
+ * Updates a release's album file and loudness after its tracks change. The album file is a
+ * {@link VirtualConcat}, so this is normally quick, but tracks from before loudness histograms
+ * were kept need measuring, which is done on the transcode pool so a backlog of them can't
+ * swamp the machine. Requests are coalesced per release: an update only starts once the
+ * release has been left alone for a moment, only one runs for a release at a time, and one that
+ * finds its release was changed again while it ran throws its result away rather than racing the
+ * update that follows it.
+ */
+public class AlbumRegenerator {
+
+	private static final Logger log = LoggerFactory.getLogger(AlbumRegenerator.class);
+
+	/**
+	 * How long a release must go without changes before it's updated. Long enough to cover
+	 * someone deleting tracks one after another.
+	 */
+	private static final long QUIET_MILLIS = 2_000;
+
+	private static final class State {
+		/**
+		 * Bumped by every request. An update is stale if this moved while it ran.
+		 */
+		private long generation;
+		private ScheduledFuture<?> scheduled;
+		private boolean running;
+	}
+
+	private static final Map<Long, State> states = new HashMap<>();
+
+	/**
+	 * Note that a release's tracks have changed, and its album file needs rebuilding.
+	 */
+	public static void request(long releaseId) {
+		synchronized (states) {
+			var st = states.computeIfAbsent(releaseId, k -> new State());
+			st.generation++;
+			// whatever's running will see it's stale and schedule another when it's done
+			if (st.running) return;
+			schedule(releaseId, st);
+		}
+	}
+
+	private static void schedule(long releaseId, State st) {
+		if (st.scheduled != null) st.scheduled.cancel(false);
+		long gen = st.generation;
+		st.scheduled = Services.cron.schedule(() -> start(releaseId, gen), QUIET_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	private static void start(long releaseId, long gen) {
+		synchronized (states) {
+			var st = states.get(releaseId);
+			// superseded by a later request that's already rescheduled us
+			if (st == null || st.running || st.generation != gen) return;
+			st.scheduled = null;
+			st.running = true;
+		}
+		Services.genericPool.execute(() -> {
+			try {
+				regenerate(releaseId, gen);
+			} finally {
+				synchronized (states) {
+					var st = states.get(releaseId);
+					st.running = false;
+					if (st.generation != gen) {
+						schedule(releaseId, st);
+					} else {
+						states.remove(releaseId);
+					}
+				}
+			}
+		});
+	}
+
+	private static boolean isStale(long releaseId, long gen) {
+		synchronized (states) {
+			var st = states.get(releaseId);
+			return st == null || st.generation != gen;
+		}
+	}
+
+	private static void regenerate(long releaseId, long gen) {
+		try (Connection c = Partyflow.sql.getConnection()) {
+			log.debug("Regenerating album file for release ID {}", releaseId);
+			var masters = QTracks.getMasters(releaseId);
+			if (masters.isEmpty()) {
+				log.debug("Trivial case: No tracks. Empty concat.");
+				updateConcatMaster(c, releaseId, -70, 0, null);
+				return;
+			}
+			var album = measureAlbum(releaseId);
+			if (isStale(releaseId, gen)) {
+				log.debug("Release ID {} changed again while it was being measured; skipping", releaseId);
+				return;
+			}
+			if (masters.size() == 1) {
+				log.debug("Trivial case: One track. Concat = sole track.");
+				updateConcatMaster(c, releaseId, album.loudness(), album.peak(), masters.get(0).master());
+			} else {
+				updateConcatMaster(c, releaseId, album.loudness(), album.peak(), VirtualConcat.name(releaseId, masters));
+			}
+		} catch (Throwable e) {
+			log.warn("Failed to regenerate album file for release ID {}", releaseId, e);
+		}
+	}
+
+	private record AlbumLoudness(double loudness, double peak) {}
+	
+	/**
+	 * Work out a release's loudness by merging the gating histograms of its tracks, rather than
+	 * measuring the whole album again. Tracks from before histograms were kept get their masters
+	 * measured once, and the result saved for next time.
+	 */
+	private static AlbumLoudness measureAlbum(long releaseId) throws SQLException, IOException {
+		var album = new LoudnessHistogram();
+		double peak = LoudnessHistogram.FLOOR;
+		for (var t : QTracks.getLoudness(releaseId)) {
+			LoudnessHistogram h = null;
+			if (t.histogram() != null) {
+				try {
+					h = LoudnessHistogram.fromBytes(t.histogram());
+				} catch (IllegalArgumentException e) {
+					log.warn("Discarding corrupt loudness histogram for track {}", t.trackId(), e);
+				}
+			}
+			if (h == null) {
+				log.debug("Measuring loudness of track {} for the first time", t.trackId());
+				// decoding a whole master is real work, so it takes its turn with everything else
+				try {
+					h = Services.transcodePool.submit(TaskClass.INGEST, "backfill", () -> {
+						try (var p = Storage.getBlob(t.master()).getPayload();
+								var dec = new FlacDecoder(p.openStream())) {
+							return LoudnessMeter.measure(dec).histogram();
+						}
+					}).get();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException ioe) throw ioe;
+					throw new IOException(e.getCause());
+				}
+				QTracks.setLoudnessHistogram(t.trackId(), h.toBytes());
+			}
+			album.merge(h);
+			peak = Math.max(peak, t.peak()/10D);
+		}
+		return new AlbumLoudness(album.integrated(), peak);
+	}
+
+	/**
+	 * Replace a stored album file from before concatenations were virtual with a virtual one.
+	 * The stored file's loudness was measured when it was made and the tracks haven't changed
+	 * since, so nothing is measured again; tracks missing histograms get them whenever the
+	 * release next changes.
+	 */
+	public static void virtualize(long releaseId, String oldBlob) {
+		try {
+			var masters = QTracks.getMasters(releaseId);
+			if (masters.size() < 2) {
+				// nothing to measure either way
+				request(releaseId);
+				return;
+			}
+			int n;
+			try (var c = Partyflow.sql.getConnection();
+					PreparedStatement ps = c.prepareStatement("UPDATE `releases` SET `concat_master` = ? WHERE `release_id` = ? AND `concat_master` = ?;")) {
+				ps.setString(1, VirtualConcat.name(releaseId, masters));
+				ps.setLong(2, releaseId);
+				ps.setString(3, oldBlob);
+				n = ps.executeUpdate();
+			}
+			// if it changed under us, whatever changed it has requested a regeneration already
+			if (n > 0) {
+				log.trace("Deleting {}", oldBlob);
+				Storage.removeBlob(oldBlob);
+			}
+		} catch (Throwable e) {
+			log.warn("Failed to replace stored album file for release ID {}", releaseId, e);
+		}
+	}
+
+	/**
+	 * @return whether the given {@code concat_master} is a stored file left over from before
+	 * 		concatenations were virtual
+	 */
+	public static boolean isMaterialized(String concatMaster) {
+		return concatMaster != null && concatMaster.startsWith("concats/");
+	}
+
+	/**
+	 * @return false if the release no longer exists
+	 */
+	private static boolean updateConcatMaster(Connection c, long releaseId, double loudness, double peak, String blobName) throws SQLException {
+		try {
+			c.setAutoCommit(false);
+			boolean committed = false;
+			String oldBlob = null;
+			try {
+				try (PreparedStatement ps = c.prepareStatement("SELECT `concat_master` FROM `releases` WHERE `release_id` = ?;")) {
+					ps.setLong(1, releaseId);
+					try (ResultSet rs = ps.executeQuery()) {
+						if (rs.first()) {
+							oldBlob = rs.getString("concat_master");
+						}
+					}
+				}
+				boolean success = false;
+				try (PreparedStatement ps = c.prepareStatement("UPDATE `releases` SET `concat_master` = ?, `loudness` = ?, `peak` = ? WHERE `release_id` = ?;")) {
+					ps.setString(1, blobName);
+					ps.setInt(2, (int)(loudness*10));
+					ps.setInt(3, (int)(peak*10));
+					ps.setLong(4, releaseId);
+					success = (ps.executeUpdate() > 0);
+				}
+				c.commit();
+				committed = true;
+				log.debug("Processed concatenation successfully.\nAlbum loudness: {}LUFS, album peak: {}dBFS", loudness, peak);
+				// only concatenations from before they were virtual are ours to delete; a single-track
+				// release's "concat" is just that track's master
+				if (success && isMaterialized(oldBlob)) {
+					log.trace("Deleting {}", oldBlob);
+					Storage.removeBlob(oldBlob);
+				}
+				return success;
+			} finally {
+				if (!committed) {
+					c.rollback();
+				}
+			}
+		} finally {
+			c.setAutoCommit(true);
+		}
+	}
+
+}
@@ -0,0 +1,228 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.logic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Pattern;
+
+import org.jclouds.blobstore.domain.Blob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.unascribed.partyflow.util.Commands;
+import com.unascribed.partyflow.util.MoreByteStreams;
+import com.unascribed.partyflow.util.Processes;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Keeps local copies of recently used cover art, so that transcoding every track of a release
+ * doesn't fetch the same art from storage (and run ImageMagick on it, for Ogg) once per track.
+ * Entries are keyed by blob name; art blobs get a fresh name whenever art is replaced, and
+ * removing a blob from {@link Storage} invalidates its entry.
+ */
+public class ArtCache {
+
+	private static final Logger log = LoggerFactory.getLogger(ArtCache.class);
+
+	private static final File DIR = new File(Transcoder.WORK_DIR, "art");
+	private static final Pattern MAGICK_SIZE_PATTERN = Pattern.compile("([0-9]+)x([0-9]+)");
+
+	private static final Cache<String, Entry> cache = CacheBuilder.newBuilder()
+			.maximumSize(64)
+			.removalListener((RemovalListener<String, Entry>)n -> n.getValue().evict())
+			.build();
+
+	static {
+		// anything left over is from a previous run, and nobody knows about it anymore
+		var leftovers = DIR.listFiles();
+		if (leftovers != null) {
+			for (var f : leftovers) {
+				f.delete();
+			}
+		}
+	}
+
+	private static class MissingArtException extends Exception {}
+
+	/**
+	 * A local copy of an art blob. The file is deleted once the entry has been evicted and every
+	 * handle to it has been closed.
+	 */
+	private static class Entry {
+		private final String name;
+		private final File file;
+		private final String mimeType;
+
+		private int refs = 0;
+		private boolean evicted = false;
+
+		private boolean pictureComputed = false;
+		private String pictureBlock;
+
+		Entry(String name, File file, String mimeType) {
+			this.name = name;
+			this.file = file;
+			this.mimeType = mimeType;
+		}
+
+		synchronized boolean acquire() {
+			if (evicted) return false;
+			refs++;
+			return true;
+		}
+
+		synchronized void release() {
+			refs--;
+			if (refs == 0 && evicted) file.delete();
+		}
+
+		synchronized void evict() {
+			evicted = true;
+			if (refs == 0) file.delete();
+		}
+
+		synchronized String pictureBlock() throws IOException {
+			if (!pictureComputed) {
+				pictureBlock = computePictureBlock(name, file, mimeType);
+				pictureComputed = true;
+			}
+			return pictureBlock;
+		}
+	}
+
+	/**
+	 * A claim on a cached art file, which keeps it from being deleted until closed.
+	 */
+	public static final class Handle implements AutoCloseable {
+		private final Entry entry;
+		private boolean closed = false;
+
+		private Handle(Entry entry) {
+			this.entry = entry;
+		}
+
+		public File file() {
+			return entry.file;
+		}
+
+		public String mimeType() {
+			return entry.mimeType;
+		}
+
+		/**
+		 * @return the base64 FLAC picture block for this art, as used for Ogg's
+		 * 		{@code METADATA_BLOCK_PICTURE}, or null if ImageMagick couldn't identify it
+		 */
+		public String pictureBlock() throws IOException {
+			return entry.pictureBlock();
+		}
+
+		@Override
+		public void close() {
+			if (closed) return;
+			closed = true;
+			entry.release();
+		}
+	}
+
+	/**
+	 * @return a handle to a local copy of the given art blob, or null if it doesn't exist
+	 */
+	public static Handle get(String art) throws IOException {
+		while (true) {
+			Entry e;
+			try {
+				e = cache.get(art, () -> load(art));
+			} catch (ExecutionException | UncheckedExecutionException ex) {
+				if (ex.getCause() instanceof MissingArtException) return null;
+				if (ex.getCause() instanceof IOException ioe) throw ioe;
+				throw new IOException(ex.getCause());
+			}
+			// if we lost a race with eviction, go around and load it again
+			if (e.acquire()) return new Handle(e);
+		}
+	}
+
+	/**
+	 * Forget any local copy of the given blob.
+	 */
+	public static void invalidate(String name) {
+		cache.invalidate(name);
+	}
+
+	private static Entry load(String art) throws IOException, MissingArtException {
+		Blob artBlob = Storage.getBlob(art);
+		if (artBlob == null) throw new MissingArtException();
+		DIR.mkdirs();
+		File f = File.createTempFile("art-", art.substring(art.lastIndexOf('.')), DIR);
+		try (var p = artBlob.getPayload();
+				var in = p.openStream();
+				var out = new FileOutputStream(f)) {
+			in.transferTo(out);
+		} catch (IOException | RuntimeException e) {
+			f.delete();
+			throw e;
+		}
+		return new Entry(art, f, artBlob.getMetadata().getContentMetadata().getContentType());
+	}
+
+	private static String computePictureBlock(String name, File file, String mime) throws IOException {
+		Process p = Commands.magick_convert(file.getPath(), "-identify", "null:-").start();
+		p.getOutputStream().close();
+		String out = MoreByteStreams.slurp(p.getInputStream());
+		String err = MoreByteStreams.slurp(p.getErrorStream());
+		if (Processes.waitForUninterruptibly(p) != 0) {
+			log.warn("Failed to identify art {} with ImageMagick:\n{}", name, err);
+			return null;
+		}
+		var m = MAGICK_SIZE_PATTERN.matcher(out);
+		if (!m.find()) return null;
+		int width = Integer.parseInt(m.group(1));
+		int height = Integer.parseInt(m.group(2));
+		var baos = new ByteArrayOutputStream();
+		var dos = new DataOutputStream(baos);
+		dos.writeInt(3); // Cover (front)
+		dos.writeInt(mime.length());
+		dos.write(mime.getBytes(Charsets.US_ASCII));
+		dos.writeInt(0);
+		dos.writeInt(width);
+		dos.writeInt(height);
+		dos.writeInt(24);
+		dos.writeInt(0);
+		dos.writeInt((int)file.length());
+		try (var in = new FileInputStream(file)) {
+			in.transferTo(dos);
+		}
+		return Base64.getEncoder().encodeToString(baos.toByteArray());
+	}
+
+}
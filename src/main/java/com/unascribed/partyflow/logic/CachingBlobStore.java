@@ -0,0 +1,530 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.logic;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Keeps local copies of recently read blobs, so remote storage isn't asked for the same master
+ * over and over. Blobs never change once written, as their names are random, so the only
+ * invalidation needed is for removals. The least recently used copies are thrown out once the
+ * cache is over its size limit.
+ * <p>
+ * Each copy has a sidecar file holding the metadata that callers look at, so the cache survives
+ * restarts. A miss is streamed to the caller as it arrives and copied into a temporary file on
+ * the way past, which is only moved into place if the caller reads all the way to the end, so a
+ * crash or an abandoned read can't leave a truncated copy behind. Only one read of a missing blob
+ * fills it at a time; anyone else asking for it in the meantime goes straight to remote storage.
+ */
+public class CachingBlobStore extends ForwardingBlobStore {
+
+	private static final Logger log = LoggerFactory.getLogger(CachingBlobStore.class);
+
+	public record Stats(long hits, long misses, long concurrentMisses, long bypassed, long evictions, long bytes, long maxBytes,
+			int entries, double hitRate) {}
+
+	private static final class Entry {
+		final String key;
+		final File file;
+		final File meta;
+		final long size;
+
+		Entry(String key, File file, File meta, long size) {
+			this.key = key;
+			this.file = file;
+			this.meta = meta;
+			this.size = size;
+		}
+	}
+
+	private static final long[] WHOLE = {0, -1};
+
+	private final File dir;
+	private final long maxBytes;
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long totalBytes = 0;
+	private final Set<String> fills = ConcurrentHashMap.newKeySet();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong concurrentMisses = new AtomicLong();
+	private final AtomicLong bypassed = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public CachingBlobStore(BlobStore delegate, File dir, long maxBytes) {
+		super(delegate);
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		dir.mkdirs();
+		load();
+	}
+
+	private void load() {
+		var files = dir.listFiles();
+		if (files == null) return;
+		List<File> metas = new ArrayList<>();
+		for (var f : files) {
+			if (f.getName().endsWith(".part")) {
+				// a fill that never finished
+				f.delete();
+			} else if (f.getName().endsWith(".meta")) {
+				metas.add(f);
+			}
+		}
+		// oldest first, so the most recently used end up at the end of the LRU order
+		metas.sort(Comparator.comparingLong(File::lastModified));
+		int loaded = 0;
+		for (var meta : metas) {
+			String key = meta.getName().substring(0, meta.getName().length()-5);
+			File file = new File(dir, key+".blob");
+			if (!file.isFile()) {
+				meta.delete();
+				continue;
+			}
+			synchronized (entries) {
+				entries.put(key, new Entry(key, file, meta, file.length()));
+				totalBytes += file.length();
+			}
+			loaded++;
+		}
+		// delete anything that doesn't belong to an entry
+		for (var f : files) {
+			String name = f.getName();
+			if (name.endsWith(".blob") && !new File(dir, name.substring(0, name.length()-5)+".meta").isFile()) {
+				f.delete();
+			}
+		}
+		synchronized (entries) {
+			evictUntil(maxBytes);
+		}
+		if (loaded > 0) log.info("Found {} cached blob{} from a previous run", loaded, loaded == 1 ? "" : "s");
+	}
+
+	public Stats getStats() {
+		long h = hits.get();
+		long m = misses.get();
+		synchronized (entries) {
+			return new Stats(h, m, concurrentMisses.get(), bypassed.get(), evictions.get(), totalBytes, maxBytes, entries.size(),
+					h+m == 0 ? 0 : h/(double)(h+m));
+		}
+	}
+
+	@Override
+	public Blob getBlob(String container, String name) {
+		return getBlob(container, name, GetOptions.NONE);
+	}
+
+	@Override
+	public Blob getBlob(String container, String name, GetOptions options) {
+		long[] range = null;
+		if (options != null && options != GetOptions.NONE) {
+			range = parseRange(options);
+			if (range == null) {
+				bypassed.incrementAndGet();
+				return delegate().getBlob(container, name, options);
+			}
+			if (range == WHOLE) range = null;
+		}
+		String key = key(container, name);
+		Entry e;
+		synchronized (entries) {
+			e = entries.get(key);
+		}
+		if (e != null) {
+			hits.incrementAndGet();
+			// keeps the LRU order right across restarts
+			e.meta.setLastModified(System.currentTimeMillis());
+			Blob b = open(e, container, name, range);
+			if (b != null) return b;
+		}
+		if (range != null) {
+			// a piece of a blob isn't worth filling for, and the caller is probably about to ask
+			// for a different piece anyway
+			bypassed.incrementAndGet();
+			return delegate().getBlob(container, name, options);
+		}
+		misses.incrementAndGet();
+		if (!fills.add(key)) {
+			// someone else is already filling it, and waiting on them would mean waiting on however
+			// fast their client reads
+			concurrentMisses.incrementAndGet();
+			return delegate().getBlob(container, name);
+		}
+		boolean handedOff = false;
+		try {
+			// ask for the size first, so a blob too big to keep isn't fetched twice
+			var bmd = delegate().blobMetadata(container, name);
+			if (bmd == null) return null;
+			Long size = bmd.getContentMetadata().getContentLength();
+			if (size == null) size = bmd.getSize();
+			if (size != null && size > maxBytes/4) {
+				// would push out too much else; just pass it through
+				bypassed.incrementAndGet();
+				return delegate().getBlob(container, name);
+			}
+			Blob b = delegate().getBlob(container, name);
+			if (b == null) return null;
+			Blob res = fill(key, container, name, b);
+			handedOff = true;
+			return res;
+		} finally {
+			if (!handedOff) fills.remove(key);
+		}
+	}
+
+	@Override
+	public void removeBlob(String container, String name) {
+		invalidate(key(container, name));
+		super.removeBlob(container, name);
+	}
+
+	@Override
+	public void removeBlobs(String container, Iterable<String> names) {
+		for (var n : names) invalidate(key(container, n));
+		super.removeBlobs(container, names);
+	}
+
+	/**
+	 * Hand back the given blob with its payload copied into a temporary file as it's read,
+	 * becoming a cache entry if it's read to the end.
+	 */
+	private Blob fill(String key, String container, String name, Blob b) {
+		var md = b.getMetadata();
+		var cmd = md.getContentMetadata();
+		Properties props = new Properties();
+		setIfPresent(props, "name", name);
+		setIfPresent(props, "contentType", cmd.getContentType());
+		setIfPresent(props, "contentDisposition", cmd.getContentDisposition());
+		setIfPresent(props, "cacheControl", cmd.getCacheControl());
+		setIfPresent(props, "eTag", md.getETag());
+		Long length = cmd.getContentLength();
+		InputStream in;
+		try {
+			in = b.getPayload().openStream();
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+		OutputStream out = null;
+		File part = null;
+		try {
+			part = File.createTempFile(key+".", ".part", dir);
+			out = new FileOutputStream(part);
+		} catch (IOException ex) {
+			log.warn("Failed to cache blob {} locally", name, ex);
+			if (part != null) part.delete();
+		}
+		Blob res = build(container, name, new FillStream(key, name, in, out, part, props, length), length == null ? -1 : length, props);
+		if (md.getSize() != null) res.getMetadata().setSize(md.getSize());
+		return res;
+	}
+
+	private void commit(String key, File part, Properties props) throws IOException {
+		File file = new File(dir, key+".blob");
+		File meta = new File(dir, key+".meta");
+		File metaPart = File.createTempFile(key+".meta.", ".part", dir);
+		try (var out = new FileOutputStream(metaPart)) {
+			props.store(out, null);
+		}
+		// the blob has to be in place before its sidecar, as the sidecar is what makes it count
+		move(part, file);
+		move(metaPart, meta);
+		var e = new Entry(key, file, meta, file.length());
+		synchronized (entries) {
+			var old = entries.put(key, e);
+			if (old != null) totalBytes -= old.size;
+			totalBytes += e.size;
+			evictUntil(maxBytes);
+		}
+	}
+
+	/**
+	 * Passes a remote payload through to the caller, copying it into a temporary file as it goes.
+	 * Trouble with the copy is never the caller's problem; the copy is just given up on.
+	 */
+	private final class FillStream extends FilterInputStream {
+		private final String key, name;
+		private final File part;
+		private final Properties props;
+		private final Long expected;
+		private OutputStream out;
+		private long copied = 0;
+		private boolean finished = false;
+
+		FillStream(String key, String name, InputStream in, OutputStream out, File part, Properties props, Long expected) {
+			super(in);
+			this.expected = expected;
+			this.key = key;
+			this.name = name;
+			this.out = out;
+			this.part = part;
+			this.props = props;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b;
+			try {
+				b = super.read();
+			} catch (IOException ex) {
+				finish(false);
+				throw ex;
+			}
+			if (b == -1) {
+				finish(true);
+			} else {
+				copy(new byte[] {(byte)b}, 0, 1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int r;
+			try {
+				r = super.read(b, off, len);
+			} catch (IOException ex) {
+				finish(false);
+				throw ex;
+			}
+			if (r == -1) {
+				finish(true);
+			} else {
+				copy(b, off, r);
+			}
+			return r;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// skipped bytes would leave a hole in the copy
+			abandon();
+			return super.skip(n);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				finish(false);
+			}
+		}
+
+		private void copy(byte[] b, int off, int len) {
+			if (out == null) return;
+			try {
+				out.write(b, off, len);
+				copied += len;
+				if (copied > maxBytes/4) {
+					// the size wasn't known up front, and it turns out to be too big to keep
+					abandon();
+				}
+			} catch (IOException ex) {
+				log.warn("Failed to cache blob {} locally", name, ex);
+				abandon();
+			}
+		}
+
+		private void abandon() {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException ex) {}
+				out = null;
+				part.delete();
+			}
+		}
+
+		private void finish(boolean eof) {
+			if (finished) return;
+			finished = true;
+			try {
+				if (eof && out != null && (expected == null || copied == expected)) {
+					out.close();
+					out = null;
+					commit(key, part, props);
+				} else {
+					abandon();
+				}
+			} catch (IOException ex) {
+				part.delete();
+				log.warn("Failed to cache blob {} locally", name, ex);
+			} finally {
+				fills.remove(key);
+			}
+		}
+	}
+
+	private Blob open(Entry e, String container, String name, long[] range) {
+		Properties props = new Properties();
+		InputStream in;
+		try {
+			try (var metaIn = new FileInputStream(e.meta)) {
+				props.load(metaIn);
+			}
+			// opened now, so an eviction between here and the caller reading it can't pull the
+			// file out from under them
+			in = new FileInputStream(e.file);
+		} catch (IOException ex) {
+			log.warn("Local copy of blob {} is unreadable, forgetting it", name, ex);
+			invalidate(e.key);
+			return null;
+		}
+		long start = 0;
+		long length = e.size;
+		try {
+			if (range != null) {
+				start = range[0] < 0 ? Math.max(0, e.size+range[0]) : range[0];
+				long end = range[1] < 0 ? e.size-1 : Math.min(e.size-1, range[1]);
+				length = Math.max(0, end-start+1);
+				ByteStreams.skipFully(in, start);
+				in = ByteStreams.limit(in, length);
+			}
+		} catch (IOException ex) {
+			try {
+				in.close();
+			} catch (IOException ex2) {}
+			throw new UncheckedIOException(ex);
+		}
+		Blob b = build(container, name, in, length, props);
+		b.getMetadata().setSize(e.size);
+		return b;
+	}
+
+	private Blob build(String container, String name, InputStream in, long length, Properties props) {
+		var bb = delegate().blobBuilder(name)
+				.payload(in)
+				.contentType(props.getProperty("contentType"));
+		if (length >= 0) bb.contentLength(length);
+		if (props.containsKey("contentDisposition")) bb.contentDisposition(props.getProperty("contentDisposition"));
+		if (props.containsKey("cacheControl")) bb.cacheControl(props.getProperty("cacheControl"));
+		Blob b = bb.build();
+		b.getMetadata().setContainer(container);
+		b.getMetadata().setETag(props.getProperty("eTag"));
+		return b;
+	}
+
+	private void invalidate(String key) {
+		synchronized (entries) {
+			var e = entries.remove(key);
+			if (e != null) {
+				totalBytes -= e.size;
+				delete(e);
+			}
+		}
+	}
+
+	private void evictUntil(long limit) {
+		var iter = entries.values().iterator();
+		while (totalBytes > limit && iter.hasNext()) {
+			var e = iter.next();
+			iter.remove();
+			totalBytes -= e.size;
+			evictions.incrementAndGet();
+			delete(e);
+		}
+	}
+
+	private static void delete(Entry e) {
+		// sidecar first, so a crash partway through leaves an orphan that gets cleaned up, not a
+		// sidecar pointing at nothing
+		e.meta.delete();
+		e.file.delete();
+	}
+
+	private static void move(File from, File to) throws IOException {
+		try {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static void setIfPresent(Properties props, String k, String v) {
+		if (v != null) props.setProperty(k, v);
+	}
+
+	private static String key(String container, String name) {
+		return Hashing.sha256().hashString(container+"\0"+name, Charsets.UTF_8).toString();
+	}
+
+	/**
+	 * @return {start, end} for a single plain byte range, with negative start meaning a suffix
+	 * 		and negative end meaning the rest of the blob, {@link #WHOLE} if these options don't
+	 * 		ask for anything, or null if they ask for something else
+	 */
+	private static long[] parseRange(GetOptions options) {
+		if (options.getIfMatch() != null || options.getIfNoneMatch() != null
+				|| options.getIfModifiedSince() != null || options.getIfUnmodifiedSince() != null) {
+			return null;
+		}
+		var ranges = options.getRanges();
+		if (ranges.isEmpty()) return WHOLE;
+		if (ranges.size() != 1) return null;
+		String r = ranges.get(0);
+		if (r.startsWith("bytes=")) r = r.substring(6);
+		int dash = r.indexOf('-');
+		if (dash == -1) return null;
+		try {
+			String a = r.substring(0, dash);
+			String b = r.substring(dash+1);
+			if (a.isEmpty()) return b.isEmpty() ? null : new long[] {-Long.parseLong(b), -1};
+			return new long[] {Long.parseLong(a), b.isEmpty() ? -1 : Long.parseLong(b)};
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,283 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.logic;
+
+import java.net.InetAddress;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.temporal.IsoFields;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.unascribed.partyflow.Partyflow;
+import com.unascribed.partyflow.data.QDownloadSketches;
+import com.unascribed.partyflow.data.QReleases;
+import com.unascribed.partyflow.data.QTranscodes;
+import com.unascribed.partyflow.util.HyperLogLog;
+import com.unascribed.partyflow.util.Services;
+import com.unascribed.partyflow.util.Yap;
+
+/**
+ * Collects downloads in memory and writes them to the database in batches, instead of running a
+ * few statements in the request thread for every one. Nothing that reads these needs them to be
+ * up to the second: pruning looks at {@code last_downloaded} in hours, and download counts are
+ * only for show.
+ * <p>
+ * Unless {@code expectedTraffic} is zero, releases count unique downloaders rather than
+ * downloads. Addresses are never held; each one is folded into a {@link HyperLogLog} sketch
+ * for the release as soon as it comes in, and at each flush those are merged into the stored
+ * sketches. As merging is idempotent, a sketch that failed to flush can simply be tried again,
+ * and several nodes can share a database without counting anyone twice.
+ */
+public class DownloadRecorder {
+
+	private static final Logger log = LoggerFactory.getLogger(DownloadRecorder.class);
+
+	private static final long FLUSH_SECONDS = 60;
+
+	private static final int DAYS_KEPT = 31;
+	private static final int WEEKS_KEPT = 26;
+
+	public record Stats(int pendingTranscodes, int pendingReleases, long flushes, long flushedDownloads, long failures) {}
+
+	/**
+	 * Estimated unique downloaders of a release. The periods are null if download history
+	 * isn't enabled.
+	 */
+	public record Uniques(long total, Long today, Long thisWeek) {}
+
+	private static final class Pending {
+		private int count;
+		private final Map<String, HyperLogLog> sketches = new HashMap<>();
+
+		private void absorb(Pending that) {
+			if (that == null) return;
+			count += that.count;
+			for (var en : that.sketches.entrySet()) {
+				sketches.computeIfAbsent(en.getKey(), k -> new HyperLogLog()).merge(en.getValue());
+			}
+		}
+	}
+
+	private static final Object lock = new Object();
+	private static Map<Long, Integer> transcodes = new HashMap<>();
+	private static Map<Long, Pending> releasesById = new HashMap<>();
+	private static Map<String, Pending> releasesBySlug = new HashMap<>();
+
+	private static final AtomicLong flushes = new AtomicLong();
+	private static final AtomicLong flushedDownloads = new AtomicLong();
+	private static final AtomicLong failures = new AtomicLong();
+
+	public static void start() {
+		Services.cron.scheduleWithFixedDelay(DownloadRecorder::flush, FLUSH_SECONDS, FLUSH_SECONDS, TimeUnit.SECONDS);
+		Services.cron.scheduleWithFixedDelay(DownloadRecorder::prune, 5, 24*60, TimeUnit.MINUTES);
+		Runtime.getRuntime().addShutdownHook(new Thread(DownloadRecorder::flush, "Download flush thread"));
+	}
+
+	/**
+	 * @return {@code true} if releases count unique downloaders rather than downloads
+	 */
+	public static boolean countsUniques() {
+		return Partyflow.config.database.expectedTraffic != 0;
+	}
+
+	/**
+	 * Record that a cached transcode was downloaded, so it doesn't get pruned, and so eviction
+	 * knows how popular it is.
+	 */
+	public static void transcodeDownloaded(long transcodeId) {
+		synchronized (lock) {
+			transcodes.merge(transcodeId, 1, Integer::sum);
+		}
+	}
+
+	public static void releaseDownloaded(long releaseId, InetAddress addr) {
+		checkAddress(addr);
+		synchronized (lock) {
+			record(releasesById.computeIfAbsent(releaseId, k -> new Pending()), addr);
+		}
+	}
+
+	public static void releaseDownloaded(String slug, InetAddress addr) {
+		checkAddress(addr);
+		synchronized (lock) {
+			record(releasesBySlug.computeIfAbsent(slug, k -> new Pending()), addr);
+		}
+	}
+
+	public static Stats getStats() {
+		synchronized (lock) {
+			return new Stats(transcodes.size(), releasesById.size()+releasesBySlug.size(),
+					flushes.get(), flushedDownloads.get(), failures.get());
+		}
+	}
+
+	/**
+	 * Estimate the unique downloaders of a release, including those not yet flushed.
+	 */
+	public static Uniques uniques(long releaseId) throws SQLException {
+		var today = LocalDate.now(ZoneOffset.UTC);
+		var periods = periods(today);
+		var sketches = QDownloadSketches.get(releaseId, periods);
+		// some downloads are recorded by slug, such as zips
+		String slug = QReleases.resolve(List.of(releaseId), List.of()).get(releaseId);
+		synchronized (lock) {
+			var pending = new Pending();
+			pending.absorb(releasesById.get(releaseId));
+			if (slug != null) pending.absorb(releasesBySlug.get(slug));
+			for (var en : pending.sketches.entrySet()) {
+				sketches.computeIfAbsent(en.getKey(), k -> new HyperLogLog()).merge(en.getValue());
+			}
+		}
+		boolean history = periods.size() > 1;
+		return new Uniques(estimate(sketches.get(QDownloadSketches.ALL)),
+				history ? estimate(sketches.get(day(today))) : null,
+				history ? estimate(sketches.get(week(today))) : null);
+	}
+
+	/**
+	 * Write out everything recorded since the last flush. Called periodically, at shutdown, and
+	 * before pruning so nothing recently downloaded is pruned.
+	 */
+	public static void flush() {
+		Map<Long, Integer> t;
+		Map<Long, Pending> byId;
+		Map<String, Pending> bySlug;
+		synchronized (lock) {
+			if (transcodes.isEmpty() && releasesById.isEmpty() && releasesBySlug.isEmpty()) return;
+			t = transcodes;
+			byId = releasesById;
+			bySlug = releasesBySlug;
+			transcodes = new HashMap<>();
+			releasesById = new HashMap<>();
+			releasesBySlug = new HashMap<>();
+		}
+		flushes.incrementAndGet();
+		try {
+			QTranscodes.markDownloaded(t);
+			t.values().forEach(flushedDownloads::addAndGet);
+		} catch (SQLException e) {
+			log.warn("Failed to record transcode downloads", e);
+			failures.incrementAndGet();
+			// try again next time
+			synchronized (lock) {
+				t.forEach((id, n) -> transcodes.merge(id, n, Integer::sum));
+			}
+		}
+		try {
+			Map<Long, Pending> merged = new HashMap<>();
+			for (var en : QReleases.resolve(byId.keySet(), bySlug.keySet()).entrySet()) {
+				var p = new Pending();
+				p.absorb(byId.get(en.getKey()));
+				p.absorb(bySlug.get(en.getValue()));
+				merged.put(en.getKey(), p);
+			}
+			if (countsUniques()) {
+				Map<Long, Long> totals = new HashMap<>();
+				for (var en : merged.entrySet()) {
+					for (var sk : en.getValue().sketches.entrySet()) {
+						var stored = QDownloadSketches.merge(en.getKey(), sk.getKey(), sk.getValue());
+						if (sk.getKey().equals(QDownloadSketches.ALL)) totals.put(en.getKey(), stored.estimate());
+					}
+				}
+				QReleases.setUniqueDownloads(totals);
+			} else {
+				Map<Long, Integer> counts = new HashMap<>();
+				merged.forEach((id, p) -> counts.put(id, p.count));
+				QReleases.addDownloads(counts);
+			}
+			merged.values().forEach(p -> flushedDownloads.addAndGet(p.count));
+		} catch (SQLException e) {
+			log.warn("Failed to record release downloads", e);
+			failures.incrementAndGet();
+			if (countsUniques()) {
+				// sketches hold no addresses and merging them twice is harmless, so try again next time
+				synchronized (lock) {
+					byId.forEach((id, p) -> {
+						p.count = 0;
+						releasesById.computeIfAbsent(id, k -> new Pending()).absorb(p);
+					});
+					bySlug.forEach((slug, p) -> {
+						p.count = 0;
+						releasesBySlug.computeIfAbsent(slug, k -> new Pending()).absorb(p);
+					});
+				}
+			}
+			// otherwise a few uncounted downloads are no great loss
+		}
+	}
+
+	private static void prune() {
+		var today = LocalDate.now(ZoneOffset.UTC);
+		try {
+			int n = QDownloadSketches.prune("d", day(today.minusDays(DAYS_KEPT)))
+					+ QDownloadSketches.prune("w", week(today.minusWeeks(WEEKS_KEPT)));
+			if (n > 0) log.debug("Pruned {} old download sketch{}", n, n == 1 ? "" : "es");
+		} catch (SQLException e) {
+			log.warn("Failed to prune old download sketches", e);
+		}
+	}
+
+	private static void record(Pending p, InetAddress addr) {
+		p.count++;
+		if (!countsUniques()) return;
+		for (var period : periods(LocalDate.now(ZoneOffset.UTC))) {
+			p.sketches.computeIfAbsent(period, k -> new HyperLogLog()).add(addr);
+		}
+	}
+
+	private static List<String> periods(LocalDate today) {
+		List<String> out = new ArrayList<>();
+		out.add(QDownloadSketches.ALL);
+		if (Partyflow.config.database.downloadHistory) {
+			out.add(day(today));
+			out.add(week(today));
+		}
+		return out;
+	}
+
+	private static String day(LocalDate date) {
+		return "d:"+date;
+	}
+
+	private static String week(LocalDate date) {
+		return String.format(Locale.ROOT, "w:%04d-W%02d", date.get(IsoFields.WEEK_BASED_YEAR), date.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR));
+	}
+
+	private static long estimate(HyperLogLog sketch) {
+		return sketch == null ? 0 : sketch.estimate();
+	}
+
+	private static void checkAddress(InetAddress addr) {
+		if (addr.isLoopbackAddress() || addr.isLinkLocalAddress()) {
+			Yap.BAD_PROXY.warn();
+		}
+	}
+
+}
@@ -0,0 +1,306 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.logic;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+import org.jclouds.io.payloads.BaseMutableContentMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.unascribed.partyflow.Partyflow;
+import com.unascribed.partyflow.config.Config.StorageSection.StorageDriver;
+import com.unascribed.partyflow.util.Processes;
+import com.unascribed.partyflow.util.Services;
+
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.math.LongMath;
+
+/**
+ * Uploads large blobs to remote storage as several parts at once. jclouds' own multipart
+ * support sends one part after another, which leaves most of the bandwidth to a far-away
+ * bucket unused. Failed parts are retried on their own, without starting the whole upload over.
+ * <p>
+ * With the filesystem driver, there's nothing to gain, so everything goes straight to
+ * {@link Storage#putBlob}.
+ */
+public class MultipartUploader {
+
+	private static final Logger log = LoggerFactory.getLogger(MultipartUploader.class);
+
+	private static final long DEFAULT_PART_SIZE = 16*1024*1024;
+	private static final int DEFAULT_CONCURRENCY = 4;
+	private static final int MAX_ATTEMPTS = 3;
+	private static final long GROWTH_POLL_MILLIS = 100;
+
+	public record Stats(long uploads, long parts, long retries, long bytes) {}
+
+	private static final ExecutorService pool = Executors.newCachedThreadPool(Services.helperFactory("Multipart Upload"));
+
+	private static final AtomicLong uploads = new AtomicLong();
+	private static final AtomicLong parts = new AtomicLong();
+	private static final AtomicLong retries = new AtomicLong();
+	private static final AtomicLong bytes = new AtomicLong();
+
+	public static boolean enabled() {
+		return Partyflow.config.storage.driver == StorageDriver.s3;
+	}
+
+	public static Stats getStats() {
+		return new Stats(uploads.get(), parts.get(), retries.get(), bytes.get());
+	}
+
+	/**
+	 * Upload a blob, splitting it into parts if it's big enough to be worth it. If the payload is
+	 * a file, its parts are read and sent in parallel; anything else is streamed, with only as
+	 * many parts in memory as are being sent at once.
+	 * @return the ETag of the new blob
+	 */
+	public static String putBlob(Blob blob, PutOptions options) throws IOException {
+		if (!enabled()) return Storage.putBlob(blob, options.multipart());
+		var payload = blob.getPayload();
+		if (payload.getRawContent() instanceof File f) {
+			long size = f.length();
+			long partSize = partSize(size);
+			if (size <= partSize) return Storage.putBlob(blob, options);
+			try (var up = new Upload(blob.getMetadata(), options)) {
+				var src = Files.asByteSource(f);
+				int n = 1;
+				for (long off = 0; off < size; off += partSize) {
+					up.submit(n++, src.slice(off, Math.min(partSize, size-off)));
+				}
+				return up.complete();
+			}
+		}
+		try (var in = payload.openStream()) {
+			long partSize = partSize(-1);
+			byte[] part = readPart(in, partSize);
+			if (part.length < partSize) {
+				// fits in one part, so there's no point in multipart
+				return Storage.putBlob(repayload(blob, Payloads.newByteArrayPayload(part), part.length), options);
+			}
+			try (var up = new Upload(blob.getMetadata(), options)) {
+				int n = 1;
+				while (part.length > 0) {
+					up.submit(n++, ByteSource.wrap(part));
+					part = readPart(in, partSize);
+				}
+				return up.complete();
+			}
+		}
+	}
+
+	/**
+	 * Upload a file that the given process is still writing, sending parts as soon as they're
+	 * written. This is only correct for formats that write their output in order and go back to
+	 * patch nothing but their header once they're done, such as FLAC; the first part is held
+	 * back until the process exits to allow for that.
+	 * @param blob a blob whose payload is the file being written; its length is ignored
+	 * @return a future for the ETag of the new blob, which fails if the process does
+	 */
+	public static Future<String> putWhileWriting(Blob blob, PutOptions options, Process writer) {
+		File f = (File)blob.getPayload().getRawContent();
+		return pool.submit(() -> {
+			if (!enabled()) {
+				int exit = Processes.waitForUninterruptibly(writer);
+				if (exit != 0) throw new IOException("Writer of "+f.getName()+" exited with code "+exit);
+				return Storage.putBlob(repayload(blob, Payloads.newFilePayload(f), f.length()), options.multipart());
+			}
+			long partSize = partSize(-1);
+			var src = Files.asByteSource(f);
+			try (var up = new Upload(blob.getMetadata(), options)) {
+				long sent = partSize;
+				int n = 2;
+				while (writer.isAlive()) {
+					// whole parts only, as the end of the file may be mid-write
+					if (f.length() >= sent+partSize) {
+						up.submit(n++, src.slice(sent, partSize));
+						sent += partSize;
+					} else {
+						Thread.sleep(GROWTH_POLL_MILLIS);
+					}
+				}
+				int exit = Processes.waitForUninterruptibly(writer);
+				if (exit != 0) throw new IOException("Writer of "+f.getName()+" exited with code "+exit);
+				long size = f.length();
+				if (size <= partSize) {
+					// never got past the first part, so nothing has been sent yet
+					return Storage.putBlob(repayload(blob, Payloads.newFilePayload(f), size), options);
+				}
+				while (sent < size) {
+					long len = Math.min(partSize, size-sent);
+					up.submit(n++, src.slice(sent, len));
+					sent += len;
+				}
+				up.submit(1, src.slice(0, partSize));
+				return up.complete();
+			}
+		});
+	}
+
+	private static long partSize(long size) {
+		long partSize = Partyflow.config.storage.partSize > 0 ? Partyflow.config.storage.partSize*1024L*1024L : DEFAULT_PART_SIZE;
+		partSize = Math.max(partSize, Storage.getMinimumMultipartPartSize());
+		if (size > 0) {
+			partSize = Math.max(partSize, LongMath.divide(size, Storage.getMaximumNumberOfParts(), RoundingMode.CEILING));
+		}
+		return Math.min(partSize, Storage.getMaximumMultipartPartSize());
+	}
+
+	private static int concurrency() {
+		return Partyflow.config.storage.uploadConcurrency > 0 ? Partyflow.config.storage.uploadConcurrency : DEFAULT_CONCURRENCY;
+	}
+
+	private static byte[] readPart(InputStream in, long partSize) throws IOException {
+		byte[] buf = new byte[(int)partSize];
+		int read = ByteStreams.read(in, buf, 0, buf.length);
+		return read == buf.length ? buf : Arrays.copyOf(buf, read);
+	}
+
+	/**
+	 * Replace a blob's payload while keeping its content type, disposition, and so on.
+	 */
+	private static Blob repayload(Blob blob, Payload payload, long length) {
+		var cmd = blob.getMetadata().getContentMetadata().toBuilder().contentLength(length).build();
+		payload.setContentMetadata(BaseMutableContentMetadata.fromContentMetadata(cmd));
+		blob.setPayload(payload);
+		return blob;
+	}
+
+	private static final class Upload implements Closeable {
+		private final BlobMetadata meta;
+		private final PutOptions options;
+		private final Semaphore permits = new Semaphore(concurrency());
+		private final List<Future<MultipartPart>> futures = new ArrayList<>();
+		private MultipartUpload mpu;
+		private boolean completed;
+
+		Upload(BlobMetadata meta, PutOptions options) {
+			this.meta = meta;
+			this.options = options;
+		}
+
+		/**
+		 * Start sending a part, waiting first if as many parts as we're allowed are already being
+		 * sent.
+		 */
+		void submit(int number, ByteSource data) throws IOException {
+			if (mpu == null) {
+				mpu = Storage.initiateMultipartUpload(meta, options);
+				uploads.incrementAndGet();
+			}
+			try {
+				permits.acquire();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			var mpu = this.mpu;
+			futures.add(pool.submit(() -> {
+				try {
+					return send(mpu, number, data);
+				} finally {
+					permits.release();
+				}
+			}));
+			// no sense in sending the rest if a part has already failed for good
+			for (var f : futures) {
+				if (f.isDone()) get(f);
+			}
+		}
+
+		String complete() throws IOException {
+			List<MultipartPart> out = new ArrayList<>();
+			for (var f : futures) {
+				out.add(get(f));
+			}
+			out.sort(Comparator.comparingInt(MultipartPart::partNumber));
+			String etag = Storage.completeMultipartUpload(mpu, out);
+			completed = true;
+			return etag;
+		}
+
+		@Override
+		public void close() {
+			if (mpu == null || completed) return;
+			futures.forEach(f -> f.cancel(true));
+			try {
+				Storage.abortMultipartUpload(mpu);
+			} catch (RuntimeException e) {
+				log.warn("Failed to abort multipart upload of {}", meta.getName(), e);
+			}
+		}
+
+		private static MultipartPart send(MultipartUpload mpu, int number, ByteSource data) throws IOException, InterruptedException {
+			long size = data.size();
+			for (int attempt = 1; ; attempt++) {
+				try {
+					Payload payload = Payloads.newByteSourcePayload(data);
+					payload.getContentMetadata().setContentLength(size);
+					var part = Storage.uploadMultipartPart(mpu, number, payload);
+					parts.incrementAndGet();
+					bytes.addAndGet(size);
+					return part;
+				} catch (RuntimeException e) {
+					if (attempt >= MAX_ATTEMPTS) throw e;
+					retries.incrementAndGet();
+					log.debug("Failed to upload part {} of {} (attempt {}), retrying", number, mpu.blobName(), attempt, e);
+					Thread.sleep(1000L << (attempt-1));
+				}
+			}
+		}
+
+		private static MultipartPart get(Future<MultipartPart> f) throws IOException {
+			try {
+				return f.get();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException ioe) throw ioe;
+				if (e.getCause() instanceof RuntimeException re) throw re;
+				throw new IOException(e.getCause());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,171 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.logic;
+
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.unascribed.partyflow.Partyflow;
+import com.unascribed.partyflow.config.TranscodeFormat;
+import com.unascribed.partyflow.config.TranscodeFormat.Prewarm;
+import com.unascribed.partyflow.config.TranscodeFormat.Usage;
+import com.unascribed.partyflow.data.QTracks;
+import com.unascribed.partyflow.data.QTranscodes;
+import com.unascribed.partyflow.util.Services;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Queues low-priority transcodes of a release's tracks, and of the start of the release as a
+ * whole for the gapless player, when it's published or first played, so the first listener
+ * doesn't have to wait for FFmpeg. What gets pre-warmed is decided by each
+ * format's {@code prewarm} policy; how much of the machine it may use is decided by
+ * {@code programs.prewarmBudget}.
+ */
+public class Prewarmer {
+
+	private static final Logger log = LoggerFactory.getLogger(Prewarmer.class);
+
+	/**
+	 * How many of the most-used "popular" download formats get pre-warmed.
+	 */
+	private static final int POPULAR_FORMATS = 2;
+
+	/**
+	 * How many segments at the start of a release get pre-warmed for each segmented format.
+	 */
+	private static final int SEGMENTS = 3;
+
+	private static final Cache<Long, Boolean> recentlyWarmed = CacheBuilder.newBuilder()
+			.expireAfterWrite(1, TimeUnit.HOURS)
+			.maximumSize(4096)
+			.build();
+
+	public static boolean enabled() {
+		return Partyflow.config.programs.prewarmBudget > 0;
+	}
+
+	/**
+	 * Called when a release is published.
+	 */
+	public static void onPublish(String slug) {
+		if (!enabled()) return;
+		Services.genericPool.execute(() -> {
+			try (var c = Partyflow.sql.getConnection();
+					var ps = c.prepareStatement("SELECT `release_id` FROM `releases` WHERE `slug` = ?;")) {
+				ps.setString(1, slug);
+				try (var rs = ps.executeQuery()) {
+					if (rs.first()) {
+						long releaseId = rs.getLong("release_id");
+						recentlyWarmed.put(releaseId, true);
+						prewarm(releaseId);
+					}
+				}
+			} catch (SQLException e) {
+				log.warn("Failed to pre-warm newly published release {}", slug, e);
+			}
+		});
+	}
+
+	/**
+	 * Called when a track in a release is streamed and wasn't already cached.
+	 */
+	public static void onFirstPlay(long releaseId) {
+		if (!enabled()) return;
+		if (recentlyWarmed.asMap().putIfAbsent(releaseId, true) != null) return;
+		Services.genericPool.execute(() -> {
+			try {
+				prewarm(releaseId);
+			} catch (SQLException e) {
+				log.warn("Failed to pre-warm release {}", releaseId, e);
+			}
+		});
+	}
+
+	/**
+	 * @return how many pre-warm jobs may run at once right now out of the given number of
+	 * 		transcode slots
+	 */
+	public static int maxSlots(int slots) {
+		double budget = Partyflow.config.programs.prewarmBudget;
+		if (budget <= 0) return 0;
+		int nproc = Runtime.getRuntime().availableProcessors();
+		double load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+		// negative if the platform can't tell us
+		if (load >= 0 && load >= nproc*budget) return 0;
+		return Math.max(1, (int)(slots*Math.min(1, budget)));
+	}
+
+	private static void prewarm(long releaseId) throws SQLException {
+		try (var c = Partyflow.sql.getConnection()) {
+			List<TranscodeFormat> formats = new ArrayList<>();
+			List<TranscodeFormat> popularCandidates = new ArrayList<>();
+			for (var f : TranscodeFormat.formats) {
+				if (!f.available()) continue;
+				if (f.prewarm() == Prewarm.ALWAYS) {
+					formats.add(f);
+				} else if (f.prewarm() == Prewarm.POPULAR) {
+					popularCandidates.add(f);
+				}
+			}
+			var ranked = QTranscodes.rankFormatsByUse(c, popularCandidates);
+			for (int i = 0; i < Math.min(POPULAR_FORMATS, ranked.size()); i++) {
+				TranscodeFormat.byName(ranked.get(i)).ifPresent(formats::add);
+			}
+			if (formats.isEmpty()) return;
+			var existing = QTranscodes.findTranscodedFormats(c, releaseId);
+			int queued = 0;
+			for (var src : QTranscodes.findTrackSources(c, releaseId)) {
+				for (var f : formats) {
+					if (existing.containsEntry(src.master(), f.name())) continue;
+					TranscodeJobs.submit(src, f, f.usage() == Usage.STREAM ? TranscodeJobs.PRIORITY_PREWARM+1 : TranscodeJobs.PRIORITY_PREWARM,
+							"prewarm:"+releaseId);
+					queued++;
+				}
+			}
+			// the gapless player streams the whole release, not its tracks
+			var release = QTranscodes.findSource(c, "release", releaseId).orElse(null);
+			if (release != null && release.master() != null) {
+				long total = -1;
+				for (var f : formats) {
+					if (f.usage() != Usage.STREAM) continue;
+					if (f.segmented()) {
+						if (total == -1) total = Segmenter.totalSamples(QTracks.get(releaseId));
+						queued += Segmenter.prewarm(release, f, SEGMENTS, total, "prewarm:"+releaseId);
+					} else if (!existing.containsEntry(release.master(), f.name())) {
+						TranscodeJobs.submit(release, f, TranscodeJobs.PRIORITY_PREWARM+1, "prewarm:"+releaseId);
+						queued++;
+					}
+				}
+			}
+			if (queued > 0) {
+				log.debug("Queued {} pre-warm transcode{} for release {}", queued, queued == 1 ? "" : "s", releaseId);
+			}
+		}
+	}
+
+}
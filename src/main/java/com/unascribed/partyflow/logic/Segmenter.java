@@ -0,0 +1,362 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.logic;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.blobstore.domain.Blob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.unascribed.partyflow.Partyflow;
+import com.unascribed.partyflow.config.TranscodeFormat;
+import com.unascribed.partyflow.data.QTracks.Track;
+import com.unascribed.partyflow.data.QTranscodes;
+import com.unascribed.partyflow.data.QTranscodes.TranscodeSource;
+import com.unascribed.partyflow.logic.Transcoder.TranscodeResult;
+import com.unascribed.partyflow.util.BlobByteSource;
+import com.unascribed.partyflow.util.Commands;
+import com.unascribed.partyflow.util.FairPriorityPool.TaskClass;
+import com.unascribed.partyflow.util.ProcessPipeline;
+import com.unascribed.partyflow.util.Services;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import jakarta.servlet.ServletException;
+
+/**
+ * Cuts a release's concatenated master into short pieces on demand, so the gapless player can
+ * start anywhere in a release without waiting for everything before that point to be transcoded.
+ * Each segment is cached on its own in the transcodes table, and pruned like any other transcode.
+ * <p>
+ * A {@link VirtualConcat} is opened at just the stretch a segment needs, which only touches the
+ * tracks it covers. Any other master is encoded from a local copy, as FFmpeg can only seek in a
+ * file; piping it in would mean decoding everything before the segment every time.
+ */
+public class Segmenter {
+
+	private static final Logger log = LoggerFactory.getLogger(Segmenter.class);
+
+	public static final int SAMPLE_RATE = 48000;
+	public static final int SEGMENT_SECONDS = 10;
+	private static final long SEGMENT_SAMPLES = SEGMENT_SECONDS*(long)SAMPLE_RATE;
+	/**
+	 * How much audio is encoded ahead of each segment for the player to throw away, so that
+	 * encoder priming doesn't end up in what's heard.
+	 */
+	public static final int PREROLL_SAMPLES = SAMPLE_RATE/10;
+
+	private static final File DIR = new File(Transcoder.WORK_DIR, "masters");
+
+	private static final Cache<String, LocalMaster> masters = CacheBuilder.newBuilder()
+			.maximumSize(4)
+			.expireAfterAccess(15, TimeUnit.MINUTES)
+			.removalListener((RemovalListener<String, LocalMaster>)n -> n.getValue().evict())
+			.build();
+
+	private static final Cache<String, VirtualConcat.Concat> concats = CacheBuilder.newBuilder()
+			.maximumSize(64)
+			.expireAfterAccess(15, TimeUnit.MINUTES)
+			.build();
+
+	private static final ConcurrentHashMap<String, CompletableFuture<String>> inflight = new ConcurrentHashMap<>();
+
+	static {
+		var leftovers = DIR.listFiles();
+		if (leftovers != null) {
+			for (var f : leftovers) {
+				f.delete();
+			}
+		}
+	}
+
+	public record TrackBoundary(String slug, double start, double end) {}
+
+	public record Manifest(String format, String mimeType, double segmentDuration, double preroll, double duration,
+			int segments, String segmentUrl, List<TrackBoundary> tracks) {}
+
+	/**
+	 * @return where each of the given tracks starts and ends in their release's concatenated
+	 * 		master, in seconds
+	 */
+	public static List<TrackBoundary> boundaries(List<Track> tracks) {
+		List<TrackBoundary> out = new ArrayList<>();
+		long durAccum = 0;
+		for (var t : tracks) {
+			long start = durAccum;
+			durAccum += t.duration();
+			out.add(new TrackBoundary(t.slug(), start/(double)SAMPLE_RATE, durAccum/(double)SAMPLE_RATE));
+		}
+		return out;
+	}
+
+	public static long totalSamples(List<Track> tracks) {
+		return tracks.stream().mapToLong(Track::duration).sum();
+	}
+
+	public static int segmentCount(long totalSamples) {
+		return (int)((totalSamples+SEGMENT_SAMPLES-1)/SEGMENT_SAMPLES);
+	}
+
+	public static Manifest manifest(String slug, TranscodeFormat format, List<Track> tracks) {
+		long total = totalSamples(tracks);
+		return new Manifest(format.publicName(), format.mimeType(), SEGMENT_SECONDS, PREROLL_SAMPLES/(double)SAMPLE_RATE,
+				total/(double)SAMPLE_RATE, segmentCount(total),
+				URLs.absolute("transcode/release-segment/"+slug+"?format="+format.publicName()+"&index="),
+				boundaries(tracks));
+	}
+
+	/**
+	 * The segment length is part of the key, so changing it doesn't serve old segments that
+	 * start in the wrong places.
+	 */
+	public static String key(TranscodeFormat format, int index) {
+		return format.name()+"#"+SEGMENT_SECONDS+"s:"+index;
+	}
+
+	/**
+	 * @return the blob holding the given segment, transcoding it first if needed
+	 */
+	public static String getSegment(Connection c, TranscodeSource src, TranscodeFormat format, int index, long totalSamples, String client)
+			throws IOException, ServletException, SQLException {
+		String key = key(format, index);
+		String existing = QTranscodes.findSegment(c, src.master(), key);
+		if (existing != null) return existing;
+		var ours = new CompletableFuture<String>();
+		var theirs = inflight.putIfAbsent(src.master()+"\0"+key, ours);
+		try {
+			if (theirs != null) return theirs.get();
+			try {
+				// streams come first, but still have to take their turn with everything else
+				var tr = Services.transcodePool.submit(TaskClass.STREAM, client,
+						() -> encode(src, format, index, totalSamples)).get();
+				QTranscodes.insertTranscode(c, src.master(), key, tr.blob(), null, src.releaseId(), tr.size(), tr.encodeMillis());
+				ours.complete(tr.blob());
+				return tr.blob();
+			} catch (Throwable t) {
+				ours.completeExceptionally(t);
+				throw t;
+			} finally {
+				inflight.remove(src.master()+"\0"+key, ours);
+			}
+		} catch (InterruptedException e) {
+			throw new ServletException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException ioe) throw ioe;
+			if (e.getCause() instanceof ServletException se) throw se;
+			throw new ServletException(e.getCause());
+		}
+	}
+
+	/**
+	 * Queue the first few segments of a release at pre-warm priority, so the gapless player has
+	 * something to start with. Segments that are cached or already being made by the time their
+	 * turn comes are skipped.
+	 * @return how many segments were queued
+	 */
+	public static int prewarm(TranscodeSource src, TranscodeFormat format, int count, long totalSamples, String client) {
+		int n = Math.min(count, segmentCount(totalSamples));
+		for (int i = 0; i < n; i++) {
+			int index = i;
+			String key = key(format, index);
+			Services.transcodePool.submit(TaskClass.PREWARM, client, () -> {
+				var ours = new CompletableFuture<String>();
+				if (inflight.putIfAbsent(src.master()+"\0"+key, ours) != null) return null;
+				try (var c = Partyflow.sql.getConnection()) {
+					String existing = QTranscodes.findSegment(c, src.master(), key, false);
+					if (existing != null) {
+						ours.complete(existing);
+						return null;
+					}
+					var tr = encode(src, format, index, totalSamples);
+					QTranscodes.insertTranscode(c, src.master(), key, tr.blob(), null, src.releaseId(), tr.size(), tr.encodeMillis());
+					ours.complete(tr.blob());
+				} catch (Throwable t) {
+					log.warn("Failed to pre-warm segment {} of {} to {}", index, src.slug(), format, t);
+					ours.completeExceptionally(t);
+				} finally {
+					inflight.remove(src.master()+"\0"+key, ours);
+				}
+				return null;
+			});
+		}
+		return n;
+	}
+
+	private static TranscodeResult encode(TranscodeSource src, TranscodeFormat format, int index, long totalSamples) throws IOException, ServletException {
+		long start = index*SEGMENT_SAMPLES;
+		long end = Math.min(totalSamples, start+SEGMENT_SAMPLES);
+		long lead = Math.min(start, PREROLL_SAMPLES);
+		Transcoder.WORK_DIR.mkdirs();
+		File tmpFile = File.createTempFile("segment-", "."+format.fileExtension(), Transcoder.WORK_DIR);
+		boolean virtual = VirtualConcat.is(src.master());
+		try (var master = virtual ? null : localMaster(src.master())) {
+			var concat = virtual ? concat(src.master()) : null;
+			if (virtual ? concat == null : master == null) throw new ServletException("Master for release "+src.slug()+" is missing");
+			ProcessBuilder ffm = Commands.ffmpeg("-v", "error",
+					// a virtual concat is cut to length before FFmpeg ever sees it
+					virtual ? concat.inputArgs() : List.of("-ss", seconds(start-lead)),
+					"-i", virtual ? "-" : master.file().getAbsolutePath(),
+					virtual ? null : List.of("-t", seconds(end-(start-lead))),
+					"-map_metadata", "-1",
+					"-map", "a",
+					format.args(),
+					"-threads", TranscodeLimiter.ffmpegThreads(),
+					"-y", tmpFile.getAbsolutePath());
+			long startTime = System.nanoTime();
+			try (var pipeline = ProcessPipeline.start("segment "+index+" of release "+src.slug()+" to "+format,
+					Partyflow.config.programs.transcodeTimeout, List.of(ffm), Transcoder.WORK_DIR)) {
+				if (virtual) {
+					try (var in = concat.openStream(start-lead, end);
+							var out = pipeline.first().getOutputStream()) {
+						in.transferTo(out);
+					} catch (IOException e) {
+						pipeline.checkCancelled();
+						if (!"Broken pipe".equals(e.getMessage())) {
+							throw e;
+						}
+					}
+				} else {
+					pipeline.first().getOutputStream().close();
+				}
+				if (!pipeline.waitFor()) {
+					log.warn("Failed to process audio:\n{}", pipeline.errors());
+					throw new ServletException("Failed to process audio");
+				}
+			}
+			long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-startTime);
+			log.debug("Segment {} of release {} to {} completed in {}ms", index, src.slug(), format, millis);
+			long size = tmpFile.length();
+			return new TranscodeResult(Transcoder.storeTranscode(tmpFile, format, "inline", src.published()), size, null, millis);
+		} finally {
+			tmpFile.delete();
+		}
+	}
+
+	private static String seconds(long samples) {
+		return String.format(Locale.ROOT, "%.6f", samples/(double)SAMPLE_RATE);
+	}
+
+	private static class MissingMasterException extends Exception {}
+
+	/**
+	 * A local copy of a master. The file is deleted once it's been evicted and nobody is using it.
+	 */
+	private static class LocalMaster implements AutoCloseable {
+		private final File file;
+		private int refs = 0;
+		private boolean evicted = false;
+
+		LocalMaster(File file) {
+			this.file = file;
+		}
+
+		File file() {
+			return file;
+		}
+
+		synchronized boolean acquire() {
+			if (evicted) return false;
+			refs++;
+			return true;
+		}
+
+		synchronized void evict() {
+			evicted = true;
+			if (refs == 0) file.delete();
+		}
+
+		@Override
+		public synchronized void close() {
+			refs--;
+			if (refs == 0 && evicted) file.delete();
+		}
+	}
+
+	/**
+	 * @return a local copy of the given master, which must be closed when done with, or null if
+	 * 		the master doesn't exist
+	 */
+	private static LocalMaster localMaster(String name) throws IOException {
+		while (true) {
+			LocalMaster lm;
+			try {
+				lm = masters.get(name, () -> download(name));
+			} catch (ExecutionException | UncheckedExecutionException ex) {
+				if (ex.getCause() instanceof MissingMasterException) return null;
+				if (ex.getCause() instanceof IOException ioe) throw ioe;
+				throw new IOException(ex.getCause());
+			}
+			if (lm.acquire()) return lm;
+		}
+	}
+
+	private static LocalMaster download(String name) throws IOException, MissingMasterException {
+		Blob blob = Storage.getBlob(name);
+		if (blob == null) throw new MissingMasterException();
+		ByteSource src = new BlobByteSource(blob);
+		DIR.mkdirs();
+		File f = File.createTempFile("master-", ".flac", DIR);
+		try (var in = src.openStream();
+				var out = new FileOutputStream(f)) {
+			in.transferTo(out);
+		} catch (IOException | RuntimeException e) {
+			f.delete();
+			throw e;
+		}
+		return new LocalMaster(f);
+	}
+
+	/**
+	 * @return the virtual concatenation with the given name, or null if it's gone stale
+	 */
+	private static VirtualConcat.Concat concat(String name) throws IOException {
+		var c = concats.getIfPresent(name);
+		if (c == null) {
+			c = VirtualConcat.open(name);
+			if (c != null) concats.put(name, c);
+		}
+		return c;
+	}
+
+	/**
+	 * Forget any local copy of the given blob.
+	 */
+	public static void invalidate(String name) {
+		masters.invalidate(name);
+		concats.invalidate(name);
+	}
+
+}
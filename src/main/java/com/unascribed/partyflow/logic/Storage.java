@@ -55,6 +55,13 @@ public final class Storage {
 		Storage.container = container;
 	}
 
+	/**
+	 * @return the local blob cache's stats, or null if there isn't one
+	 */
+	public static CachingBlobStore.Stats getCacheStats() {
+		return delegate instanceof CachingBlobStore cbs ? cbs.getStats() : null;
+	}
+
 	public static BlobStoreContext getContext() {
 		return delegate.getContext();
 	}
@@ -136,10 +143,16 @@ public final class Storage {
 	}
 
 	public static void removeBlob(String name) {
+		ArtCache.invalidate(name);
+		Segmenter.invalidate(name);
+		TranscodeIndex.forgetBlob(name);
 		delegate.removeBlob(container, name);
 	}
 
 	public static void removeBlobs(Iterable<String> names) {
+		names.forEach(ArtCache::invalidate);
+		names.forEach(Segmenter::invalidate);
+		names.forEach(TranscodeIndex::forgetBlob);
 		delegate.removeBlobs(container, names);
 	}
 
@@ -0,0 +1,219 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.logic;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.unascribed.partyflow.data.QTranscodes;
+import com.unascribed.partyflow.util.Services;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Keeps the rows of {@code transcodes} in memory, so finding a cached transcode doesn't cost a
+ * query, a storage round trip to make sure the blob still exists, and an update to record that
+ * it was downloaded. Instead, existence is rechecked in the background every so often, and
+ * downloads are handed to {@link DownloadRecorder}.
+ * <p>
+ * Rows written by other nodes aren't known here until someone asks for them and the database is
+ * consulted. To keep that cheap, not finding anything is remembered for a few seconds. Rows
+ * deleted by other nodes, such as by their cleanup, are noticed the first time an entry is used
+ * after it's gone unconfirmed for a little while, when the row is checked for in the background.
+ * That use is still served from the entry; if the blob really is gone, the caller finds out the
+ * same way it would from a stale row.
+ */
+public class TranscodeIndex {
+
+	private static final Logger log = LoggerFactory.getLogger(TranscodeIndex.class);
+
+	private static final Duration VERIFY_INTERVAL = Duration.ofMinutes(10);
+	private static final Duration CONFIRM_INTERVAL = Duration.ofSeconds(30);
+	private static final long MISS_TTL_SECONDS = 10;
+
+	public record Stats(int entries, long hits, long knownMisses, long lookups, long verified, long vanished, long deletedElsewhere) {}
+
+	private record Key(String master, String format) {}
+
+	public static final class Entry {
+		private final long transcodeId;
+		private final String blob;
+		private volatile long verifiedAt = System.nanoTime();
+		private volatile long confirmedAt = verifiedAt;
+		private final AtomicBoolean verifying = new AtomicBoolean();
+		private final AtomicBoolean confirming = new AtomicBoolean();
+
+		private Entry(long transcodeId, String blob) {
+			this.transcodeId = transcodeId;
+			this.blob = blob;
+		}
+
+		public String blob() {
+			return blob;
+		}
+	}
+
+	private static final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+	private static final Map<String, Key> byBlob = new ConcurrentHashMap<>();
+	// by master, then format to when the miss expires, so a new transcode can forget every miss
+	// for its master at once
+	private static final Cache<String, Map<String, Long>> misses = CacheBuilder.newBuilder()
+			.expireAfterAccess(MISS_TTL_SECONDS, TimeUnit.SECONDS)
+			.maximumSize(65536)
+			.build();
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong knownMisses = new AtomicLong();
+	private static final AtomicLong lookups = new AtomicLong();
+	private static final AtomicLong verified = new AtomicLong();
+	private static final AtomicLong vanished = new AtomicLong();
+	private static final AtomicLong deletedElsewhere = new AtomicLong();
+
+	public static void start() {
+		try {
+			var rows = QTranscodes.findAllTranscodes();
+			for (var r : rows) {
+				add(r.master(), r.format(), r.transcodeId(), r.file());
+			}
+			log.debug("Indexed {} transcode{}", rows.size(), rows.size() == 1 ? "" : "s");
+		} catch (SQLException e) {
+			// everything will just be looked up the slow way until it's seen once
+			log.warn("Failed to load the transcode index", e);
+		}
+	}
+
+	/**
+	 * @param download if true, record that the transcode was downloaded
+	 * @return the transcode of the given master to the given format (or segment key), or null if
+	 * 		we don't know of one
+	 */
+	public static Entry get(String master, String format, boolean download) {
+		var k = new Key(master, format);
+		var e = entries.get(k);
+		if (e == null) return null;
+		if (System.nanoTime()-e.confirmedAt > CONFIRM_INTERVAL.toNanos() && e.confirming.compareAndSet(false, true)) {
+			Services.genericPool.execute(() -> confirm(k, e));
+		}
+		hits.incrementAndGet();
+		if (download) DownloadRecorder.transcodeDownloaded(e.transcodeId);
+		if (System.nanoTime()-e.verifiedAt > VERIFY_INTERVAL.toNanos() && e.verifying.compareAndSet(false, true)) {
+			Services.genericPool.execute(() -> verify(master, format, e));
+		}
+		return e;
+	}
+
+	/**
+	 * @return true if the database was recently asked for this and didn't have it, so it needn't
+	 * 		be asked again yet; otherwise, the caller is expected to ask it
+	 */
+	public static boolean knownMissing(String master, String format) {
+		var m = misses.getIfPresent(master);
+		Long expiry = m == null ? null : m.get(format);
+		if (expiry != null && expiry-System.nanoTime() > 0) {
+			knownMisses.incrementAndGet();
+			return true;
+		}
+		lookups.incrementAndGet();
+		return false;
+	}
+
+	public static void missing(String master, String format) {
+		try {
+			misses.get(master, ConcurrentHashMap::new).put(format, System.nanoTime()+TimeUnit.SECONDS.toNanos(MISS_TTL_SECONDS));
+		} catch (ExecutionException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Record a row that was just inserted into or found in {@code transcodes}.
+	 */
+	public static void add(String master, String format, long transcodeId, String blob) {
+		var k = new Key(master, format);
+		var old = entries.put(k, new Entry(transcodeId, blob));
+		if (old != null && !old.blob.equals(blob)) byBlob.remove(old.blob, k);
+		byBlob.put(blob, k);
+		// a new transcode can satisfy lookups for other formats by way of shortcuts
+		misses.invalidate(master);
+	}
+
+	/**
+	 * Called when a blob is removed from storage. The row is the caller's problem.
+	 */
+	public static void forgetBlob(String blob) {
+		var k = byBlob.remove(blob);
+		if (k != null) {
+			var e = entries.get(k);
+			if (e != null && e.blob.equals(blob)) entries.remove(k, e);
+		}
+	}
+
+	public static Stats getStats() {
+		return new Stats(entries.size(), hits.get(), knownMisses.get(), lookups.get(), verified.get(), vanished.get(), deletedElsewhere.get());
+	}
+
+	private static void confirm(Key k, Entry e) {
+		try {
+			if (!QTranscodes.transcodeExists(e.transcodeId)) {
+				log.debug("Transcode of {} to {} was deleted elsewhere", k.master(), k.format());
+				deletedElsewhere.incrementAndGet();
+				entries.remove(k, e);
+				byBlob.remove(e.blob, k);
+				return;
+			}
+			e.confirmedAt = System.nanoTime();
+		} catch (SQLException | RuntimeException ex) {
+			// probably still there; it'll be checked again next time
+			log.warn("Failed to confirm transcode {}", e.blob, ex);
+		} finally {
+			e.confirming.set(false);
+		}
+	}
+
+	private static void verify(String master, String format, Entry e) {
+		try {
+			if (Storage.blobExists(e.blob)) {
+				e.verifiedAt = System.nanoTime();
+				verified.incrementAndGet();
+				return;
+			}
+			log.warn("A transcode of {} to {} has gone missing!", master, format);
+			vanished.incrementAndGet();
+			entries.remove(new Key(master, format), e);
+			byBlob.remove(e.blob);
+			QTranscodes.deleteTranscode(e.transcodeId);
+		} catch (SQLException | RuntimeException ex) {
+			log.warn("Failed to check on transcode {}", e.blob, ex);
+		} finally {
+			e.verifying.set(false);
+		}
+	}
+
+}
@@ -0,0 +1,434 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.logic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.unascribed.partyflow.Partyflow;
+import com.unascribed.partyflow.config.TranscodeFormat;
+import com.unascribed.partyflow.config.TranscodeFormat.Shortcut;
+import com.unascribed.partyflow.data.QTranscodeJobs;
+import com.unascribed.partyflow.data.QTranscodeJobs.Job;
+import com.unascribed.partyflow.data.QTranscodeJobs.JobState;
+import com.unascribed.partyflow.data.QTranscodes;
+import com.unascribed.partyflow.data.QTranscodes.FoundShortcut;
+import com.unascribed.partyflow.data.QTranscodes.FoundTranscode;
+import com.unascribed.partyflow.data.QTranscodes.TranscodeSource;
+import com.unascribed.partyflow.logic.Transcoder.TranscodeResult;
+import com.unascribed.partyflow.util.BroadcastBuffer;
+import com.unascribed.partyflow.util.FairPriorityPool.TaskClass;
+import com.unascribed.partyflow.util.Services;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Table;
+import com.google.common.collect.Tables;
+
+/**
+ * Durable queue of cached transcodes, backed by the {@code transcode_jobs} table. A job is keyed
+ * by master and format, and whoever is running it holds a lease that must be renewed; if the
+ * holder goes away, the lease lapses and the job becomes runnable again. Jobs we held when we
+ * last shut down are put back in the queue on startup.
+ * <p>
+ * Transcodes are either claimed by a request thread so they can be streamed as they're made,
+ * or enqueued and picked up by the workers on the transcode pool. Either way, anyone else in
+ * this process who wants the same transcode gets the same {@link Inflight}.
+ */
+public class TranscodeJobs {
+
+	private static final Logger log = LoggerFactory.getLogger(TranscodeJobs.class);
+
+	/**
+	 * Jobs below {@link #PRIORITY_DOWNLOAD} are pre-warms, and are limited by the pre-warm budget.
+	 * Jobs below {@link #PRIORITY_INTERACTIVE} are bulk downloads.
+	 */
+	public static final int PRIORITY_PREWARM = 0;
+	public static final int PRIORITY_DOWNLOAD = 50;
+	public static final int PRIORITY_INTERACTIVE = 100;
+
+	private static final Duration LEASE_TIME = Duration.ofMinutes(2);
+	private static final Duration RETRY_DELAY = Duration.ofMinutes(1);
+	private static final int MAX_ATTEMPTS = 3;
+
+	public record SharedStream(String filename, BroadcastBuffer buffer) {}
+	/**
+	 * A cached transcode that's queued or being performed. {@code stream} completes once the
+	 * transcoder starts writing output (or with null if it never will, such as for a non-direct
+	 * format), and {@code blob} completes once the result has been stored. {@code running} is
+	 * set once something in this process has started performing the job.
+	 */
+	public record Inflight(CompletableFuture<SharedStream> stream, CompletableFuture<String> blob, AtomicBoolean running, long createdAt) {}
+
+	/**
+	 * @param owner if true, the caller holds the lease and must call {@link #complete} or
+	 * 		{@link #fail}; otherwise, it should wait on the Inflight
+	 */
+	public record Claim(Inflight inflight, boolean owner) {}
+
+	private static final Table<String, TranscodeFormat, Inflight> inflight = Tables.synchronizedTable(HashBasedTable.create());
+	private static final AtomicInteger runningJobs = new AtomicInteger();
+	private static final AtomicInteger runningPrewarms = new AtomicInteger();
+	private static final AtomicBoolean dispatchPending = new AtomicBoolean();
+	/**
+	 * Who most recently asked for each job, for fair scheduling. Not persisted; jobs resumed
+	 * after a restart are nobody's in particular.
+	 */
+	private static final Map<String, String> requesters = new ConcurrentHashMap<>();
+
+	// stable across restarts, so we can recognize our own leases
+	private static final String nodeId = hostname()+":"+Partyflow.config.http.port;
+
+	private static String hostname() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			return "localhost";
+		}
+	}
+
+	public static void start() {
+		try {
+			int n = QTranscodeJobs.requeueAll(nodeId);
+			if (n > 0) {
+				log.info("Resuming {} transcode{} interrupted by shutdown", n, n == 1 ? "" : "s");
+			}
+		} catch (SQLException e) {
+			log.warn("Failed to requeue interrupted transcodes", e);
+		}
+		// keep a slot free for streams and downloads when we can
+		Services.transcodePool.setLimit(TaskClass.ZIP, () -> Math.max(1, Services.transcodePool.getConcurrency()-1));
+		Services.transcodePool.setLimit(TaskClass.PREWARM, () -> {
+			int slots = Services.transcodePool.getConcurrency();
+			return Math.min(Math.max(1, slots-1), Prewarmer.maxSlots(slots));
+		});
+		long renewSecs = LEASE_TIME.toSeconds()/3;
+		Services.cron.scheduleWithFixedDelay(TranscodeJobs::renew, renewSecs, renewSecs, TimeUnit.SECONDS);
+		Services.cron.scheduleWithFixedDelay(TranscodeJobs::wake, 0, 5, TimeUnit.SECONDS);
+		Services.cron.scheduleWithFixedDelay(TranscodeJobs::poll, 2, 2, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @return the in-process handle for this transcode, if anyone here has asked for it
+	 */
+	public static Optional<Inflight> get(String master, TranscodeFormat format) {
+		return Optional.ofNullable(inflight.get(master, format));
+	}
+
+	/**
+	 * Ask for a transcode to be performed in the background.
+	 * @param client who's asking, such as an IP address; used to share the transcode pool fairly
+	 */
+	public static Inflight enqueue(TranscodeSource src, TranscodeFormat format, int priority, String client) throws SQLException {
+		submit(src, format, priority, client);
+		return track(src.master(), format);
+	}
+
+	/**
+	 * Ask for a transcode to be performed in the background, without waiting for it.
+	 * @param client who's asking, such as an IP address; used to share the transcode pool fairly
+	 */
+	public static void submit(TranscodeSource src, TranscodeFormat format, int priority, String client) throws SQLException {
+		QTranscodeJobs.enqueue(src, format, priority);
+		if (client != null) requesters.put(key(src.master(), format.name()), client);
+		wake();
+	}
+
+	/**
+	 * Try to take a transcode so the calling thread can perform it right now. If we'd already
+	 * picked it up from the queue but haven't started on it yet, the caller takes it over.
+	 */
+	public static Claim claim(TranscodeSource src, TranscodeFormat format) throws SQLException {
+		var inf = track(src.master(), format);
+		if (!inf.running().compareAndSet(false, true)) return new Claim(inf, false);
+		boolean acquired = false;
+		try {
+			acquired = QTranscodeJobs.acquire(src, format, PRIORITY_INTERACTIVE, nodeId, leaseExpiry());
+		} finally {
+			if (!acquired) inf.running().set(false);
+		}
+		return new Claim(inf, acquired);
+	}
+
+	/**
+	 * Record that a claimed transcode has been stored as the given blob. The caller must have
+	 * already inserted it into {@code transcodes}.
+	 */
+	public static void complete(String master, TranscodeFormat format, Inflight inf, String blob) {
+		try {
+			QTranscodeJobs.complete(master, format);
+		} catch (SQLException e) {
+			log.warn("Failed to mark transcode of {} to {} as complete", master, format, e);
+		}
+		untrack(master, format, inf);
+		inf.blob().complete(blob);
+	}
+
+	/**
+	 * Record that a claimed transcode has been stored as the given blob, inserting it into
+	 * {@code transcodes}. If it's still being written back, anyone waiting is handed the blob
+	 * right away, as it can be served locally, but the row isn't written and the job isn't
+	 * finished until the upload is.
+	 */
+	public static void stored(TranscodeSource src, TranscodeFormat format, Inflight inf, TranscodeResult tr) throws SQLException {
+		String blob = tr.blob();
+		var upload = WriteBack.whenStored(blob);
+		if (upload.isDone() && !upload.isCompletedExceptionally()) {
+			try (var c = Partyflow.sql.getConnection()) {
+				QTranscodes.insertTranscode(c, src.master(), format, blob, src.trackId(), src.releaseId(), tr.size(), tr.encodeMillis());
+			}
+			complete(src.master(), format, inf, blob);
+			return;
+		}
+		inf.blob().complete(blob);
+		upload.whenComplete((v, t) -> {
+			if (t != null) {
+				fail(src.master(), format, inf, t);
+				return;
+			}
+			try (var c = Partyflow.sql.getConnection()) {
+				QTranscodes.insertTranscode(c, src.master(), format, blob, src.trackId(), src.releaseId(), tr.size(), tr.encodeMillis());
+				complete(src.master(), format, inf, blob);
+			} catch (SQLException e) {
+				log.warn("Failed to record written-back transcode of {} to {}", src.master(), format, e);
+				fail(src.master(), format, inf, e);
+			}
+		});
+	}
+
+	/**
+	 * Give up on a claimed transcode. It'll be retried in the background unless it's out of
+	 * attempts.
+	 */
+	public static void fail(String master, TranscodeFormat format, Inflight inf, Throwable t) {
+		try {
+			QTranscodeJobs.fail(master, format, nodeId, String.valueOf(t), MAX_ATTEMPTS,
+					new Timestamp(System.currentTimeMillis()+RETRY_DELAY.toMillis()));
+		} catch (SQLException e) {
+			log.warn("Failed to mark transcode of {} to {} as failed", master, format, e);
+		}
+		untrack(master, format, inf);
+		inf.blob().completeExceptionally(t);
+	}
+
+	public static void wake() {
+		if (dispatchPending.compareAndSet(false, true)) {
+			Services.genericPool.execute(TranscodeJobs::dispatch);
+		}
+	}
+
+	private static Inflight track(String master, TranscodeFormat format) {
+		synchronized (inflight) {
+			var inf = inflight.get(master, format);
+			if (inf == null) {
+				inf = new Inflight(new CompletableFuture<>(), new CompletableFuture<>(), new AtomicBoolean(), System.nanoTime());
+				inflight.put(master, format, inf);
+			}
+			return inf;
+		}
+	}
+
+	private static void untrack(String master, TranscodeFormat format, Inflight inf) {
+		synchronized (inflight) {
+			if (inflight.get(master, format) == inf) inflight.remove(master, format);
+		}
+		// if we never started streaming, anyone waiting for a stream needs to wait for the blob instead
+		inf.stream().complete(null);
+	}
+
+	private static Timestamp leaseExpiry() {
+		return new Timestamp(System.currentTimeMillis()+LEASE_TIME.toMillis());
+	}
+
+	private static String key(String master, String format) {
+		return master+"\0"+format;
+	}
+
+	private static TaskClass classify(Job j) {
+		if (j.priority() < PRIORITY_DOWNLOAD) return TaskClass.PREWARM;
+		if (j.priority() < PRIORITY_INTERACTIVE) return TaskClass.ZIP;
+		var format = TranscodeFormat.byName(j.format());
+		if (format.isPresent() && !format.get().usage().canDownload()) return TaskClass.STREAM;
+		return TaskClass.DOWNLOAD;
+	}
+
+	private static synchronized void dispatch() {
+		dispatchPending.set(false);
+		int slots = Services.transcodePool.getConcurrency();
+		// claim a little more than we can run at once, so the pool has something to prioritize
+		int free = (slots*2)-runningJobs.get();
+		List<Job> jobs = new ArrayList<>();
+		try {
+			if (free > 0) {
+				jobs.addAll(QTranscodeJobs.claim(nodeId, leaseExpiry(), free, PRIORITY_DOWNLOAD, Integer.MAX_VALUE));
+			}
+			// pre-warms are only claimed as they can be run, so we don't sit on leases for them
+			int budget = Prewarmer.maxSlots(slots)-runningPrewarms.get();
+			if (budget > 0) {
+				jobs.addAll(QTranscodeJobs.claim(nodeId, leaseExpiry(), budget, Integer.MIN_VALUE, PRIORITY_DOWNLOAD-1));
+			}
+		} catch (SQLException e) {
+			log.warn("Failed to claim transcode jobs", e);
+			return;
+		}
+		for (var j : jobs) {
+			boolean prewarm = j.priority() < PRIORITY_DOWNLOAD;
+			if (prewarm) {
+				runningPrewarms.incrementAndGet();
+			} else {
+				runningJobs.incrementAndGet();
+			}
+			String client = requesters.remove(key(j.master(), j.format()));
+			if (client == null) client = prewarm ? "prewarm:"+j.releaseId() : "";
+			Services.transcodePool.submit(classify(j), client, () -> {
+				try {
+					run(j);
+				} finally {
+					if (prewarm) {
+						runningPrewarms.decrementAndGet();
+					} else {
+						runningJobs.decrementAndGet();
+					}
+					wake();
+				}
+			});
+		}
+	}
+
+	private static void run(Job j) {
+		var format = TranscodeFormat.byName(j.format()).orElse(null);
+		if (format == null) {
+			log.warn("Dropping queued transcode of {} {} to unknown format {}", j.kind(), j.slug(), j.format());
+			try {
+				QTranscodeJobs.delete(j.jobId());
+			} catch (SQLException e) {
+				log.warn("Failed to drop transcode job", e);
+			}
+			return;
+		}
+		var inf = track(j.master(), format);
+		if (!inf.running().compareAndSet(false, true)) {
+			log.debug("Queued transcode of {} {} to {} was taken over by a request", j.kind(), j.slug(), format);
+			return;
+		}
+		try (var c = Partyflow.sql.getConnection()) {
+			TranscodeSource src;
+			var st = SpecialTrack.BY_SLUG.get(j.master());
+			if (st != null) {
+				src = TranscodeSource.of(st);
+			} else {
+				long id = "track".equals(j.kind()) ? j.trackId() : j.releaseId();
+				src = QTranscodes.findSource(c, j.kind(), id).orElse(null);
+			}
+			if (src == null || !j.master().equals(src.master())) {
+				// deleted or replaced since it was queued; nobody wants this anymore
+				log.debug("Dropping obsolete transcode of {} {} to {}", j.kind(), j.slug(), format);
+				QTranscodeJobs.delete(j.jobId());
+				untrack(j.master(), format, inf);
+				inf.blob().completeExceptionally(new IOException("The master for "+j.kind()+" "+j.slug()+" has changed"));
+				return;
+			}
+			Shortcut shortcut = null;
+			String shortcutSource = null;
+			var found = QTranscodes.findExistingTranscode(c, false, src.kind(), src.slug(), format, src.master());
+			if (found instanceof FoundTranscode ft) {
+				complete(src.master(), format, inf, ft.blob());
+				return;
+			} else if (found instanceof FoundShortcut fs) {
+				shortcut = fs.shortcut();
+				shortcutSource = fs.srcBlob();
+			}
+			log.debug("Performing queued {} of {} {} to {}", shortcut == null ? "transcode" : "remux", src.kind(), src.slug(), format);
+			var tr = Transcoder.performTranscode(format, src.kind(), src.slug(), MoreObjects.firstNonNull(shortcutSource, src.master()),
+					src.title(), src.releaseTitle(), src.creator(), src.art(), src.lyrics(), src.year(),
+					src.trackNumber() == null ? -1 : src.trackNumber(), src.rgd(), true, src.published(), shortcut,
+					// direct formats still get written through a broadcast so that anyone who shows up can stream along
+					format.direct() ? (filename) -> OutputStream.nullOutputStream() : null,
+					(filename, buf) -> inf.stream().complete(new SharedStream(filename, buf)));
+			if (tr.blob() == null) throw new IOException("Master for "+src.kind()+" "+src.slug()+" is missing");
+			stored(src, format, inf, tr);
+		} catch (Throwable t) {
+			log.warn("Queued transcode of {} {} to {} failed (attempt {})", j.kind(), j.slug(), format, j.attempts()+1, t);
+			fail(j.master(), format, inf, t);
+		}
+	}
+
+	private static void renew() {
+		try {
+			QTranscodeJobs.renew(nodeId, leaseExpiry());
+		} catch (SQLException e) {
+			log.warn("Failed to renew transcode leases", e);
+		}
+	}
+
+	/**
+	 * Check on anything we're waiting for that isn't running in this process, as it may be
+	 * running somewhere else.
+	 */
+	private static void poll() {
+		List<Table.Cell<String, TranscodeFormat, Inflight>> waiting = new ArrayList<>();
+		long cutoff = System.nanoTime()-TimeUnit.SECONDS.toNanos(5);
+		synchronized (inflight) {
+			for (var cell : inflight.cellSet()) {
+				// give new entries a moment, as their rows may not have been written yet
+				if (!cell.getValue().running().get() && cell.getValue().createdAt() < cutoff) waiting.add(cell);
+			}
+		}
+		if (waiting.isEmpty()) return;
+		try (var c = Partyflow.sql.getConnection()) {
+			for (var cell : waiting) {
+				String master = cell.getRowKey();
+				TranscodeFormat format = cell.getColumnKey();
+				Inflight inf = cell.getValue();
+				var found = QTranscodes.findExistingTranscode(c, false, "job", master, format, master);
+				if (found instanceof FoundTranscode ft) {
+					untrack(master, format, inf);
+					inf.blob().complete(ft.blob());
+					continue;
+				}
+				var job = QTranscodeJobs.get(master, format);
+				if (job.isEmpty() || job.get().state() == JobState.FAILED.id()) {
+					untrack(master, format, inf);
+					inf.blob().completeExceptionally(new IOException("Transcode of "+master+" to "+format+" failed"));
+				}
+			}
+		} catch (SQLException e) {
+			log.warn("Failed to check on queued transcodes", e);
+		}
+	}
+
+}
@@ -0,0 +1,176 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.logic;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.unascribed.partyflow.Partyflow;
+import com.unascribed.partyflow.util.Services;
+import com.unascribed.partyflow.util.FairPriorityPool.TaskClass;
+
+/**
+ * Adjusts how many transcodes run at once based on how fast they're actually going, rather than
+ * trusting a hand-tuned number. Works like TCP congestion control: while people are kept waiting
+ * by the queue and transcodes are running as fast as they ever have, allow one more; when they
+ * slow down noticeably or the machine is overloaded, cut back by a quarter.
+ * <p>
+ * "Kept waiting" is measured as the queue latency of the interactive classes, so a pile of
+ * background work queued up behind a full pool doesn't by itself make us take on more.
+ * <p>
+ * "As fast as they ever have" is measured per format, as master bytes consumed per second of
+ * wall time, which is proportional to the realtime factor. Streamed transcodes are paced by the
+ * client, so only ones written straight to storage are measured.
+ */
+public class TranscodeLimiter {
+
+	private static final Logger log = LoggerFactory.getLogger(TranscodeLimiter.class);
+
+	/**
+	 * Inputs smaller than this finish too quickly to say anything useful about throughput.
+	 */
+	private static final long MIN_SAMPLE_BYTES = 256*1024;
+	/**
+	 * How far below the best throughput we've seen transcodes may fall before we back off.
+	 */
+	private static final double BACKOFF_GRADIENT = 0.7;
+	/**
+	 * How close to the best throughput we've seen transcodes must be for us to try adding more.
+	 */
+	private static final double GROWTH_GRADIENT = 0.9;
+	/**
+	 * How quickly the best throughput for a format forgets old samples, per sample.
+	 */
+	private static final double BEST_DECAY = 0.995;
+	/**
+	 * How long streams, downloads and uploads may wait for a slot before we try adding more.
+	 */
+	private static final long LATENCY_TARGET_MILLIS = 250;
+
+	private static final int nproc = Runtime.getRuntime().availableProcessors();
+
+	private static final Map<String, Double> bestSpeed = new ConcurrentHashMap<>();
+
+	private static volatile int limit;
+	private static int min, max;
+
+	private static double gradientSum;
+	private static int gradientSamples;
+	private static volatile double lastGradient = 1;
+
+	public static boolean enabled() {
+		return Partyflow.config.programs.adaptiveTranscodes;
+	}
+
+	public static void start() {
+		max = Services.transcodePool.getThreads();
+		min = Math.max(1, Math.min(max, Partyflow.config.programs.minTranscodes));
+		if (!enabled()) {
+			limit = max;
+			return;
+		}
+		limit = Math.max(min, max/2);
+		Services.transcodePool.setConcurrency(TranscodeLimiter::limit);
+		Services.cron.scheduleWithFixedDelay(TranscodeLimiter::adjust, 10, 10, TimeUnit.SECONDS);
+		log.info("Adaptive transcode concurrency enabled; starting at {}, between {} and {}", limit, min, max);
+	}
+
+	/**
+	 * @return how many transcodes may run at once right now
+	 */
+	public static int limit() {
+		return limit;
+	}
+
+	/**
+	 * @return the throughput of recent transcodes as a fraction of the best seen for their
+	 * 		formats, or 1 if nothing has been measured lately
+	 */
+	public static double gradient() {
+		return lastGradient;
+	}
+
+	/**
+	 * @return how many threads each FFmpeg encoder should use, such that all the transcodes
+	 * 		we're willing to run at once share the CPUs between them, or 0 to let FFmpeg decide
+	 */
+	public static int ffmpegThreads() {
+		if (!enabled()) return 0;
+		return Math.max(1, nproc/Math.max(1, limit));
+	}
+
+	/**
+	 * Record how long a transcode to the given format took.
+	 * @param inputBytes the size of the master that was consumed
+	 * @param nanos the wall time from starting the processes to them exiting
+	 */
+	public static void record(String format, long inputBytes, long nanos) {
+		if (!enabled() || inputBytes < MIN_SAMPLE_BYTES || nanos <= 0) return;
+		double speed = inputBytes/(nanos/1_000_000_000D);
+		double best = bestSpeed.merge(format, speed, (a, b) -> Math.max(a*BEST_DECAY, b));
+		synchronized (TranscodeLimiter.class) {
+			gradientSum += speed/best;
+			gradientSamples++;
+		}
+	}
+
+	private static void adjust() {
+		try {
+			double gradient;
+			synchronized (TranscodeLimiter.class) {
+				gradient = gradientSamples == 0 ? Double.NaN : gradientSum/gradientSamples;
+				gradientSum = 0;
+				gradientSamples = 0;
+			}
+			if (!Double.isNaN(gradient)) lastGradient = gradient;
+			double load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+			// negative if the platform can't tell us
+			boolean overloaded = load >= 0 && load > nproc*1.5;
+			boolean busy = load >= 0 && load > nproc;
+			int queued = Services.transcodePool.getQueued();
+			boolean saturated = Services.transcodePool.getRunning() >= limit;
+			long latency = TimeUnit.NANOSECONDS.toMillis(Services.transcodePool.getQueueLatency(
+					TaskClass.STREAM, TaskClass.DOWNLOAD, TaskClass.INGEST));
+			int oldLimit = limit;
+			int newLimit = oldLimit;
+			if (overloaded || gradient < BACKOFF_GRADIENT) {
+				newLimit = Math.max(min, (int)(oldLimit*0.75));
+			} else if (queued > 0 && saturated && latency >= LATENCY_TARGET_MILLIS && !busy
+					&& (Double.isNaN(gradient) || gradient >= GROWTH_GRADIENT)) {
+				newLimit = Math.min(max, oldLimit+1);
+			}
+			if (newLimit != oldLimit) {
+				limit = newLimit;
+				log.debug("Transcode concurrency {} -> {} (throughput gradient {}, load {}, {} queued, {}ms queue latency)",
+						oldLimit, newLimit, Double.isNaN(gradient) ? "n/a" : String.format("%.2f", gradient),
+						String.format("%.2f", load), queued, latency);
+				TranscodeJobs.wake();
+			}
+		} catch (Throwable t) {
+			log.warn("Failed to adjust transcode concurrency", t);
+		}
+	}
+
+}
@@ -19,30 +19,35 @@
 
 package com.unascribed.partyflow.logic;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.sql.SQLException;
-import java.sql.Timestamp;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
 
 import javax.annotation.WillClose;
 
 import org.jclouds.blobstore.domain.Blob;
 import org.jclouds.blobstore.domain.BlobAccess;
+import org.jclouds.blobstore.options.GetOptions;
 import org.jclouds.blobstore.options.PutOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -53,13 +58,20 @@ import com.unascribed.partyflow.config.TranscodeFormat;
 import com.unascribed.partyflow.config.TranscodeFormat.ReplayGainData;
 import com.unascribed.partyflow.config.TranscodeFormat.Shortcut;
 import com.unascribed.partyflow.config.TranscodeFormat.Usage;
+import com.unascribed.partyflow.data.QTranscodes;
+import com.unascribed.partyflow.data.QTranscodes.CachedTranscode;
 import com.unascribed.partyflow.util.BlobByteSource;
+import com.unascribed.partyflow.util.BroadcastBuffer;
 import com.unascribed.partyflow.util.Commands;
-import com.unascribed.partyflow.util.ForkOutputStream;
 import com.unascribed.partyflow.util.IBXMByteSource;
-import com.unascribed.partyflow.util.MoreByteStreams;
-import com.unascribed.partyflow.util.Processes;
+import com.unascribed.partyflow.util.ProcessPipeline;
+import com.unascribed.partyflow.util.RingBufferTee;
+import com.unascribed.partyflow.util.RingBufferTee.SlowBranchPolicy;
 import com.unascribed.partyflow.util.Services;
+import com.unascribed.partyflow.util.audio.FlacDecoder;
+import com.unascribed.partyflow.util.audio.FlacMetadata;
+import com.unascribed.partyflow.util.audio.PcmContainer;
+import com.unascribed.partyflow.util.audio.PcmContainer.Tag;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.MoreObjects;
@@ -79,19 +91,139 @@ public class Transcoder {
 		OutputStream get(String filename) throws IOException;
 	}
 	
-	public record TranscodeResult(String blob, long size, String filename) {}
+	/**
+	 * @param encodeMillis how long it took to make, for weighing whether it's worth keeping
+	 */
+	public record TranscodeResult(String blob, long size, String filename, long encodeMillis) {}
+	
+	/**
+	 * A transcode done in-process, without FFmpeg. Its exact length is known before any of it is
+	 * written, and any byte range of it can be written.
+	 */
+	public interface InProcessTranscode extends Closeable {
+		String filename();
+		long length();
+		void writeTo(OutputStream out, long offset, long length) throws IOException;
+	}
+	
+	private record UncompressedTranscode(String filename, long length, PcmContainer container, byte[] header,
+			FlacDecoder decoder) implements InProcessTranscode {
+		
+		@Override
+		public void writeTo(OutputStream out, long offset, long length) throws IOException {
+			container.transcode(decoder, header, out, offset, length);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			decoder.close();
+		}
+		
+	}
+	
+	/**
+	 * A master with its tags replaced, made by writing new metadata blocks and then copying the
+	 * master's audio frames as-is.
+	 */
+	private static final class RetaggedFlac implements InProcessTranscode {
+		private final String filename;
+		private final byte[] header;
+		private final String blob;
+		private final long audioOffset;
+		private final long audioLength;
+		// already positioned at the first frame, for the common case of wanting the whole thing
+		private InputStream initial;
+		
+		RetaggedFlac(String filename, byte[] header, String blob, long audioOffset, long audioLength, InputStream initial) {
+			this.filename = filename;
+			this.header = header;
+			this.blob = blob;
+			this.audioOffset = audioOffset;
+			this.audioLength = audioLength;
+			this.initial = initial;
+		}
+		
+		@Override
+		public String filename() {
+			return filename;
+		}
+		
+		@Override
+		public long length() {
+			return header.length+audioLength;
+		}
+		
+		@Override
+		public void writeTo(OutputStream out, long offset, long length) throws IOException {
+			long end = Math.min(length(), offset+length);
+			if (offset < header.length) {
+				out.write(header, (int)offset, (int)(Math.min(end, header.length)-offset));
+			}
+			if (end <= header.length) return;
+			long from = Math.max(0, offset-header.length);
+			long to = end-header.length;
+			InputStream in;
+			if (from == 0 && initial != null) {
+				in = initial;
+				initial = null;
+			} else {
+				close();
+				// no need to fetch what we'd only throw away
+				Blob b = Storage.getBlob(blob, new GetOptions().range(audioOffset+from, audioOffset+to-1));
+				if (b == null) throw new IOException("Master "+blob+" went missing");
+				in = b.getPayload().openStream();
+			}
+			try (in) {
+				long copied = ByteStreams.copy(ByteStreams.limit(in, to-from), out);
+				if (copied != to-from) throw new EOFException("Master "+blob+" is shorter than it was a moment ago");
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (initial != null) {
+				initial.close();
+				initial = null;
+			}
+		}
+	}
+	
+	public record ShortcutStats(String format, String source, long remuxes, long failures, long totalMillis) {}
+	
+	private record ShortcutKey(String format, String source) {}
+	private static final class ShortcutCounters {
+		final AtomicLong remuxes = new AtomicLong();
+		final AtomicLong failures = new AtomicLong();
+		final AtomicLong nanos = new AtomicLong();
+	}
+	private static final Map<ShortcutKey, ShortcutCounters> shortcutCounters = new ConcurrentHashMap<>();
 
 	public static final File WORK_DIR = new File(System.getProperty("java.io.tmpdir"), "partyflow/work");
-	private static final Pattern MAGICK_SIZE_PATTERN = Pattern.compile("([0-9]+)x([0-9]+)");
-	private static final AtomicInteger pipeNum = new AtomicInteger();
+	private static final int DEFAULT_TEE_SIZE = 4*1024*1024;
+	private static final ThreadFactory pipeFactory = Services.helperFactory("Pipe");
 
 	public static TranscodeResult performTranscode(TranscodeFormat fmt, String kind, String slug, String src,
 			String title, String releaseTitle, String creator, String art, String lyrics, int year, int trackNumber, ReplayGainData rgd,
 			boolean cache, boolean published, Shortcut shortcut, DirectStreamSupplier directOut) throws IOException, ServletException {
+		return performTranscode(fmt, kind, slug, src, title, releaseTitle, creator, art, lyrics, year, trackNumber, rgd, cache, published, shortcut, directOut, null);
+	}
+
+	/**
+	 * @param onBroadcast if non-null and this is a cached direct transcode, will be given the
+	 * 		filename and the buffer the cache copy is being written to as soon as output begins, so
+	 * 		that other clients can follow along
+	 */
+	public static TranscodeResult performTranscode(TranscodeFormat fmt, String kind, String slug, String src,
+			String title, String releaseTitle, String creator, String art, String lyrics, int year, int trackNumber, ReplayGainData rgd,
+			boolean cache, boolean published, Shortcut shortcut, DirectStreamSupplier directOut,
+			BiConsumer<String, BroadcastBuffer> onBroadcast) throws IOException, ServletException {
 		WORK_DIR.mkdirs();
 		var st = SpecialTrack.BY_SLUG.get(src);
 		ByteSource masterBlob;
-		if (st == null) {
+		boolean virtual = VirtualConcat.is(src);
+		if (virtual) {
+			masterBlob = VirtualConcat.open(src);
+		} else if (st == null) {
 			masterBlob = new BlobByteSource(Storage.getBlob(src));
 		} else {
 			masterBlob = switch (st) {
@@ -101,62 +233,35 @@ public class Transcoder {
 		}
 		if (masterBlob == null && st != SpecialTrack.TEST_TRACK) {
 			log.error("Master for {} {} is missing!", kind, slug);
-			return new TranscodeResult(null, 0, null);
+			return new TranscodeResult(null, 0, null, 0);
 		}
 		File tmpFile = cache ? File.createTempFile("transcode-", "."+fmt.fileExtension(), WORK_DIR) : null;
 		boolean attachArt = art != null && fmt.usage().canDownload() && !fmt.args().contains("-vn");
 		boolean ogg = fmt.args().contains("ogg");
 		String artB64 = null;
-		File artFile = null;
+		ArtCache.Handle artHandle = null;
 		if (art != null && attachArt) {
-			artFile = File.createTempFile("transcode-", art.substring(art.lastIndexOf('.')), WORK_DIR);
-			Blob artBlob = Storage.getBlob(art);
-			if (artBlob == null) {
+			artHandle = ArtCache.get(art);
+			if (artHandle == null) {
 				log.warn("Art for {} {} is missing!", kind, slug);
 				attachArt = false;
-			} else {
-				try (var p = artBlob.getPayload();
-						var in = p.openStream();
-						var out = new FileOutputStream(artFile)) {
-					in.transferTo(out);
-				}
-				if (ogg) {
-					attachArt = false;
-					// FFmpeg doesn't support writing Ogg album art...
-					// Been an open feature request for 7 years
-					Process p = Commands.magick_convert(artFile.getPath(), "-identify", "null:-").start();
-					p.getOutputStream().close();
-					String out = MoreByteStreams.slurp(p.getInputStream());
-					String err = MoreByteStreams.slurp(p.getErrorStream());
-					if (Processes.waitForUninterruptibly(p) != 0) {
-						log.warn("Failed to identify art with ImageMagick:\n{}", err);
-					} else {
-						var m = MAGICK_SIZE_PATTERN.matcher(out);
-						if (m.find()) {
-							int width = Integer.parseInt(m.group(1));
-							int height = Integer.parseInt(m.group(2));
-							var baos = new ByteArrayOutputStream();
-							var dos = new DataOutputStream(baos);
-							String mime = artBlob.getMetadata().getContentMetadata().getContentType();
-							dos.writeInt(3); // Cover (front)
-							dos.writeInt(mime.length());
-							dos.write(mime.getBytes(Charsets.US_ASCII));
-							dos.writeInt(0);
-							dos.writeInt(width);
-							dos.writeInt(height);
-							dos.writeInt(24);
-							dos.writeInt(0);
-							dos.writeInt((int)artFile.length());
-							try (var in = new FileInputStream(artFile)) {
-								in.transferTo(dos);
-							}
-							artB64 = Base64.getEncoder().encodeToString(baos.toByteArray());
-						}
-					}
+			} else if (ogg) {
+				attachArt = false;
+				// FFmpeg doesn't support writing Ogg album art...
+				// Been an open feature request for 7 years
+				try {
+					artB64 = artHandle.pictureBlock();
+				} catch (IOException | RuntimeException e) {
+					artHandle.close();
+					throw e;
 				}
 			}
 		}
+		File artFile = artHandle == null ? null : artHandle.file();
 		File metaFile = File.createTempFile("transcode-", ".txt", WORK_DIR);
+		BroadcastBuffer broadcast = null;
+		RingBufferTee tee = null;
+		var cacheDropped = new AtomicBoolean();
 		String guilt = (!fmt.usage().canDownload() ? ". Low-quality encode for streaming; consider downloading a real copy." : "");
 		try {
 			List<String> meta = new ArrayList<>();
@@ -168,23 +273,25 @@ public class Transcoder {
 			if (trackNumber > 0) meta.add("track="+trackNumber);
 			if (lyrics != null) meta.add("unsyncedlyrics="+lyrics.replace("\n", "\\\n"));
 			if (artB64 != null) meta.add("metadata_block_picture="+artB64);
-			meta.add("comment=Generated by Partyflow v"+Version.FULL+" hosted at "+Partyflow.publicUri.getHost()+guilt);
+			meta.add("comment="+comment()+guilt);
 			fmt.replaygain().entrySet().stream()
 				.map(en -> en.getKey()+"="+en.getValue().apply(rgd))
 				.forEach(meta::add);
 			Files.asCharSink(metaFile, Charsets.UTF_8).writeLines(meta);
 			boolean useAltcmd = shortcut == null && fmt.altcmd() != null;
-			List<Process> processes = new ArrayList<>();
 			List<String> inputArgs;
 			if (masterBlob == null) {
 				inputArgs = List.of("-f", "lavfi", "-i", "anullsrc=r=48000:cl=stereo:d=1");
+			} else if (masterBlob instanceof VirtualConcat.Concat vc) {
+				inputArgs = new ArrayList<>(vc.inputArgs());
+				inputArgs.addAll(List.of("-i", "-"));
 			} else {
 				inputArgs = List.of("-i", "-");
 			}
 			ProcessBuilder ffmBldr = Commands.ffmpeg("-v", "error",
 					useAltcmd ? List.of("-i", "-") : inputArgs, "-i", metaFile.getAbsolutePath(),
 							attachArt && artFile != null ? List.of("-i", artFile.getAbsolutePath()) : null,
-					shortcut == null ? removeCopyIf(fmt.args(), st != null) : shortcut.args(),
+					shortcut == null ? removeCopyIf(fmt.args(), st != null || virtual) : shortcut.args(),
 					"-map_metadata", "1",
 					"-map", "a",
 					attachArt ?
@@ -195,9 +302,10 @@ public class Transcoder {
 							"-disposition:v", "attached_pic",
 							"-codec:v", "copy"
 						) : null,
+					"-threads", TranscodeLimiter.ffmpegThreads(),
 					"-y",
 					directOut != null ? "-" : Objects.requireNonNull(tmpFile).getAbsolutePath());
-			Process input;
+			List<ProcessBuilder> builders;
 			if (useAltcmd) {
 				ProcessBuilder inffm = Commands.ffmpeg("-v", "error",
 						inputArgs,
@@ -205,82 +313,222 @@ public class Transcoder {
 						"-map_metadata", "-1",
 						"-");
 				ProcessBuilder altcmd = Commands.altcmd(fmt.altcmd(), fmt.altcmdargs());
-				processes.addAll(ProcessBuilder.startPipeline(List.of(inffm, altcmd, ffmBldr)));
-				input = processes.get(0);
+				builders = List.of(inffm, altcmd, ffmBldr);
 			} else {
-				input = ffmBldr.start();
-				processes.add(input);
+				builders = List.of(ffmBldr);
 			}
-			Process ffm = processes.get(processes.size()-1);
-			String filename = creator+" - "+(releaseTitle == null ? "" : releaseTitle+" - ")+String.format("%02d", trackNumber)+" "+title+"."+fmt.fileExtension();
+			String filename = filename(fmt, title, releaseTitle, creator, trackNumber);
 			String filenameEncoded = encodeFilename(filename);
-			if (directOut != null) {
-				OutputStream dio = directOut.get(filenameEncoded);
-				OutputStream out = cache ? new ForkOutputStream(new FileOutputStream(tmpFile), dio) : dio;
-				pipe(ffm, out);
-			}
-			if (masterBlob != null) {
-				try (var in = masterBlob.openStream();
-						var out = input.getOutputStream()) {
-					ByteStreams.copy(in, out);
-				} catch (IOException e) {
-					if (!"Broken pipe".equals(e.getMessage())) {
-						throw e;
+			long startTime = System.nanoTime();
+			long inputBytes = 0;
+			try (var pipeline = ProcessPipeline.start((shortcut == null ? "transcode" : "remux")+" of "+kind+" "+slug+" to "+fmt,
+					Partyflow.config.programs.transcodeTimeout, builders, WORK_DIR)) {
+				Process input = pipeline.first();
+				if (directOut != null) {
+					OutputStream out;
+					if (cache) {
+						broadcast = new BroadcastBuffer(tmpFile);
+						if (onBroadcast != null) onBroadcast.accept(filenameEncoded, broadcast);
+						var bc = broadcast;
+						int teeSize = Partyflow.config.programs.teeBuffer > 0 ? Partyflow.config.programs.teeBuffer*1024 : DEFAULT_TEE_SIZE;
+						var policy = MoreObjects.firstNonNull(Partyflow.config.programs.slowCachePolicy, SlowBranchPolicy.SPILL);
+						// if the cache copy falls behind and gets dropped, followers can't be given a truncated file
+						out = tee = new RingBufferTee(directOut.get(filenameEncoded), broadcast.writer(), teeSize, policy, () -> {
+							cacheDropped.set(true);
+							bc.fail(new IOException("Cache copy fell behind and was dropped"));
+						}, WORK_DIR);
+					} else {
+						out = directOut.get(filenameEncoded);
 					}
+					// if the client is the only one who wants the output, there's no point going on without them
+					pipe(pipeline.last(), out, cache ? null : pipeline);
 				}
-			} else {
-				input.getOutputStream().close();
-			}
-			AtomicBoolean errored = new AtomicBoolean(false);
-			CountDownLatch cdl = new CountDownLatch(processes.size());
-			for (var p : processes) {
-				new Thread(() -> {
-					try {
-						String err = MoreByteStreams.slurp(p.getErrorStream());
-						if (Processes.waitForUninterruptibly(p) != 0) {
-							log.warn("Failed to process audio:\n{}", err);
-							errored.set(true);
-						}
+				if (masterBlob != null) {
+					try (var in = masterBlob.openStream();
+							var out = input.getOutputStream()) {
+						inputBytes = ByteStreams.copy(in, out);
 					} catch (IOException e) {
-						log.warn("Failed to process audio:\n{}", e);
-						errored.set(true);
-					} finally {
-						cdl.countDown();
+						pipeline.checkCancelled();
+						if (!"Broken pipe".equals(e.getMessage())) {
+							throw e;
+						}
 					}
-				}, "Process watcher").start();
+				} else {
+					input.getOutputStream().close();
+				}
+				if (!pipeline.waitFor()) {
+					log.warn("Failed to process audio:\n{}", pipeline.errors());
+					if (shortcut != null) recordShortcut(fmt, shortcut, false, System.nanoTime()-startTime);
+					throw new ServletException("Failed to process audio");
+				}
 			}
-			try {
-				cdl.await();
-			} catch (InterruptedException e) {
+			// for direct transcodes this includes waiting on the client, so it's a bit pessimistic
+			long encodeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-startTime);
+			if (shortcut != null) recordShortcut(fmt, shortcut, true, System.nanoTime()-startTime);
+			if (directOut == null) {
+				// direct transcodes go as fast as the client reads, which says nothing about us
+				TranscodeLimiter.record(shortcut == null ? fmt.name() : fmt.name()+"+remux", inputBytes, System.nanoTime()-startTime);
 			}
-			if (errored.get()) {
-				throw new ServletException("Failed to process audio");
+			if (broadcast != null) {
+				// the pipe thread may still be flushing the tail end after the processes exit
+				try {
+					broadcast.awaitDone();
+				} catch (IOException e) {
+					// the client got everything, so losing the cache copy isn't their problem
+					if (!cacheDropped.get() || tee.isPrimaryDead()) throw e;
+					log.debug("Cache copy of {} to {} was dropped; not storing it", title, fmt);
+					return new TranscodeResult(null, 0, filename, encodeMillis);
+				}
 			}
 			if (tmpFile != null) {
 				log.debug("{} of {} to {} completed", shortcut == null ? "Transcode" : "Remux", title, fmt);
-				String blobName;
-				do {
-					String rand = Partyflow.randomString(Services.random, 16);
-					blobName = "transcodes/"+rand.substring(0, 3)+"/"+rand+"."+fmt.fileExtension();
-				} while (Storage.blobExists(blobName));
-				Blob transBlob = Storage.blobBuilder(blobName)
-						.payload(tmpFile)
-						.contentType(fmt.mimeType())
-						.contentDisposition(fmt.usage() == Usage.DOWNLOAD ? "attachment; filename="+filenameEncoded+"; filename*=utf-8''"+filenameEncoded : "inline")
-						.cacheControl(published ? "public, immutable" : "private")
-						.build();
-				Storage.putBlob(transBlob, new PutOptions().multipart().setBlobAccess(BlobAccess.PUBLIC_READ));
-				return new TranscodeResult(blobName, tmpFile.length(), filename);
+				String cd = fmt.usage() == Usage.DOWNLOAD ? "attachment; filename="+filenameEncoded+"; filename*=utf-8''"+filenameEncoded : "inline";
+				long size = tmpFile.length();
+				String blobName = WriteBack.enabled() ? WriteBack.store(tmpFile, fmt, cd, published) : storeTranscode(tmpFile, fmt, cd, published);
+				return new TranscodeResult(blobName, size, filename, encodeMillis);
 			} else {
-				return new TranscodeResult(null, 0, filename);
+				return new TranscodeResult(null, 0, filename, encodeMillis);
 			}
 		} finally {
+			if (broadcast != null && !broadcast.isDone()) broadcast.fail(new IOException("Transcode failed"));
 			if (tmpFile != null) tmpFile.delete();
-			if (artFile != null) artFile.delete();
+			if (artHandle != null) artHandle.close();
 			metaFile.delete();
 		}
 	}
 
+	/**
+	 * Set up a transcode that can be done without FFmpeg, if this is one of those. Currently
+	 * that's FLAC, which only needs new tags, and uncompressed formats, which only need the FLAC
+	 * decoded.
+	 * @return the transcode, ready to be written, or null if this format or master can't be done
+	 * 		this way and should go through {@link #performTranscode} instead
+	 */
+	public static InProcessTranscode openInProcess(TranscodeFormat fmt, String src, String title, String releaseTitle,
+			String creator, String art, String lyrics, int year, int trackNumber, ReplayGainData rgd) throws IOException {
+		if (SpecialTrack.BY_SLUG.containsKey(src) || VirtualConcat.is(src) || fmt.altcmd() != null) return null;
+		if (fmt.uncompressed()) {
+			return openUncompressed(fmt, src, title, releaseTitle, creator, year, trackNumber);
+		} else if ("flac".equals(fmt.fileExtension()) && isCopy(fmt.args())) {
+			return openRetag(fmt, src, title, releaseTitle, creator, art, lyrics, year, trackNumber, rgd);
+		}
+		return null;
+	}
+
+	private static boolean isCopy(List<String> args) {
+		int idx = args.indexOf("-codec:a");
+		return idx != -1 && idx+1 < args.size() && args.get(idx+1).equals("copy");
+	}
+
+	private static InProcessTranscode openRetag(TranscodeFormat fmt, String src, String title, String releaseTitle,
+			String creator, String art, String lyrics, int year, int trackNumber, ReplayGainData rgd) throws IOException {
+		Blob blob = Storage.getBlob(src);
+		if (blob == null) return null;
+		Long size = blob.getMetadata().getContentMetadata().getContentLength();
+		if (size == null) size = blob.getMetadata().getSize();
+		if (size == null) return null;
+		InputStream in = null;
+		try {
+			in = new BlobByteSource(blob).openStream();
+			var head = FlacMetadata.read(in);
+			List<Map.Entry<String, String>> comments = new ArrayList<>();
+			comments.add(Map.entry("TITLE", title+(releaseTitle == null ? " (Full Album)" : "")));
+			comments.add(Map.entry("ALBUM", MoreObjects.firstNonNull(releaseTitle, title)));
+			comments.add(Map.entry("ARTIST", creator));
+			comments.add(Map.entry("DATE", String.valueOf(year)));
+			if (trackNumber > 0) comments.add(Map.entry("TRACKNUMBER", String.valueOf(trackNumber)));
+			if (lyrics != null) comments.add(Map.entry("UNSYNCEDLYRICS", lyrics));
+			comments.add(Map.entry("COMMENT", comment()));
+			fmt.replaygain().forEach((k, v) -> comments.add(Map.entry(k, v.apply(rgd))));
+			List<FlacMetadata.Block> blocks = new ArrayList<>(head.structural());
+			blocks.add(new FlacMetadata.Block(FlacMetadata.VORBIS_COMMENT,
+					FlacMetadata.vorbisComment("Partyflow v"+Version.FULL, comments)));
+			if (art != null && fmt.usage().canDownload() && !fmt.args().contains("-vn")) {
+				try (var artHandle = ArtCache.get(art)) {
+					String picture = artHandle == null ? null : artHandle.pictureBlock();
+					if (picture != null) {
+						blocks.add(new FlacMetadata.Block(FlacMetadata.PICTURE, Base64.getDecoder().decode(picture)));
+					}
+				}
+			}
+			byte[] header = FlacMetadata.write(blocks);
+			return new RetaggedFlac(filename(fmt, title, releaseTitle, creator, trackNumber), header, src,
+					head.audioOffset(), size-head.audioOffset(), in);
+		} catch (IOException | RuntimeException e) {
+			if (in != null) in.close();
+			log.warn("Can't retag master {} in-process, falling back to FFmpeg", src, e);
+			return null;
+		}
+	}
+
+	private static InProcessTranscode openUncompressed(TranscodeFormat fmt, String src, String title, String releaseTitle,
+			String creator, int year, int trackNumber) throws IOException {
+		var container = PcmContainer.forExtension(fmt.fileExtension());
+		if (container == null) return null;
+		Blob blob = Storage.getBlob(src);
+		if (blob == null) return null;
+		FlacDecoder dec = null;
+		try {
+			dec = new FlacDecoder(new BlobByteSource(blob).openStream());
+			var si = dec.streamInfo();
+			if (si.totalSamples() == 0 || !container.supports(si.channels(), si.bitsPerSample(), si.totalSamples())) {
+				dec.close();
+				return null;
+			}
+			Map<Tag, String> tags = new EnumMap<>(Tag.class);
+			tags.put(Tag.TITLE, title+(releaseTitle == null ? " (Full Album)" : ""));
+			tags.put(Tag.ALBUM, MoreObjects.firstNonNull(releaseTitle, title));
+			tags.put(Tag.ARTIST, creator);
+			tags.put(Tag.DATE, String.valueOf(year));
+			if (trackNumber > 0) tags.put(Tag.TRACK, String.valueOf(trackNumber));
+			tags.put(Tag.COMMENT, comment());
+			byte[] header = container.header(si.sampleRate(), si.channels(), si.bitsPerSample(), si.totalSamples(), tags);
+			long length = header.length+container.dataSize(si.channels(), si.bitsPerSample(), si.totalSamples());
+			return new UncompressedTranscode(filename(fmt, title, releaseTitle, creator, trackNumber), length, container, header, dec);
+		} catch (IOException | RuntimeException e) {
+			if (dec != null) dec.close();
+			log.warn("Can't decode master {} in-process, falling back to FFmpeg", src, e);
+			return null;
+		}
+	}
+
+	private static String filename(TranscodeFormat fmt, String title, String releaseTitle, String creator, int trackNumber) {
+		return creator+" - "+(releaseTitle == null ? "" : releaseTitle+" - ")+String.format("%02d", trackNumber)+" "+title+"."+fmt.fileExtension();
+	}
+
+	private static String comment() {
+		return "Generated by Partyflow v"+Version.FULL+" hosted at "+Partyflow.publicUri.getHost();
+	}
+
+	/**
+	 * Upload a finished transcode to storage under a fresh name.
+	 * @return the name of the new blob
+	 */
+	public static String storeTranscode(File file, TranscodeFormat fmt, String contentDisposition, boolean published) throws IOException {
+		String blobName = newBlobName(fmt);
+		putTranscode(blobName, file, fmt.mimeType(), contentDisposition, published);
+		return blobName;
+	}
+
+	static String newBlobName(TranscodeFormat fmt) {
+		String blobName;
+		do {
+			String rand = Partyflow.randomString(Services.random, 16);
+			blobName = "transcodes/"+rand.substring(0, 3)+"/"+rand+"."+fmt.fileExtension();
+		} while (Storage.blobExists(blobName));
+		return blobName;
+	}
+
+	static void putTranscode(String blobName, File file, String contentType, String contentDisposition, boolean published) throws IOException {
+		Blob transBlob = Storage.blobBuilder(blobName)
+				.payload(file)
+				.contentType(contentType)
+				.contentDisposition(contentDisposition)
+				.cacheControl(published ? "public, immutable" : "private")
+				.build();
+		MultipartUploader.putBlob(transBlob, new PutOptions().setBlobAccess(BlobAccess.PUBLIC_READ));
+	}
+
 	private static List<String> removeCopyIf(ImmutableList<String> args, boolean when) {
 		if (!when) return args;
 		int idx = args.indexOf("-codec:a");
@@ -294,53 +542,137 @@ public class Transcoder {
 		return args;
 	}
 
-	@SuppressWarnings("resource")
-	private static void pipe(Process a, Process b) {
-		pipe(a.getInputStream(), b.getOutputStream());
-	}
-
 	@SuppressWarnings("resource")
 	public static void pipe(Process a, @WillClose OutputStream b) {
-		pipe(a.getInputStream(), b);
+		pipe(a, b, null);
 	}
 
+	/**
+	 * @param supervisor if non-null, will be cancelled if copying fails, such as when the
+	 * 		client goes away
+	 */
 	@SuppressWarnings("resource")
-	private static void pipe(@WillClose InputStream a, @WillClose OutputStream b) {
-		new Thread(() -> {
-			try (a; b) {
-				a.transferTo(b);
+	private static void pipe(Process a, @WillClose OutputStream b, ProcessPipeline supervisor) {
+		var in = a.getInputStream();
+		pipeFactory.newThread(() -> {
+			try (in; b) {
+				in.transferTo(b);
 			} catch (IOException e) {
-				log.warn("Exception while copying", e);
+				if (supervisor != null) {
+					log.debug("Lost the client while copying", e);
+					supervisor.cancel("client went away");
+				} else {
+					log.warn("Exception while copying", e);
+				}
 			}
-		}, "Pipe #"+pipeNum.getAndIncrement()).start();
+		}).start();
+	}
+
+	private static void recordShortcut(TranscodeFormat fmt, Shortcut shortcut, boolean success, long nanos) {
+		var counters = shortcutCounters.computeIfAbsent(new ShortcutKey(fmt.name(), shortcut.source().name()), k -> new ShortcutCounters());
+		(success ? counters.remuxes : counters.failures).incrementAndGet();
+		counters.nanos.addAndGet(nanos);
+	}
+
+	/**
+	 * @return how often each shortcut has been used since startup, and how long it took
+	 */
+	public static List<ShortcutStats> getShortcutStats() {
+		return shortcutCounters.entrySet().stream()
+				.map(en -> new ShortcutStats(en.getKey().format(), en.getKey().source(),
+						en.getValue().remuxes.get(), en.getValue().failures.get(),
+						TimeUnit.NANOSECONDS.toMillis(en.getValue().nanos.get())))
+				.toList();
 	}
 
 	public static String encodeFilename(String str) {
 		return UrlEscapers.urlFragmentEscaper().escape(str).replace(";", "%3B");
 	}
 	
+	/**
+	 * Delete cached transcodes that haven't been downloaded within {@code storage.pruneTime},
+	 * then, if {@code storage.transcodeBudget} is set and they're still over it, the least
+	 * valuable ones until they aren't.
+	 */
 	public static void cleanup() {
-		try (var c = Partyflow.sql.getConnection()) {
-			try (var ps = c.prepareStatement("SELECT `transcode_id`, `file` FROM `transcodes` WHERE `last_downloaded` <= ? AND `master` != '__testtrack';");
-					var ps2 = c.prepareStatement("DELETE FROM `transcodes` WHERE `transcode_id` = ?;")) {
-				ps.setTimestamp(1, new Timestamp(Instant.now().minus(Partyflow.config.storage.pruneTime).toEpochMilli()));
-				try (var rs = ps.executeQuery()) {
-					int removed = 0;
-					while (rs.next()) {
-						ps2.setLong(1, rs.getLong("transcode_id"));
-						if (ps2.executeUpdate() > 0) {
-							Storage.removeBlob(rs.getString("file"));
-							removed++;
-						}
-					}
-					if (removed > 0) {
-						log.debug("Pruned {} old transcode{}", removed, removed == 1 ? "" : "s");
-					}
-				}
+		// anything downloaded since the last flush isn't old, whatever the database thinks
+		DownloadRecorder.flush();
+		try {
+			List<CachedTranscode> evict = new ArrayList<>();
+			var pruneTime = Partyflow.config.storage.pruneTime;
+			if (!pruneTime.isZero()) {
+				evict.addAll(QTranscodes.findCachedTranscodes(Date.from(Instant.now().minus(pruneTime))));
+			}
+			int pruned = evict.size();
+			long budget = Partyflow.config.storage.transcodeBudget*1024*1024;
+			if (budget > 0) {
+				evict.addAll(overBudget(budget, evict));
+			}
+			if (evict.isEmpty()) return;
+			QTranscodes.deleteTranscodes(evict.stream().map(CachedTranscode::transcodeId).toList());
+			Storage.removeBlobs(evict.stream().map(CachedTranscode::file).toList());
+			if (pruned > 0) {
+				log.debug("Pruned {} old transcode{}", pruned, pruned == 1 ? "" : "s");
+			}
+			int evicted = evict.size()-pruned;
+			if (evicted > 0) {
+				long bytes = evict.subList(pruned, evict.size()).stream().mapToLong(CachedTranscode::size).sum();
+				log.debug("Evicted {} transcode{} ({}M) to stay within the storage budget", evicted, evicted == 1 ? "" : "s", bytes/1024/1024);
 			}
 		} catch (SQLException e) {
 			log.warn("Failed to prune old transcodes", e);
 		}
 	}
 
+	private record Candidate(CachedTranscode t, double value) {}
+
+	/**
+	 * @return the least valuable of the transcodes that aren't already being evicted, such that
+	 * 		the rest fit in the given number of bytes
+	 */
+	private static List<CachedTranscode> overBudget(long budget, List<CachedTranscode> already) throws SQLException {
+		var gone = already.stream().map(CachedTranscode::transcodeId).collect(Collectors.toSet());
+		long now = System.currentTimeMillis();
+		long total = 0;
+		List<Candidate> candidates = new ArrayList<>();
+		for (var t : QTranscodes.findCachedTranscodes(null)) {
+			if (gone.contains(t.transcodeId())) continue;
+			if (t.size() <= 0) {
+				// recorded before sizes were
+				var meta = Storage.blobMetadata(t.file());
+				if (meta == null || meta.getSize() == null) continue;
+				QTranscodes.setSize(t.transcodeId(), meta.getSize());
+				t = new CachedTranscode(t.transcodeId(), t.file(), meta.getSize(), t.encodeMillis(), t.downloads(),
+						t.createdAt(), t.lastDownloaded());
+			}
+			total += t.size();
+			candidates.add(new Candidate(t, value(t, now)));
+		}
+		List<CachedTranscode> out = new ArrayList<>();
+		if (total <= budget) return out;
+		candidates.sort(Comparator.comparingDouble(Candidate::value));
+		for (var c : candidates) {
+			if (total <= budget) break;
+			out.add(c.t());
+			total -= c.t().size();
+		}
+		return out;
+	}
+
+	/**
+	 * How much it's worth keeping a transcode around, per byte: roughly how often it's
+	 * downloaded, discounted by how long it's been since it last was, times how long it'd take
+	 * to make again. A big WAV that takes a moment to decode goes long before a small AAC that
+	 * took qaac half a minute and gets played every day.
+	 */
+	private static double value(CachedTranscode t, long now) {
+		double day = TimeUnit.DAYS.toMillis(1);
+		double ageDays = Math.max(1/24D, (now-t.createdAt().getTime())/day);
+		double idleDays = Math.max(0, (now-t.lastDownloaded().getTime())/day);
+		double perDay = (t.downloads()+1)/ageDays;
+		// fetching the master and waiting in line cost something even if encoding was instant
+		double cost = t.encodeMillis()+1000;
+		return (perDay/(1+idleDays))*cost/Math.max(1, t.size());
+	}
+
 }
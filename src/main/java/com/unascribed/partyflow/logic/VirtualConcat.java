@@ -0,0 +1,304 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.logic;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jclouds.blobstore.domain.Blob;
+
+import com.unascribed.partyflow.data.QTracks;
+import com.unascribed.partyflow.data.QTracks.TrackMaster;
+import com.unascribed.partyflow.util.BlobByteSource;
+import com.unascribed.partyflow.util.audio.FlacDecoder;
+import com.unascribed.partyflow.util.audio.PcmContainer;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+
+/**
+ * A release's whole-album master, made up on the fly from its tracks' masters rather than
+ * stored. Each master is decoded in turn and the samples run together into one stream of raw
+ * 16-bit PCM, with each track contributing exactly as many samples as its stored duration says,
+ * so the seams land where the track boundaries say they do. Raw PCM has no header to run out of
+ * room in, so there's no limit on how long an album can be; FFmpeg is told the format with
+ * {@link Concat#inputArgs()} instead.
+ * <p>
+ * The name stored as a release's {@code concat_master} encodes which masters it's made of and in
+ * what order, so it changes whenever the track list does, and transcodes of the old album stop
+ * being found just as they did when the concatenation was a real file.
+ */
+public class VirtualConcat {
+
+	private static final String PREFIX = "concat:";
+
+	private static final int BITS_PER_SAMPLE = 16;
+
+	private record Part(String master, long samples) {}
+
+	public static boolean is(String master) {
+		return master != null && master.startsWith(PREFIX);
+	}
+
+	/**
+	 * @param masters the release's tracks, as from {@link QTracks#getMasters}
+	 */
+	public static String name(long releaseId, List<TrackMaster> masters) {
+		var sb = new StringBuilder();
+		for (var tm : masters) {
+			sb.append(tm.master()).append('\n');
+		}
+		return PREFIX+releaseId+":"+Hashing.murmur3_128().hashString(sb, Charsets.UTF_8);
+	}
+
+	/**
+	 * An opened concatenation. Opening a stream of it as a whole gives the entire album; any
+	 * stretch of it can also be opened, which only touches the tracks that stretch covers.
+	 */
+	public static final class Concat extends ByteSource {
+		private final List<Part> parts;
+		private final int sampleRate;
+		private final int channels;
+		private final long totalSamples;
+
+		private Concat(List<Part> parts, int sampleRate, int channels) {
+			this.parts = parts;
+			this.sampleRate = sampleRate;
+			this.channels = channels;
+			long total = 0;
+			for (var p : parts) total += p.samples();
+			this.totalSamples = total;
+		}
+
+		public long totalSamples() {
+			return totalSamples;
+		}
+
+		/**
+		 * @return the FFmpeg options describing what this produces, to go before {@code -i}
+		 */
+		public List<String> inputArgs() {
+			return List.of("-f", "s16le", "-ar", Integer.toString(sampleRate), "-ac", Integer.toString(channels));
+		}
+
+		@Override
+		public InputStream openStream() throws IOException {
+			return openStream(0, totalSamples);
+		}
+
+		/**
+		 * @return the samples from {@code start} inclusive to {@code end} exclusive
+		 */
+		public InputStream openStream(long start, long end) throws IOException {
+			return new ConcatStream(parts, channels, Math.max(0, start), Math.min(totalSamples, end));
+		}
+	}
+
+	/**
+	 * @return the concatenation with the given name, or null if its release no longer exists or
+	 * 		its tracks have changed since the name was handed out
+	 */
+	public static Concat open(String name) throws IOException {
+		long releaseId;
+		try {
+			releaseId = Long.parseLong(name.substring(PREFIX.length(), name.indexOf(':', PREFIX.length())));
+		} catch (IndexOutOfBoundsException | NumberFormatException e) {
+			return null;
+		}
+		List<TrackMaster> masters;
+		try {
+			masters = QTracks.getMasters(releaseId);
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+		if (masters.isEmpty() || !name.equals(name(releaseId, masters))) return null;
+		List<Part> parts = new ArrayList<>();
+		int sampleRate = 0;
+		int channels = 0;
+		for (var tm : masters) {
+			long samples = tm.duration();
+			if (samples <= 0 || channels == 0) {
+				// the first track decides the layout, and ones from before durations were reliable
+				// need their STREAMINFO to say how long they are
+				try (var dec = decoder(tm.master())) {
+					var si = dec.streamInfo();
+					if (channels == 0) {
+						sampleRate = si.sampleRate();
+						channels = si.channels();
+					}
+					if (samples <= 0) samples = si.totalSamples();
+				}
+				if (samples <= 0) throw new IOException("Master "+tm.master()+" has no known duration");
+			}
+			parts.add(new Part(tm.master(), samples));
+		}
+		return new Concat(parts, sampleRate, channels);
+	}
+
+	private static FlacDecoder decoder(String master) throws IOException {
+		Blob blob = Storage.getBlob(master);
+		if (blob == null) throw new IOException("Master "+master+" is missing");
+		return new FlacDecoder(new BlobByteSource(blob).openStream());
+	}
+
+	private static final class ConcatStream extends InputStream {
+		private final List<Part> parts;
+		private final int channels;
+		private final long end;
+
+		// the part to open next and where it starts in the album
+		private int nextIdx;
+		private long nextStart;
+		private long startSkip;
+		private FlacDecoder dec;
+		// samples still to be skipped at the start of the current part, then still to be given
+		private long skip;
+		private long remaining;
+
+		private int[][] mapped;
+		private int[][] shifted;
+		private byte[] buf;
+		private int pos = 0;
+		private int len = 0;
+
+		ConcatStream(List<Part> parts, int channels, long start, long end) {
+			this.parts = parts;
+			this.channels = channels;
+			this.end = end;
+			// skip straight past every track that ends before the start
+			long at = 0;
+			int idx = 0;
+			while (idx < parts.size() && at+parts.get(idx).samples() <= start) {
+				at += parts.get(idx).samples();
+				idx++;
+			}
+			this.nextIdx = idx;
+			this.nextStart = at;
+			this.startSkip = start-at;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (pos == len && !fill()) return -1;
+			return buf[pos++]&0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int l) throws IOException {
+			if (l == 0) return 0;
+			if (pos == len && !fill()) return -1;
+			int n = Math.min(l, len-pos);
+			System.arraycopy(buf, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		private boolean fill() throws IOException {
+			while (true) {
+				if (dec == null) {
+					if (nextIdx >= parts.size() || nextStart >= end) return false;
+					var part = parts.get(nextIdx);
+					dec = decoder(part.master());
+					skip = startSkip;
+					startSkip = 0;
+					remaining = Math.min(part.samples(), end-nextStart)-skip;
+					nextIdx++;
+					nextStart += part.samples();
+				}
+				if (remaining <= 0) {
+					dec.close();
+					dec = null;
+					continue;
+				}
+				int n = dec.readFrame();
+				int[][] samples;
+				int inChannels, inBits;
+				if (n == -1) {
+					// shorter than it's supposed to be; make up the difference
+					n = (int)Math.min(skip+remaining, 4096);
+					samples = new int[channels][n];
+					inChannels = channels;
+					inBits = BITS_PER_SAMPLE;
+				} else {
+					samples = dec.samples();
+					inChannels = dec.streamInfo().channels();
+					inBits = dec.streamInfo().bitsPerSample();
+				}
+				if (skip > 0) {
+					// FLAC frames don't line up with where we were asked to start
+					if (skip >= n) {
+						skip -= n;
+						continue;
+					}
+					int from = (int)skip;
+					skip = 0;
+					n -= from;
+					if (shifted == null || shifted.length < inChannels || shifted[0].length < n) shifted = new int[inChannels][n];
+					for (int ch = 0; ch < inChannels; ch++) {
+						System.arraycopy(samples[ch], from, shifted[ch], 0, n);
+					}
+					samples = shifted;
+				}
+				n = (int)Math.min(n, remaining);
+				remaining -= n;
+				if (inChannels != channels || inBits != BITS_PER_SAMPLE) {
+					samples = remap(samples, n, inChannels, inBits);
+				}
+				// WAV's sample format is exactly s16le
+				buf = PcmContainer.WAV.interleave(samples, n, channels, BITS_PER_SAMPLE, buf);
+				pos = 0;
+				len = n*channels*(BITS_PER_SAMPLE/8);
+				if (len > 0) return true;
+			}
+		}
+
+		/**
+		 * Masters all come out of the same FFmpeg invocation, so this is only for the odd mono
+		 * track on a stereo album; mono is copied to every channel, and anything else missing is
+		 * left silent.
+		 */
+		private int[][] remap(int[][] in, int n, int inChannels, int inBits) {
+			if (mapped == null || mapped[0].length < n) mapped = new int[channels][n];
+			int shift = BITS_PER_SAMPLE-inBits;
+			for (int ch = 0; ch < channels; ch++) {
+				int src = inChannels == 1 ? 0 : ch;
+				for (int i = 0; i < n; i++) {
+					int v = src < inChannels ? in[src][i] : 0;
+					mapped[ch][i] = shift >= 0 ? v << shift : v >> -shift;
+				}
+			}
+			return mapped;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (dec != null) {
+				dec.close();
+				dec = null;
+			}
+			nextIdx = parts.size();
+		}
+	}
+
+}
@@ -0,0 +1,182 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.logic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.unascribed.partyflow.Partyflow;
+import com.unascribed.partyflow.config.Config.StorageSection.StorageDriver;
+import com.unascribed.partyflow.config.TranscodeFormat;
+import com.unascribed.partyflow.util.Services;
+
+/**
+ * Uploads finished transcodes to remote storage in the background, so whoever asked for one
+ * doesn't have to wait for the upload before they can start downloading it. Until the upload
+ * finishes, the transcode is served from local disk by the files handler. If the upload gives
+ * up, the local copy is kept around a little longer so links that were already handed out still
+ * work. With several nodes behind a load balancer the local copy can't be reached reliably, so
+ * {@link #url} waits for the upload instead.
+ * <p>
+ * Callers must not record a transcode in {@code transcodes} until {@link #whenStored} says it's
+ * been uploaded, as other nodes (and the public URL pattern) only know about remote storage.
+ */
+public class WriteBack {
+
+	private static final Logger log = LoggerFactory.getLogger(WriteBack.class);
+
+	private static final File DIR = new File(Transcoder.WORK_DIR, "outgoing");
+	private static final int MAX_ATTEMPTS = 6;
+	private static final long FIRST_RETRY_SECONDS = 5;
+	private static final int UPLOAD_THREADS = 4;
+	private static final long FAILED_GRACE_MINUTES = 10;
+
+	public record Pending(File file, String contentType, String contentDisposition, boolean published,
+			CompletableFuture<Void> stored) {}
+
+	public record Stats(int pending, long pendingBytes, long uploaded, long retries, long failed) {}
+
+	private static final Map<String, Pending> pending = new ConcurrentHashMap<>();
+	private static final ExecutorService uploader = Executors.newFixedThreadPool(UPLOAD_THREADS, Services.helperFactory("Write-back Upload"));
+
+	private static final AtomicLong uploaded = new AtomicLong();
+	private static final AtomicLong retries = new AtomicLong();
+	private static final AtomicLong failed = new AtomicLong();
+
+	static {
+		// anything still here is from before a restart, and the jobs it belonged to will be redone
+		var leftovers = DIR.listFiles();
+		if (leftovers != null) {
+			for (var f : leftovers) f.delete();
+		}
+	}
+
+	public static boolean enabled() {
+		// uploading to the filesystem driver is just a copy, so there's nothing to gain
+		return Partyflow.config.storage.writeBack && Partyflow.config.storage.driver == StorageDriver.s3;
+	}
+
+	/**
+	 * Take over a finished transcode and start uploading it under a fresh name. The file is moved
+	 * out of the way, so the caller may go ahead and delete it.
+	 * @return the name the blob will have once it's uploaded
+	 */
+	public static String store(File file, TranscodeFormat fmt, String contentDisposition, boolean published) throws IOException {
+		DIR.mkdirs();
+		String blobName = Transcoder.newBlobName(fmt);
+		File staged = new File(DIR, blobName.replace('/', '_'));
+		Files.move(file.toPath(), staged.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		var p = new Pending(staged, fmt.mimeType(), contentDisposition, published, new CompletableFuture<>());
+		pending.put(blobName, p);
+		uploader.execute(() -> upload(blobName, p, 1));
+		return blobName;
+	}
+
+	/**
+	 * @return the local copy of a blob that's still being uploaded, or null if it isn't
+	 */
+	public static Pending get(String blobName) {
+		return pending.get(blobName);
+	}
+
+	/**
+	 * @return a future that completes once the given blob is in remote storage; already
+	 * 		complete if it isn't one of ours
+	 */
+	public static CompletableFuture<Void> whenStored(String blobName) {
+		var p = pending.get(blobName);
+		return p == null ? CompletableFuture.completedFuture(null) : p.stored();
+	}
+
+	/**
+	 * Like {@link URLs#blob}, but points at the local copy if the blob is still being uploaded.
+	 * When running as one of several nodes, only this node can serve the local copy, so this
+	 * instead blocks until the upload is done.
+	 * @throws IOException if the upload gave up
+	 */
+	public static String url(String blobName) throws IOException {
+		var p = pending.get(blobName);
+		if (p == null) return URLs.blob(blobName);
+		if (!Partyflow.config.storage.multiNode) return URLs.relative("files/"+blobName);
+		try {
+			p.stored().get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw new IOException("Upload of "+blobName+" failed", e.getCause());
+		}
+		return URLs.blob(blobName);
+	}
+
+	public static Stats getStats() {
+		long bytes = 0;
+		int count = 0;
+		for (var p : pending.values()) {
+			// failed uploads hanging around for old links aren't pending anymore
+			if (p.stored().isDone()) continue;
+			bytes += p.file().length();
+			count++;
+		}
+		return new Stats(count, bytes, uploaded.get(), retries.get(), failed.get());
+	}
+
+	private static void upload(String blobName, Pending p, int attempt) {
+		try {
+			Transcoder.putTranscode(blobName, p.file(), p.contentType(), p.contentDisposition(), p.published());
+		} catch (IOException | RuntimeException e) {
+			if (attempt >= MAX_ATTEMPTS) {
+				log.warn("Giving up on uploading {} after {} attempts", blobName, attempt, e);
+				failed.incrementAndGet();
+				p.stored().completeExceptionally(e);
+				// the job gets redone under a new name, but links to this one may already be out
+				Services.cron.schedule(() -> {
+					pending.remove(blobName, p);
+					p.file().delete();
+				}, FAILED_GRACE_MINUTES, TimeUnit.MINUTES);
+			} else {
+				long delay = FIRST_RETRY_SECONDS << (attempt-1);
+				log.warn("Failed to upload {} (attempt {}), retrying in {}s", blobName, attempt, delay, e);
+				retries.incrementAndGet();
+				Services.cron.schedule(() -> uploader.execute(() -> upload(blobName, p, attempt+1)), delay, TimeUnit.SECONDS);
+			}
+			return;
+		}
+		uploaded.incrementAndGet();
+		// anyone partway through reading the local copy keeps their open handle
+		pending.remove(blobName);
+		p.file().delete();
+		p.stored().complete(null);
+	}
+
+}
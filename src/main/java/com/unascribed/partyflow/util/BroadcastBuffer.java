@@ -0,0 +1,263 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A growing file that any number of readers can follow while it's still being written. Readers
+ * get everything written so far, then block for more until the writer closes or fails.
+ * <p>
+ * The underlying channel stays open until the writer and every reader have closed, so the file
+ * itself may be deleted out from under us as soon as nobody needs to open it by name anymore.
+ * <p>
+ * Uses a lock rather than monitors, as readers may be virtual threads and a virtual thread
+ * waiting on a monitor holds its carrier hostage.
+ */
+public class BroadcastBuffer {
+
+	private static final Logger log = LoggerFactory.getLogger(BroadcastBuffer.class);
+
+	private final File file;
+	private final FileChannel channel;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+
+	private long written = 0;
+	private boolean done = false;
+	private Throwable failure = null;
+	// the writer holds one reference
+	private int refs = 1;
+
+	public BroadcastBuffer(File file) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getWritten() {
+		lock.lock();
+		try {
+			return written;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isDone() {
+		lock.lock();
+		try {
+			return done;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Block until the writer has closed this buffer.
+	 * @throws IOException if the buffer was failed
+	 */
+	public void awaitDone() throws IOException {
+		lock.lock();
+		try {
+			while (!done) {
+				try {
+					changed.await();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			if (failure != null) throw new IOException("Broadcast source failed", failure);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Mark this buffer as failed. Readers that haven't reached the end yet will get an
+	 * IOException instead of a truncated stream.
+	 */
+	public void fail(Throwable t) {
+		lock.lock();
+		try {
+			if (done) return;
+			failure = t;
+			done = true;
+			changed.signalAll();
+			release();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void append(ByteBuffer buf) throws IOException {
+		lock.lock();
+		try {
+			if (done) throw new IOException("Broadcast is already finished");
+			while (buf.hasRemaining()) {
+				written += channel.write(buf, written);
+			}
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void finish() {
+		lock.lock();
+		try {
+			if (done) return;
+			done = true;
+			changed.signalAll();
+			release();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// must hold the lock
+	private void release() {
+		refs--;
+		if (refs == 0) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				log.debug("Failed to close broadcast buffer for {}", file, e);
+			}
+		}
+	}
+
+	/**
+	 * @return an OutputStream that appends to this buffer; closing it marks the buffer as complete
+	 */
+	public OutputStream writer() {
+		return new OutputStream() {
+
+			@Override
+			public void write(int b) throws IOException {
+				append(ByteBuffer.wrap(new byte[] {(byte)b}));
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				append(ByteBuffer.wrap(b, off, len));
+			}
+
+			@Override
+			public void close() throws IOException {
+				finish();
+			}
+
+		};
+	}
+
+	/**
+	 * @return an InputStream that starts from the beginning of this buffer and follows it until
+	 * 		it's complete, or {@code null} if the buffer has already been torn down
+	 */
+	public InputStream newReader() {
+		lock.lock();
+		try {
+			if (refs == 0 || failure != null) return null;
+			refs++;
+		} finally {
+			lock.unlock();
+		}
+		return new InputStream() {
+
+			private long pos = 0;
+			private boolean closed = false;
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				int r = read(b, 0, 1);
+				return r == -1 ? -1 : b[0]&0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) return 0;
+				int avail;
+				lock.lock();
+				try {
+					if (closed) throw new IOException("Stream closed");
+					while (pos >= written && !done) {
+						try {
+							changed.await();
+						} catch (InterruptedException e) {
+							throw new InterruptedIOException();
+						}
+					}
+					if (failure != null) throw new IOException("Broadcast source failed", failure);
+					if (pos >= written) return -1;
+					avail = (int)Math.min(len, written-pos);
+				} finally {
+					lock.unlock();
+				}
+				// positional reads don't disturb the writer, and we hold a reference so the
+				// channel can't be closed under us
+				int r = channel.read(ByteBuffer.wrap(b, off, avail), pos);
+				if (r > 0) pos += r;
+				return r;
+			}
+
+			@Override
+			public int available() throws IOException {
+				lock.lock();
+				try {
+					return (int)Math.min(Integer.MAX_VALUE, written-pos);
+				} finally {
+					lock.unlock();
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				lock.lock();
+				try {
+					if (closed) return;
+					closed = true;
+					release();
+				} finally {
+					lock.unlock();
+				}
+			}
+
+		};
+	}
+
+}
@@ -0,0 +1,264 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A fixed-size thread pool that always runs the most important class of task first, and shares
+ * each class round-robin between the clients that submitted to it, so one client queueing a
+ * pile of work can't push everyone else in the same class to the back of the line.
+ * <p>
+ * Classes may be given a concurrency limit. A class at its limit is skipped over rather than
+ * holding up the classes below it. The pool as a whole may also be limited to fewer tasks than
+ * it has threads, so its concurrency can be adjusted on the fly.
+ */
+public class FairPriorityPool {
+
+	private static final Logger log = LoggerFactory.getLogger(FairPriorityPool.class);
+
+	/**
+	 * In order of importance.
+	 */
+	public enum TaskClass {
+		STREAM,
+		DOWNLOAD,
+		INGEST,
+		ZIP,
+		PREWARM,
+		;
+		public String id() { return name().toLowerCase(Locale.ROOT); }
+	}
+
+	public record ClassStats(String taskClass, int queued, int running, int clients, long completed,
+			long recentWaitMillis, long maxWaitMillis, long oldestQueuedMillis) {}
+
+	private static final class Task<T> extends FutureTask<T> {
+		private final TaskClass cls;
+		private final long enqueuedAt = System.nanoTime();
+
+		public Task(Callable<T> callable, TaskClass cls) {
+			super(callable);
+			this.cls = cls;
+		}
+	}
+
+	private final int threads;
+	private final Object lock = new Object();
+	private final EnumMap<TaskClass, LinkedHashMap<String, ArrayDeque<Task<?>>>> queues = new EnumMap<>(TaskClass.class);
+	private final EnumMap<TaskClass, IntSupplier> limits = new EnumMap<>(TaskClass.class);
+	private volatile IntSupplier concurrency = null;
+	private int totalRunning = 0;
+
+	private final int[] queued = new int[TaskClass.values().length];
+	private final int[] running = new int[TaskClass.values().length];
+	private final long[] completed = new long[TaskClass.values().length];
+	private final double[] recentWaitNanos = new double[TaskClass.values().length];
+	private final long[] maxWaitNanos = new long[TaskClass.values().length];
+
+	public FairPriorityPool(int threads, ThreadFactory factory) {
+		this.threads = threads;
+		for (var tc : TaskClass.values()) {
+			queues.put(tc, new LinkedHashMap<>());
+		}
+		for (int i = 0; i < threads; i++) {
+			factory.newThread(this::work).start();
+		}
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Limit how many tasks may run at once overall. Values above the thread count have no effect.
+	 */
+	public void setConcurrency(IntSupplier concurrency) {
+		synchronized (lock) {
+			this.concurrency = concurrency;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * @return how many tasks may run at once right now
+	 */
+	public int getConcurrency() {
+		var c = concurrency;
+		if (c == null) return threads;
+		return Math.max(1, Math.min(threads, c.getAsInt()));
+	}
+
+	/**
+	 * @return how many tasks are waiting to run, in any class
+	 */
+	public int getQueued() {
+		synchronized (lock) {
+			int sum = 0;
+			for (int q : queued) sum += q;
+			return sum;
+		}
+	}
+
+	/**
+	 * @return how many tasks are running right now, in any class
+	 */
+	public int getRunning() {
+		synchronized (lock) {
+			return totalRunning;
+		}
+	}
+
+	/**
+	 * @return how long tasks of the given classes are waiting to start, as the worst of the
+	 * 		recent average wait and the age of the oldest task still queued, in nanoseconds
+	 */
+	public long getQueueLatency(TaskClass... classes) {
+		long now = System.nanoTime();
+		long worst = 0;
+		synchronized (lock) {
+			for (var tc : classes) {
+				if (queued[tc.ordinal()] == 0) continue;
+				worst = Math.max(worst, (long)recentWaitNanos[tc.ordinal()]);
+				for (var dq : queues.get(tc).values()) {
+					var head = dq.peek();
+					if (head != null) worst = Math.max(worst, now-head.enqueuedAt);
+				}
+			}
+		}
+		return worst;
+	}
+
+	/**
+	 * Limit how many tasks of the given class may run at once. The supplier is consulted every
+	 * time a task of that class is about to start, so it may change its mind over time.
+	 */
+	public void setLimit(TaskClass cls, IntSupplier limit) {
+		synchronized (lock) {
+			limits.put(cls, limit);
+			lock.notifyAll();
+		}
+	}
+
+	public <T> Future<T> submit(TaskClass cls, String client, Callable<T> callable) {
+		var task = new Task<>(callable, cls);
+		synchronized (lock) {
+			queues.get(cls).computeIfAbsent(client == null ? "" : client, k -> new ArrayDeque<>()).add(task);
+			queued[cls.ordinal()]++;
+			lock.notifyAll();
+		}
+		return task;
+	}
+
+	public Future<?> submit(TaskClass cls, String client, Runnable runnable) {
+		return submit(cls, client, Executors.callable(runnable));
+	}
+
+	public List<ClassStats> getStats() {
+		List<ClassStats> out = new ArrayList<>();
+		long now = System.nanoTime();
+		synchronized (lock) {
+			for (var tc : TaskClass.values()) {
+				int i = tc.ordinal();
+				var q = queues.get(tc);
+				long oldest = 0;
+				for (var dq : q.values()) {
+					var head = dq.peek();
+					if (head != null) oldest = Math.max(oldest, now-head.enqueuedAt);
+				}
+				out.add(new ClassStats(tc.id(), queued[i], running[i], q.size(), completed[i],
+						TimeUnit.NANOSECONDS.toMillis((long)recentWaitNanos[i]),
+						TimeUnit.NANOSECONDS.toMillis(maxWaitNanos[i]),
+						TimeUnit.NANOSECONDS.toMillis(oldest)));
+			}
+		}
+		return out;
+	}
+
+	private Task<?> next() {
+		if (totalRunning >= getConcurrency()) return null;
+		for (var tc : TaskClass.values()) {
+			var q = queues.get(tc);
+			if (q.isEmpty()) continue;
+			var limit = limits.get(tc);
+			if (limit != null && running[tc.ordinal()] >= limit.getAsInt()) continue;
+			var iter = q.entrySet().iterator();
+			var en = iter.next();
+			var task = en.getValue().poll();
+			// send this client to the back of the line
+			iter.remove();
+			if (!en.getValue().isEmpty()) q.put(en.getKey(), en.getValue());
+			return task;
+		}
+		return null;
+	}
+
+	private void work() {
+		while (true) {
+			Task<?> task;
+			synchronized (lock) {
+				while ((task = next()) == null) {
+					try {
+						// wake up now and then in case a limit has loosened
+						lock.wait(1000);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				int i = task.cls.ordinal();
+				queued[i]--;
+				running[i]++;
+				totalRunning++;
+				long wait = System.nanoTime()-task.enqueuedAt;
+				recentWaitNanos[i] = recentWaitNanos[i] == 0 ? wait : (recentWaitNanos[i]*0.9)+(wait*0.1);
+				maxWaitNanos[i] = Math.max(maxWaitNanos[i], wait);
+			}
+			try {
+				task.run();
+			} catch (Throwable t) {
+				log.error("Unexpected exception in pool task", t);
+			} finally {
+				synchronized (lock) {
+					int i = task.cls.ordinal();
+					running[i]--;
+					totalRunning--;
+					completed[i]++;
+					lock.notifyAll();
+				}
+			}
+		}
+	}
+
+}
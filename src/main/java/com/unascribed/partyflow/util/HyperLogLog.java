@@ -0,0 +1,139 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.util;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * A HyperLogLog sketch of distinct addresses. Estimates how many different addresses have been
+ * added to it within a few percent, in a fixed amount of space no matter how many that is. It
+ * only remembers the longest run of zeroes seen in each bucket of hashes, so which addresses
+ * were added can't be recovered from it; and as it never fills up, there's nothing to saturate.
+ * <p>
+ * Sketches of the same thing taken separately can be merged, and merging is idempotent, so it
+ * doesn't matter how many times or in what order the pieces are combined.
+ */
+public final class HyperLogLog {
+
+	/**
+	 * 2048 registers; about 2.3% standard error.
+	 */
+	private static final int PRECISION = 11;
+	private static final int REGISTERS = 1<<PRECISION;
+
+	private static final int DENSE = 0;
+	private static final int SPARSE = 1;
+
+	private static final HashFunction HASH = Hashing.murmur3_128();
+
+	private final byte[] registers = new byte[REGISTERS];
+
+	public void add(InetAddress addr) {
+		long h = HASH.hashBytes(addr.getAddress()).asLong();
+		int idx = (int)(h >>> (64-PRECISION));
+		int rank = Math.min(Long.numberOfLeadingZeros(h << PRECISION), 64-PRECISION)+1;
+		if (rank > registers[idx]) registers[idx] = (byte)rank;
+	}
+
+	/**
+	 * Fold everything in the given sketch into this one.
+	 */
+	public void merge(HyperLogLog that) {
+		for (int i = 0; i < REGISTERS; i++) {
+			if (that.registers[i] > registers[i]) registers[i] = that.registers[i];
+		}
+	}
+
+	public boolean isEmpty() {
+		for (byte r : registers) {
+			if (r != 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return roughly how many distinct addresses have been added
+	 */
+	public long estimate() {
+		double sum = 0;
+		int zeroes = 0;
+		for (byte r : registers) {
+			sum += 1D/(1L << r);
+			if (r == 0) zeroes++;
+		}
+		double alpha = 0.7213/(1+(1.079/REGISTERS));
+		double e = (alpha*REGISTERS*REGISTERS)/sum;
+		if (e <= 2.5*REGISTERS && zeroes > 0) {
+			// linear counting is much more accurate while most registers are still empty
+			e = REGISTERS*Math.log((double)REGISTERS/zeroes);
+		}
+		return Math.round(e);
+	}
+
+	/**
+	 * Most sketches belong to things that only a handful of people have downloaded, so those
+	 * are stored as a list of the registers that are set rather than all of them.
+	 */
+	public byte[] toBytes() {
+		int set = 0;
+		for (byte r : registers) {
+			if (r != 0) set++;
+		}
+		var out = new ByteArrayOutputStream();
+		out.write(PRECISION);
+		if (set*3 < REGISTERS) {
+			out.write(SPARSE);
+			for (int i = 0; i < REGISTERS; i++) {
+				if (registers[i] == 0) continue;
+				out.write(i >> 8);
+				out.write(i);
+				out.write(registers[i]);
+			}
+		} else {
+			out.write(DENSE);
+			out.writeBytes(registers);
+		}
+		return out.toByteArray();
+	}
+
+	public static HyperLogLog fromBytes(byte[] data) {
+		if (data.length < 2 || data[0] != PRECISION) throw new IllegalArgumentException("Not a sketch of precision "+PRECISION);
+		var hll = new HyperLogLog();
+		if (data[1] == SPARSE) {
+			if ((data.length-2)%3 != 0) throw new IllegalArgumentException("Truncated sparse sketch");
+			for (int i = 2; i < data.length; i += 3) {
+				int idx = ((data[i]&0xFF) << 8) | (data[i+1]&0xFF);
+				if (idx >= REGISTERS) throw new IllegalArgumentException("Register "+idx+" out of range");
+				hll.registers[idx] = data[i+2];
+			}
+		} else if (data[1] == DENSE) {
+			if (data.length != REGISTERS+2) throw new IllegalArgumentException("Truncated dense sketch");
+			System.arraycopy(data, 2, hll.registers, 0, REGISTERS);
+		} else {
+			throw new IllegalArgumentException("Unknown sketch encoding "+data[1]);
+		}
+		return hll;
+	}
+
+}
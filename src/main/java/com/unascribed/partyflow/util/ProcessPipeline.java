@@ -0,0 +1,204 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A chain of processes started together, that can be killed together. Pipelines that outlive
+ * their deadline are killed by a watchdog, and anything still running when the pipeline is
+ * closed is killed too, so an abandoned transcode can't keep burning CPU.
+ * <p>
+ * Standard error of each process goes to a temporary file rather than being drained by a
+ * thread per process.
+ */
+public class ProcessPipeline implements AutoCloseable {
+
+	private static final Logger log = LoggerFactory.getLogger(ProcessPipeline.class);
+
+	/**
+	 * Thrown when trying to use a pipeline that was cancelled.
+	 */
+	public static class CancelledException extends IOException {
+		public CancelledException(String message) {
+			super(message);
+		}
+	}
+
+	public record Stats(int active, long started, long reaped, long timedOut) {}
+
+	private static final Set<ProcessPipeline> active = ConcurrentHashMap.newKeySet();
+	private static final AtomicLong started = new AtomicLong();
+	private static final AtomicLong reaped = new AtomicLong();
+	private static final AtomicLong timedOut = new AtomicLong();
+
+	static {
+		Services.cron.scheduleWithFixedDelay(ProcessPipeline::reapExpired, 5, 5, TimeUnit.SECONDS);
+	}
+
+	private final String name;
+	private final List<Process> processes;
+	private final List<File> errFiles;
+	/**
+	 * In {@link System#nanoTime()} terms, or 0 for none.
+	 */
+	private final long deadline;
+	private volatile String cancelReason;
+
+	private ProcessPipeline(String name, List<Process> processes, List<File> errFiles, long deadline) {
+		this.name = name;
+		this.processes = processes;
+		this.errFiles = errFiles;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Start the given processes, with each one's output piped into the next.
+	 * @param timeout how long the whole pipeline may run before it's killed, or null for no limit
+	 * @param workDir where to put standard error logs
+	 */
+	public static ProcessPipeline start(String name, Duration timeout, List<ProcessBuilder> builders, File workDir) throws IOException {
+		List<File> errFiles = new ArrayList<>();
+		try {
+			for (var pb : builders) {
+				File f = File.createTempFile("stderr-", ".txt", workDir);
+				errFiles.add(f);
+				pb.redirectError(f);
+			}
+			List<Process> processes = builders.size() == 1 ? List.of(builders.get(0).start()) : ProcessBuilder.startPipeline(builders);
+			long deadline = timeout == null || timeout.isZero() || timeout.isNegative() ? 0 : System.nanoTime()+timeout.toNanos();
+			var pp = new ProcessPipeline(name, processes, errFiles, deadline);
+			active.add(pp);
+			started.incrementAndGet();
+			return pp;
+		} catch (IOException | RuntimeException e) {
+			errFiles.forEach(File::delete);
+			throw e;
+		}
+	}
+
+	public static Stats getStats() {
+		return new Stats(active.size(), started.get(), reaped.get(), timedOut.get());
+	}
+
+	public Process first() {
+		return processes.get(0);
+	}
+
+	public Process last() {
+		return processes.get(processes.size()-1);
+	}
+
+	public boolean isCancelled() {
+		return cancelReason != null;
+	}
+
+	/**
+	 * Kill every process in this pipeline, and any children they've spawned. Does nothing if
+	 * it was already cancelled.
+	 */
+	public void cancel(String reason) {
+		synchronized (this) {
+			if (cancelReason != null) return;
+			cancelReason = reason;
+		}
+		for (var p : processes) {
+			p.descendants().forEach(ProcessHandle::destroyForcibly);
+			p.destroyForcibly();
+		}
+		reaped.incrementAndGet();
+		log.debug("Killed {}: {}", name, reason);
+	}
+
+	/**
+	 * @throws CancelledException if this pipeline was cancelled
+	 */
+	public void checkCancelled() throws CancelledException {
+		if (cancelReason != null) throw new CancelledException(name+" was cancelled: "+cancelReason);
+	}
+
+	/**
+	 * Wait for every process in the pipeline to exit.
+	 * @return {@code true} if they all exited successfully
+	 * @throws CancelledException if the pipeline was cancelled
+	 */
+	public boolean waitFor() throws CancelledException {
+		boolean success = true;
+		for (var p : processes) {
+			if (Processes.waitForUninterruptibly(p) != 0) success = false;
+		}
+		checkCancelled();
+		return success;
+	}
+
+	/**
+	 * @return everything the processes that failed wrote to standard error
+	 */
+	public String errors() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < processes.size(); i++) {
+			var p = processes.get(i);
+			if (p.isAlive() || p.exitValue() == 0) continue;
+			try {
+				sb.append(Files.readString(errFiles.get(i).toPath(), StandardCharsets.UTF_8));
+			} catch (IOException e) {
+				sb.append("(couldn't read error log: ").append(e).append(")\n");
+			}
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public void close() {
+		for (var p : processes) {
+			if (p.isAlive()) {
+				cancel("abandoned");
+				break;
+			}
+		}
+		active.remove(this);
+		errFiles.forEach(File::delete);
+	}
+
+	private static void reapExpired() {
+		long now = System.nanoTime();
+		for (var pp : active) {
+			if (pp.deadline != 0 && now-pp.deadline > 0 && !pp.isCancelled()) {
+				log.warn("{} ran past its deadline", pp.name);
+				timedOut.incrementAndGet();
+				pp.cancel("deadline exceeded");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,357 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An OutputStream that writes synchronously to its primary stream, and copies everything into a
+ * fixed-size ring buffer that a background thread drains into its secondary stream in batches.
+ * What happens when the secondary stream can't keep up and the ring fills is decided by a
+ * {@link SlowBranchPolicy}.
+ * <p>
+ * If the primary stream fails, the tee carries on writing to just the secondary stream; once
+ * nobody is waiting on the primary, a full ring always blocks, as there's nothing to hold up.
+ * If the secondary stream fails, it's abandoned the same way as if it had been dropped.
+ */
+public class RingBufferTee extends OutputStream {
+
+	private static final Logger log = LoggerFactory.getLogger(RingBufferTee.class);
+
+	public enum SlowBranchPolicy {
+		/**
+		 * Wait for the secondary stream to catch up, holding up the primary.
+		 */
+		BLOCK,
+		/**
+		 * Write whatever doesn't fit in the ring to a temporary file, and drain that afterward.
+		 */
+		SPILL,
+		/**
+		 * Give up on the secondary stream.
+		 */
+		DROP,
+	}
+
+	public record Stats(int active, long bufferedBytes, long peakBufferedBytes, long blockedMillis, long spilledBytes, long dropped) {}
+
+	private static final int BATCH_SIZE = 64*1024;
+
+	private static final Set<RingBufferTee> active = ConcurrentHashMap.newKeySet();
+	private static final AtomicLong peakBuffered = new AtomicLong();
+	private static final AtomicLong blockedNanos = new AtomicLong();
+	private static final AtomicLong spilledBytes = new AtomicLong();
+	private static final AtomicLong dropped = new AtomicLong();
+
+	private static final ThreadFactory drainFactory = Services.helperFactory("Tee drain");
+
+	private final OutputStream primary, secondary;
+	private final SlowBranchPolicy policy;
+	private final Runnable onDrop;
+	private final File spillDir;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	private final byte[] ring;
+	private int head = 0;
+	private int size = 0;
+
+	private File spillFile;
+	private FileChannel spill;
+	private long spillWritePos, spillReadPos;
+
+	private volatile boolean primaryDead = false;
+	private boolean secondaryDead = false;
+	private boolean secondaryDropped = false;
+	private boolean closed = false;
+
+	/**
+	 * @param capacity the size of the ring buffer, in bytes
+	 * @param onDrop run if the secondary stream fails or is dropped by {@link SlowBranchPolicy#DROP};
+	 * 		the secondary stream is not closed in that case, as it's incomplete
+	 * @param spillDir where to put the spill file for {@link SlowBranchPolicy#SPILL}
+	 */
+	public RingBufferTee(OutputStream primary, OutputStream secondary, int capacity, SlowBranchPolicy policy,
+			Runnable onDrop, File spillDir) {
+		this.primary = primary;
+		this.secondary = secondary;
+		this.ring = new byte[Math.max(1, capacity)];
+		this.policy = policy == null ? SlowBranchPolicy.BLOCK : policy;
+		this.onDrop = onDrop;
+		this.spillDir = spillDir;
+		active.add(this);
+		drainFactory.newThread(this::drain).start();
+	}
+
+	public static Stats getStats() {
+		long buffered = 0;
+		for (var t : active) {
+			buffered += t.getBuffered();
+		}
+		return new Stats(active.size(), buffered, peakBuffered.get(),
+				TimeUnit.NANOSECONDS.toMillis(blockedNanos.get()), spilledBytes.get(), dropped.get());
+	}
+
+	/**
+	 * @return how many bytes are waiting to be written to the secondary stream
+	 */
+	public long getBuffered() {
+		lock.lock();
+		try {
+			return size+(spillWritePos-spillReadPos);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if writing to the primary stream failed at some point
+	 */
+	public boolean isPrimaryDead() {
+		return primaryDead;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte)b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (!primaryDead) {
+			try {
+				primary.write(b, off, len);
+			} catch (IOException e) {
+				primaryDead = true;
+				log.debug("Error while writing to primary branch {}", primary, e);
+				if (isSecondaryDead()) throw e;
+			}
+		} else if (isSecondaryDead()) {
+			throw new IOException("Both branches of the tee are gone");
+		}
+		offer(b, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (!primaryDead) {
+			try {
+				primary.flush();
+			} catch (IOException e) {
+				primaryDead = true;
+				log.debug("Error while flushing primary branch {}", primary, e);
+				if (isSecondaryDead()) throw e;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!primaryDead) {
+			try {
+				primary.close();
+			} catch (IOException e) {
+				primaryDead = true;
+				log.debug("Error while closing primary branch {}", primary, e);
+			}
+		}
+		lock.lock();
+		try {
+			closed = true;
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean isSecondaryDead() {
+		lock.lock();
+		try {
+			return secondaryDead;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// must hold the lock
+	private boolean spilling() {
+		return spillWritePos > spillReadPos;
+	}
+
+	private void offer(byte[] b, int off, int len) throws IOException {
+		boolean drop = false;
+		lock.lock();
+		try {
+			while (len > 0 && !secondaryDead) {
+				// once we've started spilling, everything has to go through the spill to stay in order
+				if (spilling()) {
+					spill(b, off, len);
+					return;
+				}
+				int free = ring.length-size;
+				if (free == 0) {
+					var p = primaryDead ? SlowBranchPolicy.BLOCK : policy;
+					if (p == SlowBranchPolicy.SPILL) {
+						spill(b, off, len);
+						return;
+					} else if (p == SlowBranchPolicy.DROP) {
+						secondaryDead = true;
+						secondaryDropped = true;
+						size = 0;
+						notEmpty.signalAll();
+						drop = true;
+						break;
+					} else {
+						long start = System.nanoTime();
+						notFull.awaitUninterruptibly();
+						blockedNanos.addAndGet(System.nanoTime()-start);
+						continue;
+					}
+				}
+				int n = Math.min(free, len);
+				int tail = (head+size)%ring.length;
+				int first = Math.min(n, ring.length-tail);
+				System.arraycopy(b, off, ring, tail, first);
+				System.arraycopy(b, off+first, ring, 0, n-first);
+				size += n;
+				off += n;
+				len -= n;
+				peakBuffered.accumulateAndGet(size, Math::max);
+				notEmpty.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (drop) {
+			dropped.incrementAndGet();
+			log.debug("Secondary branch {} fell too far behind; dropping it", secondary);
+			if (onDrop != null) onDrop.run();
+		}
+	}
+
+	// must hold the lock
+	private void spill(byte[] b, int off, int len) throws IOException {
+		if (spill == null) {
+			spillFile = File.createTempFile("spill-", ".dat", spillDir);
+			spill = FileChannel.open(spillFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.DELETE_ON_CLOSE);
+		}
+		var buf = ByteBuffer.wrap(b, off, len);
+		while (buf.hasRemaining()) {
+			spillWritePos += spill.write(buf, spillWritePos);
+		}
+		spilledBytes.addAndGet(len);
+		peakBuffered.accumulateAndGet(size+(spillWritePos-spillReadPos), Math::max);
+		notEmpty.signalAll();
+	}
+
+	private void drain() {
+		byte[] batch = new byte[Math.min(BATCH_SIZE, ring.length)];
+		try {
+			while (true) {
+				int n;
+				lock.lock();
+				try {
+					while (size == 0 && !spilling() && !closed && !secondaryDead) {
+						notEmpty.awaitUninterruptibly();
+					}
+					if (secondaryDead) break;
+					if (size > 0) {
+						n = Math.min(size, batch.length);
+						int first = Math.min(n, ring.length-head);
+						System.arraycopy(ring, head, batch, 0, first);
+						System.arraycopy(ring, 0, batch, first, n-first);
+						head = (head+n)%ring.length;
+						size -= n;
+						notFull.signalAll();
+					} else if (spilling()) {
+						n = spill.read(ByteBuffer.wrap(batch, 0, (int)Math.min(batch.length, spillWritePos-spillReadPos)), spillReadPos);
+						spillReadPos += n;
+						if (!spilling()) {
+							// caught up; start over so the file doesn't grow forever
+							spill.truncate(0);
+							spillReadPos = spillWritePos = 0;
+						}
+					} else {
+						// closed, and everything's been written
+						break;
+					}
+				} finally {
+					lock.unlock();
+				}
+				secondary.write(batch, 0, n);
+			}
+		} catch (Throwable t) {
+			log.debug("Error while writing to secondary branch {}", secondary, t);
+			lock.lock();
+			try {
+				secondaryDead = true;
+				secondaryDropped = true;
+				size = 0;
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			if (onDrop != null) onDrop.run();
+		} finally {
+			boolean wasDropped;
+			lock.lock();
+			try {
+				wasDropped = secondaryDropped;
+				if (spill != null) {
+					try {
+						spill.close();
+					} catch (IOException e) {
+						log.debug("Failed to close spill file {}", spillFile, e);
+					}
+					spillFile.delete();
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (!wasDropped) {
+				try {
+					secondary.close();
+				} catch (Throwable e) {
+					log.debug("Error while closing secondary branch {}", secondary, e);
+				}
+			}
+			active.remove(this);
+		}
+	}
+
+}
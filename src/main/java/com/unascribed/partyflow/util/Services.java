@@ -42,7 +42,7 @@ public class Services {
 	public static final Remark remark = new Remark(RemarkOptions.github());
 
 	public static final ExecutorService genericPool;
-	public static final ExecutorService transcodePool;
+	public static final FairPriorityPool transcodePool;
 	
 	public static final RandomGenerator random = new ThreadSafeRandomFacade(LeapableGenerator.of("Xoroshiro128PlusPlus"));
 	public static final RandomGenerator secureRandom = new SecureRandom();
@@ -50,10 +50,25 @@ public class Services {
 	
 	static {
 		int nproc = Runtime.getRuntime().availableProcessors();
-		genericPool = Executors.newFixedThreadPool(nproc, namedFactory("Generic Pool"));
+		if (VirtualThreads.isEnabled()) {
+			// generic pool tasks mostly wait on other things, and waiting is what virtual threads are for
+			genericPool = Executors.newCachedThreadPool(helperFactory("Generic Pool"));
+		} else {
+			genericPool = Executors.newFixedThreadPool(nproc, namedFactory("Generic Pool"));
+		}
 		int maxTranscodes = Partyflow.config.programs.maxTranscodes;
-		if (maxTranscodes == 0) maxTranscodes = nproc;
-		transcodePool = Executors.newFixedThreadPool(maxTranscodes, namedFactory("Transcode Pool"));
+		// the adaptive limiter will find the right number, but remuxes are cheap enough that it
+		// may be more than one per CPU thread
+		if (maxTranscodes == 0) maxTranscodes = Partyflow.config.programs.adaptiveTranscodes ? nproc*2 : nproc;
+		transcodePool = new FairPriorityPool(maxTranscodes, namedFactory("Transcode Pool"));
+	}
+
+	/**
+	 * @return a factory for short-lived threads that spend most of their time blocked, which will
+	 * 		be virtual if enabled
+	 */
+	public static ThreadFactory helperFactory(String name) {
+		return VirtualThreads.factory(name, namedFactory(name));
 	}
 
 	private static ThreadFactory namedFactory(String name) {
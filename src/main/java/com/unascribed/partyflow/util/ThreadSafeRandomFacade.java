@@ -19,179 +19,217 @@
 
 package com.unascribed.partyflow.util;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.random.RandomGenerator;
 import java.util.random.RandomGeneratorFactory;
 import java.util.stream.DoubleStream;
 import java.util.stream.IntStream;
 import java.util.stream.LongStream;
 
+/**
+ * Gives each platform thread its own generator. Virtual threads are too numerous and
+ * short-lived for that, so they borrow one from a shared set of spares for each call instead.
+ */
 public class ThreadSafeRandomFacade implements RandomGenerator {
 	
+	private final Supplier<RandomGenerator> supplier;
 	private final ThreadLocal<RandomGenerator> delegate;
+	private final ConcurrentLinkedQueue<RandomGenerator> spares = new ConcurrentLinkedQueue<>();
 	
 	public ThreadSafeRandomFacade(LeapableGenerator parent) {
 		var iter = parent.leaps().iterator();
-		this.delegate = ThreadLocal.withInitial(() -> {
+		this.supplier = () -> {
 			synchronized (iter) {
 				var child = iter.next();
 				child.jump();
 				return child;
 			}
-		});
+		};
+		this.delegate = ThreadLocal.withInitial(supplier);
 	}
 	
 	public ThreadSafeRandomFacade(RandomGeneratorFactory<?> factory) {
-		this.delegate = ThreadLocal.withInitial(factory::create);
+		this.supplier = factory::create;
+		this.delegate = ThreadLocal.withInitial(supplier);
+	}
+	
+	private <T> T with(Function<RandomGenerator, T> func) {
+		if (!VirtualThreads.isVirtual(Thread.currentThread())) return func.apply(delegate.get());
+		var g = spares.poll();
+		if (g == null) g = supplier.get();
+		try {
+			return func.apply(g);
+		} finally {
+			spares.add(g);
+		}
+	}
+	
+	private void withVoid(Consumer<RandomGenerator> func) {
+		with(g -> {
+			func.accept(g);
+			return null;
+		});
+	}
+	
+	/**
+	 * Streams outlive the call that creates them, so can't use a borrowed generator.
+	 */
+	private RandomGenerator forStream() {
+		if (!VirtualThreads.isVirtual(Thread.currentThread())) return delegate.get();
+		return supplier.get();
 	}
 
 	@Override
 	public boolean isDeprecated() {
-		return delegate.get().isDeprecated();
+		return with(g -> g.isDeprecated());
 	}
 
 	@Override
 	public DoubleStream doubles() {
-		return delegate.get().doubles();
+		return forStream().doubles();
 	}
 
 	@Override
 	public DoubleStream doubles(double randomNumberOrigin, double randomNumberBound) {
-		return delegate.get().doubles(randomNumberOrigin, randomNumberBound);
+		return forStream().doubles(randomNumberOrigin, randomNumberBound);
 	}
 
 	@Override
 	public DoubleStream doubles(long streamSize) {
-		return delegate.get().doubles(streamSize);
+		return forStream().doubles(streamSize);
 	}
 
 	@Override
 	public DoubleStream doubles(long streamSize, double randomNumberOrigin, double randomNumberBound) {
-		return delegate.get().doubles(streamSize, randomNumberOrigin, randomNumberBound);
+		return forStream().doubles(streamSize, randomNumberOrigin, randomNumberBound);
 	}
 
 	@Override
 	public IntStream ints() {
-		return delegate.get().ints();
+		return forStream().ints();
 	}
 
 	@Override
 	public IntStream ints(int randomNumberOrigin, int randomNumberBound) {
-		return delegate.get().ints(randomNumberOrigin, randomNumberBound);
+		return forStream().ints(randomNumberOrigin, randomNumberBound);
 	}
 
 	@Override
 	public IntStream ints(long streamSize) {
-		return delegate.get().ints(streamSize);
+		return forStream().ints(streamSize);
 	}
 
 	@Override
 	public IntStream ints(long streamSize, int randomNumberOrigin, int randomNumberBound) {
-		return delegate.get().ints(streamSize, randomNumberOrigin, randomNumberBound);
+		return forStream().ints(streamSize, randomNumberOrigin, randomNumberBound);
 	}
 
 	@Override
 	public LongStream longs() {
-		return delegate.get().longs();
+		return forStream().longs();
 	}
 
 	@Override
 	public LongStream longs(long randomNumberOrigin, long randomNumberBound) {
-		return delegate.get().longs(randomNumberOrigin, randomNumberBound);
+		return forStream().longs(randomNumberOrigin, randomNumberBound);
 	}
 
 	@Override
 	public LongStream longs(long streamSize) {
-		return delegate.get().longs(streamSize);
+		return forStream().longs(streamSize);
 	}
 
 	@Override
 	public LongStream longs(long streamSize, long randomNumberOrigin, long randomNumberBound) {
-		return delegate.get().longs(streamSize, randomNumberOrigin, randomNumberBound);
+		return forStream().longs(streamSize, randomNumberOrigin, randomNumberBound);
 	}
 
 	@Override
 	public boolean nextBoolean() {
-		return delegate.get().nextBoolean();
+		return with(g -> g.nextBoolean());
 	}
 
 	@Override
 	public void nextBytes(byte[] bytes) {
-		delegate.get().nextBytes(bytes);
+		withVoid(g -> g.nextBytes(bytes));
 	}
 
 	@Override
 	public float nextFloat() {
-		return delegate.get().nextFloat();
+		return with(g -> g.nextFloat());
 	}
 
 	@Override
 	public float nextFloat(float bound) {
-		return delegate.get().nextFloat(bound);
+		return with(g -> g.nextFloat(bound));
 	}
 
 	@Override
 	public float nextFloat(float origin, float bound) {
-		return delegate.get().nextFloat(origin, bound);
+		return with(g -> g.nextFloat(origin, bound));
 	}
 
 	@Override
 	public double nextDouble() {
-		return delegate.get().nextDouble();
+		return with(g -> g.nextDouble());
 	}
 
 	@Override
 	public double nextDouble(double bound) {
-		return delegate.get().nextDouble(bound);
+		return with(g -> g.nextDouble(bound));
 	}
 
 	@Override
 	public double nextDouble(double origin, double bound) {
-		return delegate.get().nextDouble(origin, bound);
+		return with(g -> g.nextDouble(origin, bound));
 	}
 
 	@Override
 	public int nextInt() {
-		return delegate.get().nextInt();
+		return with(g -> g.nextInt());
 	}
 
 	@Override
 	public int nextInt(int bound) {
-		return delegate.get().nextInt(bound);
+		return with(g -> g.nextInt(bound));
 	}
 
 	@Override
 	public int nextInt(int origin, int bound) {
-		return delegate.get().nextInt(origin, bound);
+		return with(g -> g.nextInt(origin, bound));
 	}
 
 	@Override
 	public long nextLong() {
-		return delegate.get().nextLong();
+		return with(g -> g.nextLong());
 	}
 
 	@Override
 	public long nextLong(long bound) {
-		return delegate.get().nextLong(bound);
+		return with(g -> g.nextLong(bound));
 	}
 
 	@Override
 	public long nextLong(long origin, long bound) {
-		return delegate.get().nextLong(origin, bound);
+		return with(g -> g.nextLong(origin, bound));
 	}
 
 	@Override
 	public double nextGaussian() {
-		return delegate.get().nextGaussian();
+		return with(g -> g.nextGaussian());
 	}
 
 	@Override
 	public double nextGaussian(double mean, double stddev) {
-		return delegate.get().nextGaussian(mean, stddev);
+		return with(g -> g.nextGaussian(mean, stddev));
 	}
 
 	@Override
 	public double nextExponential() {
-		return delegate.get().nextExponential();
+		return with(g -> g.nextExponential());
 	}
 
 }
@@ -0,0 +1,131 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.unascribed.partyflow.Partyflow;
+
+/**
+ * Access to virtual threads without requiring a JVM that has them. Everything here falls back
+ * to platform threads if virtual threads aren't available or {@code http.virtualThreads} is
+ * off.
+ */
+public class VirtualThreads {
+
+	private static final Logger log = LoggerFactory.getLogger(VirtualThreads.class);
+
+	private static final MethodHandle ofVirtual;
+	private static final MethodHandle builderName;
+	private static final MethodHandle builderFactory;
+	private static final MethodHandle isVirtual;
+
+	static {
+		MethodHandle ofVirtualTmp = null;
+		MethodHandle builderNameTmp = null;
+		MethodHandle builderFactoryTmp = null;
+		MethodHandle isVirtualTmp = null;
+		try {
+			var lookup = MethodHandles.publicLookup();
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			Class<?> ofVirtualClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+			ofVirtualTmp = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(ofVirtualClass));
+			builderNameTmp = lookup.findVirtual(builder, "name", MethodType.methodType(builder, String.class, long.class));
+			builderFactoryTmp = lookup.findVirtual(builder, "factory", MethodType.methodType(ThreadFactory.class));
+			isVirtualTmp = lookup.findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+			// on 19 and 20 these exist, but throw unless preview features are enabled
+			ofVirtualTmp.invoke();
+		} catch (Throwable t) {
+			ofVirtualTmp = null;
+		}
+		ofVirtual = ofVirtualTmp;
+		builderName = builderNameTmp;
+		builderFactory = builderFactoryTmp;
+		isVirtual = isVirtualTmp;
+	}
+
+	/**
+	 * @return {@code true} if this JVM can create virtual threads
+	 */
+	public static boolean isSupported() {
+		return ofVirtual != null;
+	}
+
+	/**
+	 * @return {@code true} if virtual threads were asked for and this JVM can create them
+	 */
+	public static boolean isEnabled() {
+		return Partyflow.config.http.virtualThreads && isSupported();
+	}
+
+	/**
+	 * Log a warning if virtual threads were asked for and can't be had.
+	 */
+	public static void check() {
+		if (Partyflow.config.http.virtualThreads && !isSupported()) {
+			log.warn("Virtual threads were requested, but this JVM ({}) doesn't support them; using platform threads instead",
+					System.getProperty("java.version"));
+		}
+	}
+
+	/**
+	 * @return {@code true} if the given thread is virtual; always false on JVMs without virtual threads
+	 */
+	public static boolean isVirtual(Thread t) {
+		if (isVirtual == null) return false;
+		try {
+			return (boolean)isVirtual.invoke(t);
+		} catch (Throwable e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return a factory for virtual threads named {@code name #n} if enabled, otherwise
+	 * 		{@code fallback}
+	 */
+	public static ThreadFactory factory(String name, ThreadFactory fallback) {
+		if (!isEnabled()) return fallback;
+		try {
+			return (ThreadFactory)builderFactory.invoke(builderName.invoke(ofVirtual.invoke(), name+" #", 0L));
+		} catch (Throwable t) {
+			log.warn("Failed to create a virtual thread factory for {}", name, t);
+			return fallback;
+		}
+	}
+
+	/**
+	 * @return an executor that starts a new virtual thread per task if enabled, otherwise {@code null}
+	 */
+	public static Executor executor(String name) {
+		if (!isEnabled()) return null;
+		var factory = factory(name, null);
+		if (factory == null) return null;
+		return r -> factory.newThread(r).start();
+	}
+
+}
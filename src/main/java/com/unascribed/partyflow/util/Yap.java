@@ -32,10 +32,6 @@ public enum Yap {
 		Got a local address on a request where the true request IP was desired.
 		This suggests you're running Partyflow behind a proxy, and forgot to specify X-Forwarded-For and/or enable trustProxy.
 		(You may also be testing locally, in which case you can ignore this warning.)
-		"""),
-	SATURATED_FILTER("""
-		A downloads filter has become saturated. Congratulations on getting more traffic than you expected!
-		To ensure download counts continue to update, you need to increase expectedTraffic.
 		""")
 	;
 
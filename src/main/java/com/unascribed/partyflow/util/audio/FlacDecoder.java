@@ -0,0 +1,335 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.util.audio;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A streaming FLAC decoder, for when all that's wanted is the PCM and spawning FFmpeg would be
+ * most of the work. Frames are decoded one at a time, in order; there's no seeking, and CRCs
+ * aren't checked, as masters have already been through FFmpeg once on their way in.
+ */
+public class FlacDecoder implements Closeable {
+
+	public record StreamInfo(int minBlockSize, int maxBlockSize, int sampleRate, int channels, int bitsPerSample,
+			long totalSamples) {}
+
+	private static final int LEFT_SIDE = 8;
+	private static final int SIDE_RIGHT = 9;
+	private static final int MID_SIDE = 10;
+
+	private final InputStream in;
+	private final StreamInfo streamInfo;
+
+	private final byte[] inBuf = new byte[16384];
+	private int inPos = 0;
+	private int inLen = 0;
+	private long bitBuf = 0;
+	private int bitCount = 0;
+
+	private int[][] samples;
+	private boolean eof = false;
+
+	/**
+	 * Reads the stream header and metadata, leaving the given stream positioned at the first
+	 * frame. The stream is closed when this decoder is.
+	 */
+	public FlacDecoder(InputStream in) throws IOException {
+		this.in = in;
+		if (readBits(32) != 0x664C6143) { // fLaC
+			throw new IOException("Not a FLAC stream");
+		}
+		StreamInfo si = null;
+		boolean last = false;
+		while (!last) {
+			last = readBits(1) == 1;
+			int type = readBits(7);
+			int length = readBits(24);
+			if (type == 0) {
+				int minBlock = readBits(16);
+				int maxBlock = readBits(16);
+				readBits(24); // min frame size
+				readBits(24); // max frame size
+				int rate = readBits(20);
+				int channels = readBits(3)+1;
+				int bps = readBits(5)+1;
+				long total = ((long)readBits(4) << 32) | (readBits(32) & 0xFFFFFFFFL);
+				skipBytes(16); // MD5
+				skipBytes(length-34);
+				si = new StreamInfo(minBlock, maxBlock, rate, channels, bps, total);
+			} else {
+				skipBytes(length);
+			}
+		}
+		if (si == null) throw new IOException("FLAC stream has no STREAMINFO");
+		this.streamInfo = si;
+		this.samples = new int[si.channels()][Math.max(si.maxBlockSize(), 1)];
+	}
+
+	public StreamInfo streamInfo() {
+		return streamInfo;
+	}
+
+	/**
+	 * @return the buffers {@link #readFrame} decodes into, one per channel. They may be replaced
+	 * 		if a frame turns out bigger than STREAMINFO promised.
+	 */
+	public int[][] samples() {
+		return samples;
+	}
+
+	/**
+	 * Decode the next frame into {@link #samples()}.
+	 * @return how many samples per channel were decoded, or -1 at the end of the stream
+	 */
+	public int readFrame() throws IOException {
+		if (eof) return -1;
+		// frames are byte-aligned, and a clean end of stream can only happen between them
+		if (bitCount == 0 && !fill()) {
+			eof = true;
+			return -1;
+		}
+		int sync = readBits(14);
+		if (sync != 0x3FFE) throw new IOException("Lost frame sync");
+		readBits(1); // reserved
+		readBits(1); // blocking strategy
+		int blockSizeCode = readBits(4);
+		int sampleRateCode = readBits(4);
+		int channelAssignment = readBits(4);
+		int sampleSizeCode = readBits(3);
+		readBits(1); // reserved
+		// frame or sample number, UTF-8 style; we don't care which
+		int lead = readBits(8);
+		int extra = 0;
+		while ((lead & (0x80 >> extra)) != 0) extra++;
+		if (extra > 0) extra--;
+		for (int i = 0; i < extra; i++) readBits(8);
+		int blockSize = switch (blockSizeCode) {
+			case 0 -> throw new IOException("Reserved block size");
+			case 1 -> 192;
+			case 2, 3, 4, 5 -> 576 << (blockSizeCode-2);
+			case 6 -> readBits(8)+1;
+			case 7 -> readBits(16)+1;
+			default -> 256 << (blockSizeCode-8);
+		};
+		switch (sampleRateCode) {
+			case 12 -> readBits(8);
+			case 13, 14 -> readBits(16);
+			case 15 -> throw new IOException("Invalid sample rate");
+			default -> {}
+		}
+		int bps = switch (sampleSizeCode) {
+			case 0 -> streamInfo.bitsPerSample();
+			case 1 -> 8;
+			case 2 -> 12;
+			case 4 -> 16;
+			case 5 -> 20;
+			case 6 -> 24;
+			case 7 -> 32;
+			default -> throw new IOException("Reserved sample size");
+		};
+		readBits(8); // CRC-8
+		int channels = channelAssignment < 8 ? channelAssignment+1 : 2;
+		if (channelAssignment > MID_SIDE) throw new IOException("Reserved channel assignment");
+		if (channels != streamInfo.channels()) throw new IOException("Channel count changed mid-stream");
+		if (samples[0].length < blockSize) {
+			samples = new int[channels][blockSize];
+		}
+		for (int ch = 0; ch < channels; ch++) {
+			int chBps = bps;
+			// the side channel needs an extra bit
+			if ((channelAssignment == LEFT_SIDE && ch == 1) || (channelAssignment == SIDE_RIGHT && ch == 0)
+					|| (channelAssignment == MID_SIDE && ch == 1)) {
+				chBps++;
+			}
+			readSubframe(samples[ch], blockSize, chBps);
+		}
+		decorrelate(channelAssignment, blockSize);
+		bitCount -= bitCount % 8;
+		readBits(16); // CRC-16
+		return blockSize;
+	}
+
+	private void decorrelate(int assignment, int n) {
+		int[] a = samples.length > 0 ? samples[0] : null;
+		int[] b = samples.length > 1 ? samples[1] : null;
+		switch (assignment) {
+			case LEFT_SIDE -> {
+				for (int i = 0; i < n; i++) b[i] = a[i]-b[i];
+			}
+			case SIDE_RIGHT -> {
+				for (int i = 0; i < n; i++) a[i] += b[i];
+			}
+			case MID_SIDE -> {
+				for (int i = 0; i < n; i++) {
+					int side = b[i];
+					int mid = (a[i] << 1) | (side & 1);
+					a[i] = (mid+side) >> 1;
+					b[i] = (mid-side) >> 1;
+				}
+			}
+			default -> {}
+		}
+	}
+
+	private void readSubframe(int[] out, int n, int bps) throws IOException {
+		readBits(1); // padding
+		int type = readBits(6);
+		int wasted = 0;
+		if (readBits(1) == 1) {
+			wasted = 1;
+			while (readBits(1) == 0) wasted++;
+			bps -= wasted;
+		}
+		if (type == 0) {
+			int v = readSigned(bps);
+			for (int i = 0; i < n; i++) out[i] = v;
+		} else if (type == 1) {
+			for (int i = 0; i < n; i++) out[i] = readSigned(bps);
+		} else if (type >= 8 && type <= 12) {
+			int order = type & 7;
+			for (int i = 0; i < order; i++) out[i] = readSigned(bps);
+			readResidual(out, n, order);
+			restoreFixed(out, n, order);
+		} else if (type >= 32) {
+			int order = (type & 31)+1;
+			for (int i = 0; i < order; i++) out[i] = readSigned(bps);
+			int precision = readBits(4)+1;
+			if (precision == 16) throw new IOException("Invalid LPC precision");
+			int shift = readSigned(5);
+			if (shift < 0) throw new IOException("Negative LPC shift");
+			int[] coefs = new int[order];
+			for (int i = 0; i < order; i++) coefs[i] = readSigned(precision);
+			readResidual(out, n, order);
+			for (int i = order; i < n; i++) {
+				long sum = 0;
+				for (int j = 0; j < order; j++) {
+					sum += (long)coefs[j]*out[i-j-1];
+				}
+				out[i] += (int)(sum >> shift);
+			}
+		} else {
+			throw new IOException("Reserved subframe type "+type);
+		}
+		if (wasted > 0) {
+			for (int i = 0; i < n; i++) out[i] <<= wasted;
+		}
+	}
+
+	private static void restoreFixed(int[] out, int n, int order) {
+		switch (order) {
+			case 0 -> {}
+			case 1 -> { for (int i = 1; i < n; i++) out[i] += out[i-1]; }
+			case 2 -> { for (int i = 2; i < n; i++) out[i] += 2*out[i-1] - out[i-2]; }
+			case 3 -> { for (int i = 3; i < n; i++) out[i] += 3*out[i-1] - 3*out[i-2] + out[i-3]; }
+			case 4 -> { for (int i = 4; i < n; i++) out[i] += 4*out[i-1] - 6*out[i-2] + 4*out[i-3] - out[i-4]; }
+			default -> throw new AssertionError(order);
+		}
+	}
+
+	/**
+	 * Fills {@code out[order..n)} with the residual; prediction is added on top afterward.
+	 */
+	private void readResidual(int[] out, int n, int order) throws IOException {
+		int method = readBits(2);
+		if (method > 1) throw new IOException("Reserved residual coding method");
+		int paramBits = method == 0 ? 4 : 5;
+		int escape = method == 0 ? 15 : 31;
+		int partitionOrder = readBits(4);
+		int partitions = 1 << partitionOrder;
+		int perPartition = n >> partitionOrder;
+		int i = order;
+		for (int p = 0; p < partitions; p++) {
+			int count = p == 0 ? perPartition-order : perPartition;
+			int param = readBits(paramBits);
+			if (param == escape) {
+				int rawBits = readBits(5);
+				for (int j = 0; j < count; j++) out[i++] = rawBits == 0 ? 0 : readSigned(rawBits);
+			} else {
+				for (int j = 0; j < count; j++) {
+					int q = readUnary();
+					int u = (q << param) | (param == 0 ? 0 : readBits(param));
+					out[i++] = (u >>> 1) ^ -(u & 1);
+				}
+			}
+		}
+	}
+
+	private boolean fill() throws IOException {
+		if (inPos < inLen) return true;
+		inLen = in.read(inBuf);
+		inPos = 0;
+		return inLen > 0;
+	}
+
+	private int readBits(int n) throws IOException {
+		if (n == 0) return 0;
+		while (bitCount < n) {
+			if (!fill()) throw new EOFException("FLAC stream ended mid-frame");
+			bitBuf = (bitBuf << 8) | (inBuf[inPos++] & 0xFF);
+			bitCount += 8;
+		}
+		bitCount -= n;
+		return (int)((bitBuf >>> bitCount) & ((1L << n)-1));
+	}
+
+	/**
+	 * Count zero bits up to the next one bit, consuming all of them. This is most of the work of
+	 * decoding a frame, so it goes a buffer's worth at a time rather than bit by bit.
+	 */
+	private int readUnary() throws IOException {
+		int q = 0;
+		while (true) {
+			if (bitCount == 0) {
+				if (!fill()) throw new EOFException("FLAC stream ended mid-frame");
+				bitBuf = (bitBuf << 8) | (inBuf[inPos++] & 0xFF);
+				bitCount = 8;
+			}
+			long bits = bitBuf & ((1L << bitCount)-1);
+			if (bits == 0) {
+				q += bitCount;
+				bitCount = 0;
+			} else {
+				int zeros = Long.numberOfLeadingZeros(bits)-(64-bitCount);
+				q += zeros;
+				bitCount -= zeros+1;
+				return q;
+			}
+		}
+	}
+
+	private int readSigned(int n) throws IOException {
+		int v = readBits(n);
+		return (v << (32-n)) >> (32-n);
+	}
+
+	private void skipBytes(int n) throws IOException {
+		for (int i = 0; i < n; i++) readBits(8);
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+}
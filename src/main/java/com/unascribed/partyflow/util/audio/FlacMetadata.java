@@ -0,0 +1,143 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.util.audio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes the metadata blocks at the start of a FLAC stream, so a file can be retagged by
+ * writing new blocks and then copying its audio frames verbatim.
+ */
+public class FlacMetadata {
+
+	public static final int STREAMINFO = 0;
+	public static final int PADDING = 1;
+	public static final int APPLICATION = 2;
+	public static final int SEEKTABLE = 3;
+	public static final int VORBIS_COMMENT = 4;
+	public static final int CUESHEET = 5;
+	public static final int PICTURE = 6;
+
+	private static final int MAX_BLOCK_SIZE = (1 << 24)-1;
+
+	public record Block(int type, byte[] data) {}
+
+	/**
+	 * @param blocks every metadata block, in order
+	 * @param audioOffset where the first audio frame starts, counting from the fLaC marker
+	 */
+	public record Head(List<Block> blocks, long audioOffset) {
+
+		/**
+		 * @return the blocks that describe the audio itself rather than tag it, which stay valid
+		 * 		no matter what other blocks are written before the frames
+		 */
+		public List<Block> structural() {
+			return blocks.stream()
+					.filter(b -> b.type() == STREAMINFO || b.type() == SEEKTABLE || b.type() == CUESHEET)
+					.toList();
+		}
+
+	}
+
+	/**
+	 * Read the marker and metadata blocks from the given stream, leaving it positioned at the
+	 * first audio frame. Nothing past the metadata is read.
+	 */
+	public static Head read(InputStream in) throws IOException {
+		var dis = new DataInputStream(in);
+		if (dis.readInt() != 0x664C6143) { // fLaC
+			throw new IOException("Not a FLAC stream");
+		}
+		long offset = 4;
+		List<Block> blocks = new ArrayList<>();
+		boolean last = false;
+		while (!last) {
+			int hdr = dis.readInt();
+			last = (hdr & 0x80000000) != 0;
+			int type = (hdr >>> 24) & 0x7F;
+			int length = hdr & 0xFFFFFF;
+			byte[] data = new byte[length];
+			dis.readFully(data);
+			blocks.add(new Block(type, data));
+			offset += 4+length;
+		}
+		if (blocks.isEmpty() || blocks.get(0).type() != STREAMINFO) {
+			throw new IOException("FLAC stream doesn't start with STREAMINFO");
+		}
+		return new Head(blocks, offset);
+	}
+
+	/**
+	 * @return the body of a VORBIS_COMMENT block; entries with null values are left out
+	 */
+	public static byte[] vorbisComment(String vendor, List<Map.Entry<String, String>> comments) {
+		var out = new ByteArrayOutputStream();
+		writeString(out, vendor);
+		List<String> kept = new ArrayList<>();
+		for (var en : comments) {
+			if (en.getValue() == null) continue;
+			kept.add(en.getKey()+"="+en.getValue());
+		}
+		out.writeBytes(le32(kept.size()));
+		for (var s : kept) writeString(out, s);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Write a complete FLAC head: the marker, then the given blocks in order. Blocks too big to
+	 * be written are left out.
+	 */
+	public static byte[] write(List<Block> blocks) {
+		var out = new ByteArrayOutputStream();
+		out.writeBytes("fLaC".getBytes(StandardCharsets.US_ASCII));
+		List<Block> fitting = blocks.stream()
+				.filter(b -> b.data().length <= MAX_BLOCK_SIZE)
+				.toList();
+		for (int i = 0; i < fitting.size(); i++) {
+			var b = fitting.get(i);
+			int hdr = (i == fitting.size()-1 ? 0x80000000 : 0) | (b.type() << 24) | b.data().length;
+			out.writeBytes(ByteBuffer.allocate(4).putInt(hdr).array());
+			out.writeBytes(b.data());
+		}
+		return out.toByteArray();
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String s) {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		out.writeBytes(le32(b.length));
+		out.writeBytes(b);
+	}
+
+	private static byte[] le32(int i) {
+		// about the only little-endian thing in FLAC
+		return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(i).array();
+	}
+
+}
@@ -0,0 +1,133 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.util.audio;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * The gating blocks of one or more EBU R128 measurements, bucketed by loudness. Keeps the energy
+ * of every block in each 0.1 LU bucket as well as how many there were, so the integrated
+ * loudness of any combination of tracks can be worked out later by merging their histograms,
+ * without going anywhere near the audio.
+ * <p>
+ * The only inexactness compared to measuring the combined audio directly is which side of the
+ * relative gate a block falls on when the gate lands inside its bucket.
+ */
+public final class LoudnessHistogram {
+
+	/**
+	 * The absolute gate; blocks at or below this never count for anything.
+	 */
+	public static final double FLOOR = -70;
+
+	private static final int BINS_PER_LU = 10;
+	private static final double CEILING = 10;
+	private static final int BINS = (int)((CEILING-FLOOR)*BINS_PER_LU);
+
+	private static final int VERSION = 1;
+
+	private final long[] counts = new long[BINS];
+	private final double[] energies = new double[BINS];
+
+	/**
+	 * @param energy the channel-weighted mean square of a 400ms gating block
+	 */
+	public void add(double energy) {
+		double lufs = toLufs(energy);
+		if (!(lufs > FLOOR)) return;
+		int bin = Math.min(BINS-1, (int)((lufs-FLOOR)*BINS_PER_LU));
+		counts[bin]++;
+		energies[bin] += energy;
+	}
+
+	/**
+	 * Fold everything in the given histogram into this one.
+	 */
+	public void merge(LoudnessHistogram that) {
+		for (int i = 0; i < BINS; i++) {
+			counts[i] += that.counts[i];
+			energies[i] += that.energies[i];
+		}
+	}
+
+	/**
+	 * @return the integrated loudness in LUFS, or {@link #FLOOR} if there's nothing above the
+	 * 		absolute gate
+	 */
+	public double integrated() {
+		long n = 0;
+		double sum = 0;
+		for (int i = 0; i < BINS; i++) {
+			n += counts[i];
+			sum += energies[i];
+		}
+		if (n == 0) return FLOOR;
+		double gate = toLufs(sum/n)-10;
+		n = 0;
+		sum = 0;
+		for (int i = 0; i < BINS; i++) {
+			if (counts[i] == 0 || !(toLufs(energies[i]/counts[i]) > gate)) continue;
+			n += counts[i];
+			sum += energies[i];
+		}
+		if (n == 0) return FLOOR;
+		return Math.max(FLOOR, toLufs(sum/n));
+	}
+
+	public static double toLufs(double energy) {
+		return -0.691+(10*Math.log10(energy));
+	}
+
+	public byte[] toBytes() {
+		int set = 0;
+		for (long c : counts) {
+			if (c != 0) set++;
+		}
+		var bb = ByteBuffer.allocate(1+(set*(2+8+8)));
+		bb.put((byte)VERSION);
+		for (int i = 0; i < BINS; i++) {
+			if (counts[i] == 0) continue;
+			bb.putShort((short)i);
+			bb.putLong(counts[i]);
+			bb.putDouble(energies[i]);
+		}
+		return bb.array();
+	}
+
+	public static LoudnessHistogram fromBytes(byte[] data) {
+		if (data.length < 1 || data[0] != VERSION) throw new IllegalArgumentException("Not a version "+VERSION+" loudness histogram");
+		if ((data.length-1)%(2+8+8) != 0) throw new IllegalArgumentException("Truncated loudness histogram");
+		var h = new LoudnessHistogram();
+		var bb = ByteBuffer.wrap(data, 1, data.length-1);
+		try {
+			while (bb.hasRemaining()) {
+				int i = bb.getShort()&0xFFFF;
+				if (i >= BINS) throw new IllegalArgumentException("Bin "+i+" out of range");
+				h.counts[i] = bb.getLong();
+				h.energies[i] = bb.getDouble();
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated loudness histogram", e);
+		}
+		return h;
+	}
+
+}
@@ -0,0 +1,221 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.util.audio;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * An EBU R128 (ITU-R BS.1770-4) integrated loudness and true peak meter. Audio goes through the
+ * K-weighting filter and is cut into 400ms gating blocks overlapping by 75%, the energy of each of
+ * which goes into a {@link LoudnessHistogram}.
+ * <p>
+ * True peak is found as in BS.1770-4 Annex 2, by oversampling four times with the polyphase FIR
+ * filter given there and taking the largest absolute value. Intersample peaks are what clip in a
+ * lossy encode or a DAC, so this is what ReplayGain peaks should be; a sample peak can come in a
+ * few tenths of a dB under. Input is taken as floating point, so the 12.04dB of headroom the
+ * Annex asks for doesn't apply.
+ * <p>
+ * Channels are weighted as BS.1770 says for 5.1 (L, R, C, LFE, Ls, Rs); any other layout has
+ * every channel weighted equally, which is right for the mono and stereo masters that make up
+ * nearly everything.
+ */
+public class LoudnessMeter {
+
+	// BS.1770-4 Annex 2, 48 taps as four phases of 12
+	private static final double[][] TRUE_PEAK_PHASES = {
+		{ 0.0017089843750,  0.0109863281250, -0.0196533203125,  0.0332031250000,
+				-0.0594482421875,  0.1373291015625,  0.9721679687500, -0.1022949218750,
+				0.0476074218750, -0.0266113281250,  0.0148925781250, -0.0083007812500 },
+		{-0.0291748046875,  0.0292968750000, -0.0517578125000,  0.0891113281250,
+				-0.1665039062500,  0.4650878906250,  0.7797851562500, -0.2003173828125,
+				0.1015625000000, -0.0582275390625,  0.0330810546875, -0.0189208984375 },
+		{-0.0189208984375,  0.0330810546875, -0.0582275390625,  0.1015625000000,
+				-0.2003173828125,  0.7797851562500,  0.4650878906250, -0.1665039062500,
+				0.0891113281250, -0.0517578125000,  0.0292968750000, -0.0291748046875 },
+		{-0.0083007812500,  0.0148925781250, -0.0266113281250,  0.0476074218750,
+				-0.1022949218750,  0.9721679687500,  0.1373291015625, -0.0594482421875,
+				0.0332031250000, -0.0196533203125,  0.0109863281250,  0.0017089843750 },
+	};
+	private static final int TRUE_PEAK_TAPS = 12;
+
+	private final int channels;
+	private final double[] weights;
+	private final double scale;
+	private final int stepSize;
+
+	// two cascaded biquads per channel; the high shelf, then the high pass
+	private final double sb0, sb1, sb2, sa1, sa2;
+	private final double hb0, hb1, hb2, ha1, ha2;
+	private final double[][] state;
+
+	// sums of squares for the last four 100ms steps, per channel
+	private final double[][] steps;
+	private int stepIdx = 0;
+	private int stepsSeen = 0;
+	private int stepFill = 0;
+
+	// the last 12 samples per channel, written twice over so they can always be read in one run
+	private final double[][] history;
+	private int historyIdx = 0;
+
+	private final LoudnessHistogram histogram = new LoudnessHistogram();
+	private double peak = 0;
+
+	public LoudnessMeter(int sampleRate, int channels, int bitsPerSample) {
+		this.channels = channels;
+		this.weights = new double[channels];
+		for (int c = 0; c < channels; c++) {
+			weights[c] = channels == 6 ? switch (c) {
+				case 3 -> 0;
+				case 4, 5 -> 1.41;
+				default -> 1;
+			} : 1;
+		}
+		this.scale = 1D/(1L << (bitsPerSample-1));
+		this.stepSize = sampleRate/10;
+
+		// pre-filter coefficients worked out for arbitrary sample rates, as in libebur128
+		double f0 = 1681.974450955533;
+		double gain = 3.999843853973347;
+		double q = 0.7071752369554196;
+		double k = Math.tan(Math.PI*f0/sampleRate);
+		double vh = Math.pow(10, gain/20);
+		double vb = Math.pow(vh, 0.4996667741545416);
+		double a0 = 1+(k/q)+(k*k);
+		sb0 = (vh+(vb*k/q)+(k*k))/a0;
+		sb1 = 2*((k*k)-vh)/a0;
+		sb2 = (vh-(vb*k/q)+(k*k))/a0;
+		sa1 = 2*((k*k)-1)/a0;
+		sa2 = (1-(k/q)+(k*k))/a0;
+
+		f0 = 38.13547087602444;
+		q = 0.5003270373238773;
+		k = Math.tan(Math.PI*f0/sampleRate);
+		a0 = 1+(k/q)+(k*k);
+		hb0 = 1;
+		hb1 = -2;
+		hb2 = 1;
+		ha1 = 2*((k*k)-1)/a0;
+		ha2 = (1-(k/q)+(k*k))/a0;
+
+		this.state = new double[channels][4];
+		this.steps = new double[4][channels];
+		this.history = new double[channels][TRUE_PEAK_TAPS*2];
+	}
+
+	/**
+	 * Measure an entire FLAC stream, such as a master.
+	 */
+	public static LoudnessMeter measure(FlacDecoder dec) throws IOException {
+		var si = dec.streamInfo();
+		var meter = new LoudnessMeter(si.sampleRate(), si.channels(), si.bitsPerSample());
+		int n;
+		while ((n = dec.readFrame()) != -1) {
+			meter.process(dec.samples(), n);
+		}
+		return meter;
+	}
+
+	/**
+	 * @param samples one buffer per channel, as from {@link FlacDecoder#samples()}
+	 */
+	public void process(int[][] samples, int count) {
+		int i = 0;
+		while (i < count) {
+			int n = Math.min(count-i, stepSize-stepFill);
+			var step = steps[stepIdx];
+			for (int c = 0; c < channels; c++) {
+				var s = state[c];
+				var in = samples[c];
+				var h = history[c];
+				int hi = historyIdx;
+				double sum = 0;
+				double pk = peak;
+				for (int j = i; j < i+n; j++) {
+					double x = in[j]*scale;
+					hi = hi == 0 ? TRUE_PEAK_TAPS-1 : hi-1;
+					h[hi] = h[hi+TRUE_PEAK_TAPS] = x;
+					// the newest sample is at hi, so h[hi+k] is the kth most recent
+					for (var phase : TRUE_PEAK_PHASES) {
+						double o = 0;
+						for (int k = 0; k < TRUE_PEAK_TAPS; k++) {
+							o += phase[k]*h[hi+k];
+						}
+						o = Math.abs(o);
+						if (o > pk) pk = o;
+					}
+					double abs = Math.abs(x);
+					if (abs > pk) pk = abs;
+					// transposed direct form II
+					double y = (sb0*x)+s[0];
+					s[0] = (sb1*x)-(sa1*y)+s[1];
+					s[1] = (sb2*x)-(sa2*y);
+					double z = (hb0*y)+s[2];
+					s[2] = (hb1*y)-(ha1*z)+s[3];
+					s[3] = (hb2*y)-(ha2*z);
+					sum += z*z;
+				}
+				step[c] += sum;
+				peak = pk;
+				if (c == channels-1) historyIdx = hi;
+			}
+			i += n;
+			stepFill += n;
+			if (stepFill == stepSize) endStep();
+		}
+	}
+
+	private void endStep() {
+		stepsSeen++;
+		if (stepsSeen >= 4) {
+			double energy = 0;
+			for (int c = 0; c < channels; c++) {
+				double sum = 0;
+				for (var step : steps) sum += step[c];
+				energy += weights[c]*sum/(stepSize*4);
+			}
+			histogram.add(energy);
+		}
+		stepIdx = (stepIdx+1)%4;
+		Arrays.fill(steps[stepIdx], 0);
+		stepFill = 0;
+	}
+
+	public LoudnessHistogram histogram() {
+		return histogram;
+	}
+
+	/**
+	 * @return the integrated loudness in LUFS
+	 */
+	public double integrated() {
+		return histogram.integrated();
+	}
+
+	/**
+	 * @return the true peak in dBTP, or {@link LoudnessHistogram#FLOOR} for digital silence
+	 */
+	public double peakDbfs() {
+		if (peak == 0) return LoudnessHistogram.FLOOR;
+		return 20*Math.log10(peak);
+	}
+
+}
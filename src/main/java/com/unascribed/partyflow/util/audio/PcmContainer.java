@@ -0,0 +1,269 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.util.audio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writers for the uncompressed PCM containers. Headers are built up front from a known sample
+ * count, so the exact size of the output is known before any audio is written.
+ */
+public enum PcmContainer {
+	WAV(ByteOrder.LITTLE_ENDIAN),
+	AIFF(ByteOrder.BIG_ENDIAN),
+	;
+
+	/**
+	 * Tags that can be written, named the way FFmpeg names them in its metadata files.
+	 */
+	public enum Tag {
+		TITLE("INAM", "NAME"),
+		ARTIST("IART", "AUTH"),
+		ALBUM("IPRD", null),
+		DATE("ICRD", null),
+		TRACK("IPRT", null),
+		COMMENT("ICMT", "ANNO"),
+		;
+		private final String wavId, aiffId;
+		Tag(String wavId, String aiffId) {
+			this.wavId = wavId;
+			this.aiffId = aiffId;
+		}
+	}
+
+	private final ByteOrder order;
+
+	PcmContainer(ByteOrder order) {
+		this.order = order;
+	}
+
+	/**
+	 * @return the container for the given file extension, or null if it's not one of ours
+	 */
+	public static PcmContainer forExtension(String ext) {
+		return switch (ext) {
+			case "wav" -> WAV;
+			case "aif", "aiff" -> AIFF;
+			default -> null;
+		};
+	}
+
+	/**
+	 * @return whether audio of this shape fits in this container without needing any extensions
+	 */
+	public boolean supports(int channels, int bitsPerSample, long totalSamples) {
+		if (channels < 1 || channels > 2) return false;
+		if (bitsPerSample != 8 && bitsPerSample != 16) return false;
+		long size = dataSize(channels, bitsPerSample, totalSamples);
+		// an odd-sized data chunk would need a pad byte after it, which isn't worth the trouble
+		if (size % 2 != 0) return false;
+		// leave room for the header; both formats use 32-bit sizes
+		return size < 0xFFFF0000L;
+	}
+
+	public long dataSize(int channels, int bitsPerSample, long totalSamples) {
+		return totalSamples*channels*(bitsPerSample/8);
+	}
+
+	/**
+	 * Build everything that comes before the sample data. Tags with no value are left out.
+	 */
+	public byte[] header(int sampleRate, int channels, int bitsPerSample, long totalSamples, Map<Tag, String> tags) {
+		long dataSize = dataSize(channels, bitsPerSample, totalSamples);
+		var chunks = new ByteArrayOutputStream();
+		int bytesPerSample = bitsPerSample/8;
+		if (this == WAV) {
+			var fmt = buf(16)
+					.putShort((short)1) // PCM
+					.putShort((short)channels)
+					.putInt(sampleRate)
+					.putInt(sampleRate*channels*bytesPerSample)
+					.putShort((short)(channels*bytesPerSample))
+					.putShort((short)bitsPerSample);
+			writeChunk(chunks, "fmt ", fmt.array());
+			var info = new ByteArrayOutputStream();
+			info.writeBytes("INFO".getBytes(StandardCharsets.US_ASCII));
+			for (var en : filter(tags).entrySet()) {
+				writeChunk(info, en.getKey().wavId, terminated(en.getValue()));
+			}
+			if (info.size() > 4) writeChunk(chunks, "LIST", info.toByteArray());
+			chunks.writeBytes(chunkHeader("data", dataSize));
+		} else {
+			var comm = buf(18)
+					.putShort((short)channels)
+					.putInt((int)totalSamples)
+					.putShort((short)bitsPerSample);
+			comm.put(extended(sampleRate));
+			writeChunk(chunks, "COMM", comm.array());
+			for (var en : filter(tags).entrySet()) {
+				if (en.getKey().aiffId == null) continue;
+				writeChunk(chunks, en.getKey().aiffId, en.getValue().getBytes(StandardCharsets.UTF_8));
+			}
+			chunks.writeBytes(chunkHeader("SSND", dataSize+8));
+			// offset and block size, both unused
+			chunks.writeBytes(new byte[8]);
+		}
+		var out = new ByteArrayOutputStream();
+		long formSize = 4+chunks.size()+dataSize;
+		out.writeBytes(chunkHeader(this == WAV ? "RIFF" : "FORM", formSize));
+		out.writeBytes((this == WAV ? "WAVE" : "AIFF").getBytes(StandardCharsets.US_ASCII));
+		out.writeBytes(chunks.toByteArray());
+		return out.toByteArray();
+	}
+
+	/**
+	 * Convert decoded samples to this container's sample format and interleave them.
+	 * @param scratch a buffer to reuse between calls; may be null
+	 * @return the buffer written to, which is {@code scratch} if it was big enough
+	 */
+	public byte[] interleave(int[][] samples, int count, int channels, int bitsPerSample, byte[] scratch) {
+		int bytesPerSample = bitsPerSample/8;
+		int len = count*channels*bytesPerSample;
+		byte[] out = scratch != null && scratch.length >= len ? scratch : new byte[len];
+		int j = 0;
+		for (int i = 0; i < count; i++) {
+			for (int ch = 0; ch < channels; ch++) {
+				int s = samples[ch][i];
+				if (bitsPerSample == 8) {
+					// WAV is the odd one out with unsigned 8-bit samples
+					out[j++] = (byte)(this == WAV ? s+128 : s);
+				} else if (order == ByteOrder.LITTLE_ENDIAN) {
+					out[j++] = (byte)s;
+					out[j++] = (byte)(s >> 8);
+				} else {
+					out[j++] = (byte)(s >> 8);
+					out[j++] = (byte)s;
+				}
+			}
+		}
+		return out;
+	}
+
+	private Map<Tag, String> filter(Map<Tag, String> tags) {
+		var out = new LinkedHashMap<Tag, String>();
+		for (var en : tags.entrySet()) {
+			if (en.getValue() != null && !en.getValue().isEmpty()) out.put(en.getKey(), en.getValue());
+		}
+		return out;
+	}
+
+	private ByteBuffer buf(int size) {
+		return ByteBuffer.allocate(size).order(order);
+	}
+
+	private byte[] chunkHeader(String id, long size) {
+		return buf(8)
+				.put(id.getBytes(StandardCharsets.US_ASCII))
+				.putInt((int)size)
+				.array();
+	}
+
+	private void writeChunk(ByteArrayOutputStream out, String id, byte[] data) {
+		out.writeBytes(chunkHeader(id, data.length));
+		out.writeBytes(data);
+		// chunks are word-aligned in both formats
+		if (data.length % 2 != 0) out.write(0);
+	}
+
+	private static byte[] terminated(String s) {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		byte[] out = new byte[b.length+1];
+		System.arraycopy(b, 0, out, 0, b.length);
+		return out;
+	}
+
+	/**
+	 * @return the given integer as an 80-bit IEEE 754 extended precision float, as used for
+	 * 		AIFF's sample rate
+	 */
+	private static byte[] extended(int value) {
+		byte[] out = new byte[10];
+		if (value <= 0) return out;
+		int exponent = 63-Long.numberOfLeadingZeros(value);
+		long mantissa = ((long)value) << (63-exponent);
+		int biased = exponent+16383;
+		out[0] = (byte)(biased >> 8);
+		out[1] = (byte)biased;
+		for (int i = 0; i < 8; i++) {
+			out[2+i] = (byte)(mantissa >>> (56-(i*8)));
+		}
+		return out;
+	}
+
+	/**
+	 * Decode the given FLAC stream into this container, writing at most {@code length} bytes
+	 * of the output starting {@code offset} bytes in. The output is padded with silence or
+	 * truncated as needed to match what the header promised.
+	 * @param header the result of {@link #header} for this stream
+	 * @return how many bytes were written
+	 */
+	public long transcode(FlacDecoder dec, byte[] header, OutputStream out, long offset, long length) throws IOException {
+		var si = dec.streamInfo();
+		long total = header.length+dataSize(si.channels(), si.bitsPerSample(), si.totalSamples());
+		long end = Math.min(total, offset+length);
+		var w = new RangeWriter(out, offset, end);
+		w.write(header, header.length);
+		byte[] scratch = null;
+		int n;
+		while (w.pos < end && w.pos < total && (n = dec.readFrame()) != -1) {
+			scratch = interleave(dec.samples(), n, si.channels(), si.bitsPerSample(), scratch);
+			int len = n*si.channels()*(si.bitsPerSample()/8);
+			w.write(scratch, (int)Math.min(len, total-w.pos));
+		}
+		if (w.pos < end) {
+			byte[] silence = interleave(new int[si.channels()][4096], 4096, si.channels(), si.bitsPerSample(), null);
+			while (w.pos < end) {
+				w.write(silence, (int)Math.min(silence.length, end-w.pos));
+			}
+		}
+		return w.written;
+	}
+
+	private static final class RangeWriter {
+		private final OutputStream out;
+		private final long start, end;
+		long pos = 0;
+		long written = 0;
+
+		RangeWriter(OutputStream out, long start, long end) {
+			this.out = out;
+			this.start = start;
+			this.end = end;
+		}
+
+		void write(byte[] b, int len) throws IOException {
+			long from = Math.max(pos, start);
+			long to = Math.min(pos+len, end);
+			if (to > from) {
+				out.write(b, (int)(from-pos), (int)(to-from));
+				written += to-from;
+			}
+			pos += len;
+		}
+	}
+
+}
@@ -0,0 +1,509 @@
+/*
+ * This file is part of Partyflow.
+ *
+ * Partyflow is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Partyflow is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with Partyflow.
+ *
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.unascribed.partyflow.util.audio;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.OptionalDouble;
+import java.util.OptionalInt;
+
+/**
+ * Reads the title, track number, lyrics and duration of an uploaded file out of its tags, so
+ * ingest doesn't need FFprobe for the common formats. Understands FLAC and Ogg Vorbis/Opus
+ * comments, ID3v2 (on MP3s, and sometimes in front of FLACs or inside WAVs), MP4/iTunes atoms
+ * and RIFF INFO.
+ * <p>
+ * Only the header region is read into memory. MP4s that put their moov atom after the audio,
+ * and WAVs with their tags after the audio, have the audio skipped over rather than read.
+ */
+public class TagReader {
+
+	/**
+	 * @param duration in seconds, if the header says
+	 */
+	public record Info(String title, OptionalInt trackNumber, String lyrics, OptionalDouble duration) {}
+
+	/**
+	 * The most we'll hold in memory for any one tag, block or atom. Embedded cover art is the
+	 * only thing that ever gets close.
+	 */
+	private static final int MAX_CHUNK_SIZE = 32*1024*1024;
+
+	/**
+	 * @return what the tags say, or null if this isn't a format we understand
+	 */
+	public static Info read(InputStream in) throws IOException {
+		var dis = new DataInputStream(new BufferedInputStream(in));
+		byte[] magic = peek(dis, 12);
+		if (magic.length < 12) return null;
+		var found = new Found();
+		try {
+			if (is(magic, 0, "ID3")) {
+				readId3(dis, found);
+				// FLACs sometimes have ID3 in front of them; anything else is done
+				if (is(peek(dis, 4), 0, "fLaC")) readFlac(dis, found);
+			} else if (is(magic, 0, "fLaC")) {
+				readFlac(dis, found);
+			} else if (is(magic, 0, "OggS")) {
+				if (!readOgg(dis, found)) return null;
+			} else if (is(magic, 0, "RIFF") && is(magic, 8, "WAVE")) {
+				readRiff(dis, found);
+			} else if (is(magic, 4, "ftyp")) {
+				readMp4(dis, found);
+			} else {
+				return null;
+			}
+		} catch (EOFException e) {
+			// truncated; go with whatever we found before it ran out
+		}
+		return new Info(found.title, found.trackNumber, found.lyrics, found.duration);
+	}
+
+	private static final class Found {
+		String title;
+		OptionalInt trackNumber = OptionalInt.empty();
+		String lyrics;
+		OptionalDouble duration = OptionalDouble.empty();
+
+		/**
+		 * The first value found for each wins, as the tag read first is the one nearest the
+		 * start of the file.
+		 */
+		void title(String s) {
+			if (title == null && s != null && !s.isBlank()) title = s.strip();
+		}
+
+		void track(String s) {
+			if (trackNumber.isPresent() || s == null) return;
+			// "3" or "3/12"
+			int end = 0;
+			s = s.strip();
+			while (end < s.length() && Character.isDigit(s.charAt(end))) end++;
+			if (end == 0 || end > 9) return;
+			int n = Integer.parseInt(s.substring(0, end));
+			if (n >= 1) trackNumber = OptionalInt.of(n);
+		}
+
+		void track(int n) {
+			if (trackNumber.isEmpty() && n >= 1) trackNumber = OptionalInt.of(n);
+		}
+
+		void lyrics(String s) {
+			if (lyrics == null && s != null && !s.isBlank()) lyrics = s.replace("\r", "");
+		}
+
+		void duration(long units, long perSecond) {
+			if (duration.isEmpty() && units > 0 && perSecond > 0) duration = OptionalDouble.of(units/(double)perSecond);
+		}
+	}
+
+	// FLAC & Vorbis comments //
+
+	private static void readFlac(DataInputStream dis, Found found) throws IOException {
+		for (var block : FlacMetadata.read(dis).blocks()) {
+			if (block.type() == FlacMetadata.STREAMINFO && block.data().length >= 18) {
+				var bb = ByteBuffer.wrap(block.data());
+				long bits = bb.getLong(10);
+				int rate = (int)(bits >>> 44);
+				long total = bits & 0xFFFFFFFFFL;
+				found.duration(total, rate);
+			} else if (block.type() == FlacMetadata.VORBIS_COMMENT) {
+				readVorbisComment(ByteBuffer.wrap(block.data()), found);
+			}
+		}
+	}
+
+	private static void readVorbisComment(ByteBuffer bb, Found found) {
+		bb.order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			skip(bb, bb.getInt());
+			int count = bb.getInt();
+			for (int i = 0; i < count; i++) {
+				int len = bb.getInt();
+				if (len < 0 || len > bb.remaining()) return;
+				byte[] b = new byte[len];
+				bb.get(b);
+				String s = new String(b, StandardCharsets.UTF_8);
+				int eq = s.indexOf('=');
+				if (eq == -1) continue;
+				String v = s.substring(eq+1);
+				switch (s.substring(0, eq).toUpperCase(Locale.ROOT)) {
+					case "TITLE" -> found.title(v);
+					case "TRACKNUMBER" -> found.track(v);
+					case "LYRICS", "UNSYNCEDLYRICS" -> found.lyrics(v);
+				}
+			}
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			// malformed; keep what we have
+		}
+	}
+
+	// Ogg //
+
+	/**
+	 * @return false if this is an Ogg we don't understand, such as Ogg FLAC
+	 */
+	private static boolean readOgg(DataInputStream dis, Found found) throws IOException {
+		int serial = 0;
+		int packets = 0;
+		long read = 0;
+		var packet = new ByteArrayOutputStream();
+		while (read < MAX_CHUNK_SIZE) {
+			byte[] hdr = new byte[27];
+			dis.readFully(hdr);
+			if (!is(hdr, 0, "OggS")) return packets > 0;
+			int pageSerial = ByteBuffer.wrap(hdr, 14, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+			byte[] lacing = new byte[hdr[26]&0xFF];
+			dis.readFully(lacing);
+			read += 27+lacing.length;
+			if (packets == 0 && packet.size() == 0) serial = pageSerial;
+			for (byte l : lacing) {
+				int len = l&0xFF;
+				read += len;
+				if (pageSerial != serial) {
+					// interleaved from some other stream
+					dis.skipNBytes(len);
+					continue;
+				}
+				byte[] seg = new byte[len];
+				dis.readFully(seg);
+				packet.write(seg, 0, len);
+				if (len == 255) continue;
+				byte[] p = packet.toByteArray();
+				packet.reset();
+				if (packets == 0) {
+					if (!is(p, 0, "\u0001vorbis") && !is(p, 0, "OpusHead")) return false;
+				} else {
+					if (is(p, 0, "\u0003vorbis")) {
+						readVorbisComment(ByteBuffer.wrap(p, 7, p.length-7), found);
+					} else if (is(p, 0, "OpusTags")) {
+						readVorbisComment(ByteBuffer.wrap(p, 8, p.length-8), found);
+					}
+					// the duration is in the last page, which we're not going to go looking for
+					return true;
+				}
+				packets++;
+			}
+		}
+		return packets > 0;
+	}
+
+	// ID3v2 //
+
+	private static void readId3(DataInputStream dis, Found found) throws IOException {
+		byte[] hdr = new byte[10];
+		dis.readFully(hdr);
+		int major = hdr[3];
+		int flags = hdr[5];
+		int size = syncsafe(hdr, 6);
+		if ((flags & 0x10) != 0) size += 10; // footer
+		if (size > MAX_CHUNK_SIZE) {
+			dis.skipNBytes(size);
+			return;
+		}
+		byte[] body = dis.readNBytes(size);
+		if (major < 2 || major > 4) return;
+		readId3Body(major, flags, body, found);
+	}
+
+	private static void readId3Body(int major, int flags, byte[] body, Found found) {
+		if (major < 4 && (flags & 0x80) != 0) body = unsynchronize(body);
+		int pos = 0;
+		if ((flags & 0x40) != 0) {
+			// in 2.2, this means the whole tag is compressed, and nobody ever defined how
+			if (major == 2 || body.length < 4) return;
+			pos = major == 3 ? ByteBuffer.wrap(body).getInt()+4 : syncsafe(body, 0);
+		}
+		int idLen = major == 2 ? 3 : 4;
+		int hdrLen = major == 2 ? 6 : 10;
+		while (pos >= 0 && pos+hdrLen <= body.length) {
+			if (body[pos] == 0) break; // padding
+			String id = new String(body, pos, idLen, StandardCharsets.ISO_8859_1);
+			int size;
+			int frameFlags = 0;
+			if (major == 2) {
+				size = ((body[pos+3]&0xFF) << 16) | ((body[pos+4]&0xFF) << 8) | (body[pos+5]&0xFF);
+			} else {
+				size = major == 4 ? syncsafe(body, pos+4) : ByteBuffer.wrap(body, pos+4, 4).getInt();
+				frameFlags = ((body[pos+8]&0xFF) << 8) | (body[pos+9]&0xFF);
+			}
+			int start = pos+hdrLen;
+			pos = start+size;
+			if (size < 0 || pos > body.length) break;
+			byte[] data = Arrays.copyOfRange(body, start, pos);
+			if (major == 3 && (frameFlags & 0x00C0) != 0) continue; // compressed or encrypted
+			if (major == 4) {
+				if ((frameFlags & 0x000C) != 0) continue; // compressed or encrypted
+				if ((frameFlags & 0x0002) != 0) data = unsynchronize(data);
+				if ((frameFlags & 0x0001) != 0 && data.length >= 4) data = Arrays.copyOfRange(data, 4, data.length);
+			}
+			if (data.length < 1) continue;
+			switch (id) {
+				case "TIT2", "TT2" -> found.title(id3Text(data));
+				case "TRCK", "TRK" -> found.track(id3Text(data));
+				case "USLT", "ULT" -> found.lyrics(id3Lyrics(data));
+			}
+		}
+	}
+
+	private static String id3Text(byte[] data) {
+		String s = id3Decode(data[0], data, 1);
+		// 2.4 separates multiple values with nulls; the first is plenty
+		int nul = s.indexOf('\0');
+		return nul == -1 ? s : s.substring(0, nul);
+	}
+
+	private static String id3Lyrics(byte[] data) {
+		int enc = data[0];
+		// encoding, language, then a description we don't care about
+		int pos = 4;
+		boolean wide = enc == 1 || enc == 2;
+		while (pos < data.length) {
+			if (wide) {
+				if (pos+1 < data.length && data[pos] == 0 && data[pos+1] == 0) {
+					pos += 2;
+					break;
+				}
+				pos += 2;
+			} else {
+				if (data[pos++] == 0) break;
+			}
+		}
+		if (pos >= data.length) return null;
+		String s = id3Decode(data[0], data, pos);
+		int nul = s.indexOf('\0');
+		return nul == -1 ? s : s.substring(0, nul);
+	}
+
+	private static String id3Decode(byte enc, byte[] data, int off) {
+		Charset cs = switch (enc) {
+			// supposed to have a BOM, but plenty of taggers leave it off of everything but the first string
+			case 1 -> off+1 < data.length && ((data[off]&0xFF) == 0xFE || (data[off]&0xFF) == 0xFF)
+					? StandardCharsets.UTF_16 : StandardCharsets.UTF_16LE;
+			case 2 -> StandardCharsets.UTF_16BE;
+			case 3 -> StandardCharsets.UTF_8;
+			default -> StandardCharsets.ISO_8859_1;
+		};
+		return new String(data, off, data.length-off, cs);
+	}
+
+	private static byte[] unsynchronize(byte[] data) {
+		var out = new ByteArrayOutputStream(data.length);
+		for (int i = 0; i < data.length; i++) {
+			out.write(data[i]);
+			if ((data[i]&0xFF) == 0xFF && i+1 < data.length && data[i+1] == 0) i++;
+		}
+		return out.toByteArray();
+	}
+
+	private static int syncsafe(byte[] b, int off) {
+		return ((b[off]&0x7F) << 21) | ((b[off+1]&0x7F) << 14) | ((b[off+2]&0x7F) << 7) | (b[off+3]&0x7F);
+	}
+
+	// RIFF //
+
+	private static void readRiff(DataInputStream dis, Found found) throws IOException {
+		dis.skipNBytes(12);
+		long byteRate = 0;
+		while (true) {
+			byte[] hdr = new byte[8];
+			dis.readFully(hdr);
+			String id = new String(hdr, 0, 4, StandardCharsets.ISO_8859_1);
+			long size = ByteBuffer.wrap(hdr, 4, 4).order(ByteOrder.LITTLE_ENDIAN).getInt() & 0xFFFFFFFFL;
+			long padded = size+(size&1);
+			boolean wanted = id.equals("fmt ") || id.equals("LIST") || id.equalsIgnoreCase("id3 ");
+			if (!wanted || size > MAX_CHUNK_SIZE) {
+				if (id.equals("data")) found.duration(size, byteRate);
+				dis.skipNBytes(padded);
+				continue;
+			}
+			byte[] data = dis.readNBytes((int)size);
+			if (padded != size) dis.skipNBytes(1);
+			var bb = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+			if (id.equals("fmt ")) {
+				if (data.length >= 12) byteRate = bb.getInt(8) & 0xFFFFFFFFL;
+			} else if (id.equals("LIST")) {
+				if (data.length >= 4 && is(data, 0, "INFO")) readRiffInfo(bb.position(4), found);
+			} else if (data.length >= 10 && is(data, 0, "ID3")) {
+				readId3(new DataInputStream(new ByteArrayInputStream(data)), found);
+			}
+		}
+	}
+
+	private static void readRiffInfo(ByteBuffer bb, Found found) {
+		while (bb.remaining() >= 8) {
+			byte[] idb = new byte[4];
+			bb.get(idb);
+			String id = new String(idb, StandardCharsets.ISO_8859_1);
+			int size = bb.getInt();
+			if (size < 0 || size > bb.remaining()) return;
+			byte[] data = new byte[size];
+			bb.get(data);
+			if ((size & 1) != 0 && bb.hasRemaining()) bb.get();
+			// usually Latin-1 in practice, but anything recent writes UTF-8
+			String s = new String(data, StandardCharsets.UTF_8);
+			int nul = s.indexOf('\0');
+			if (nul != -1) s = s.substring(0, nul);
+			switch (id) {
+				case "INAM" -> found.title(s);
+				case "IPRT", "ITRK" -> found.track(s);
+			}
+		}
+	}
+
+	// MP4 //
+
+	private static void readMp4(DataInputStream dis, Found found) throws IOException {
+		while (true) {
+			long size = dis.readInt() & 0xFFFFFFFFL;
+			byte[] typeb = new byte[4];
+			dis.readFully(typeb);
+			String type = new String(typeb, StandardCharsets.ISO_8859_1);
+			int hdr = 8;
+			if (size == 1) {
+				size = dis.readLong();
+				hdr = 16;
+			} else if (size == 0) {
+				// runs to the end of the file
+				if (!type.equals("moov")) return;
+				size = MAX_CHUNK_SIZE;
+			}
+			if (size < hdr) return;
+			if (type.equals("moov")) {
+				if (size-hdr > MAX_CHUNK_SIZE) return;
+				readMoov(ByteBuffer.wrap(dis.readNBytes((int)(size-hdr))), found);
+				return;
+			}
+			dis.skipNBytes(size-hdr);
+		}
+	}
+
+	private interface BoxVisitor {
+		void visit(String type, ByteBuffer body);
+	}
+
+	private static void boxes(ByteBuffer bb, BoxVisitor v) {
+		while (bb.remaining() >= 8) {
+			int start = bb.position();
+			long size = bb.getInt() & 0xFFFFFFFFL;
+			byte[] typeb = new byte[4];
+			bb.get(typeb);
+			int hdr = 8;
+			if (size == 1) {
+				if (bb.remaining() < 8) return;
+				size = bb.getLong();
+				hdr = 16;
+			} else if (size == 0) {
+				size = bb.limit()-start;
+			}
+			if (size < hdr || size > bb.limit()-start) return;
+			var body = bb.duplicate();
+			body.position(start+hdr).limit((int)(start+size));
+			v.visit(new String(typeb, StandardCharsets.ISO_8859_1), body.slice());
+			bb.position((int)(start+size));
+		}
+	}
+
+	private static void readMoov(ByteBuffer moov, Found found) {
+		try {
+			boxes(moov, (type, body) -> {
+				if (type.equals("mvhd")) {
+					int version = body.get(0);
+					if (version == 1) {
+						found.duration(body.getLong(24), body.getInt(20) & 0xFFFFFFFFL);
+					} else {
+						found.duration(body.getInt(16) & 0xFFFFFFFFL, body.getInt(12) & 0xFFFFFFFFL);
+					}
+				} else if (type.equals("udta")) {
+					boxes(body, (utype, ubody) -> {
+						if (!utype.equals("meta")) return;
+						// meta is a full box in MP4, but not in QuickTime
+						if (ubody.remaining() >= 8 && !is(ubody, 4, "hdlr")) ubody.position(4);
+						boxes(ubody.slice(), (mtype, mbody) -> {
+							if (mtype.equals("ilst")) boxes(mbody, (itype, ibody) -> readIlstItem(itype, ibody, found));
+						});
+					});
+				}
+			});
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+			// malformed; keep what we have
+		}
+	}
+
+	private static void readIlstItem(String type, ByteBuffer item, Found found) {
+		boxes(item, (dtype, data) -> {
+			// type indicator and locale come first
+			if (!dtype.equals("data") || data.remaining() < 8) return;
+			data.position(8);
+			byte[] payload = new byte[data.remaining()];
+			data.get(payload);
+			switch (type) {
+				case "\u00A9nam" -> found.title(new String(payload, StandardCharsets.UTF_8));
+				case "\u00A9lyr" -> found.lyrics(new String(payload, StandardCharsets.UTF_8));
+				case "trkn" -> {
+					if (payload.length >= 4) found.track(((payload[2]&0xFF) << 8) | (payload[3]&0xFF));
+				}
+			}
+		});
+	}
+
+	// Utilities //
+
+	private static byte[] peek(DataInputStream dis, int n) throws IOException {
+		dis.mark(n);
+		byte[] b = dis.readNBytes(n);
+		dis.reset();
+		return b;
+	}
+
+	private static boolean is(byte[] b, int off, String magic) {
+		if (b.length < off+magic.length()) return false;
+		for (int i = 0; i < magic.length(); i++) {
+			if (b[off+i] != (byte)magic.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private static boolean is(ByteBuffer bb, int off, String magic) {
+		if (bb.limit() < bb.position()+off+magic.length()) return false;
+		for (int i = 0; i < magic.length(); i++) {
+			if (bb.get(bb.position()+off+i) != (byte)magic.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private static void skip(ByteBuffer bb, int n) {
+		if (n < 0 || n > bb.remaining()) throw new IllegalArgumentException("Bad length "+n);
+		bb.position(bb.position()+n);
+	}
+
+}
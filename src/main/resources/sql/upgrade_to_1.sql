@@ -0,0 +1,36 @@
+CREATE TABLE `transcode_jobs` (
+	`job_id`        {{u32}} AUTO_INCREMENT PRIMARY KEY,
+	`master`        VARCHAR(255) NOT NULL,
+	`format`        VARCHAR(255) NOT NULL,
+	`kind`          VARCHAR(255) NOT NULL,
+	`slug`          VARCHAR(255) NOT NULL,
+	`track_id`      {{u32}},
+	`release_id`    {{u32}},
+	`state`         {{u8}} NOT NULL,
+	`priority`      INT DEFAULT 0 NOT NULL,
+	`attempts`      INT DEFAULT 0 NOT NULL,
+	`lease_owner`   VARCHAR(255),
+	`lease_expires` TIMESTAMP,
+	`last_error`    {{clob}},
+	`created_at`    TIMESTAMP NOT NULL,
+	`updated_at`    TIMESTAMP NOT NULL
+);
+--
+CREATE UNIQUE INDEX `transcode_jobs_key_index`
+	ON `transcode_jobs` (`master`, `format`);
+--
+CREATE INDEX `transcode_jobs_state_index`
+	ON `transcode_jobs` (`state`, `priority`);
+--
+CREATE INDEX `transcode_jobs_lease_owner_index`
+	ON `transcode_jobs` (`lease_owner`);
+--
+ALTER TABLE `transcode_jobs` ADD CONSTRAINT `transcode_jobs_releases`
+	FOREIGN KEY (`release_id`) REFERENCES `releases`
+	ON DELETE CASCADE;
+--
+ALTER TABLE `transcode_jobs` ADD CONSTRAINT `transcode_jobs_tracks`
+	FOREIGN KEY (`track_id`) REFERENCES `tracks`
+	ON DELETE CASCADE;
+--
+UPDATE `meta` SET `value` = '1' WHERE `name` = 'data_version';
@@ -0,0 +1,20 @@
+CREATE TABLE `download_sketches` (
+	`release_id`    {{u32}} NOT NULL,
+	`period`        VARCHAR(16) NOT NULL,
+	`sketch`        BLOB NOT NULL,
+	`version`       INT DEFAULT 0 NOT NULL,
+	`updated_at`    TIMESTAMP NOT NULL,
+	PRIMARY KEY (`release_id`, `period`)
+);
+--
+ALTER TABLE `download_sketches` ADD CONSTRAINT `download_sketches_releases`
+	FOREIGN KEY (`release_id`) REFERENCES `releases`
+	ON DELETE CASCADE;
+--
+ALTER TABLE `releases` ADD COLUMN `legacy_downloads` INT DEFAULT 0 NOT NULL;
+--
+UPDATE `releases` SET `legacy_downloads` = `downloads`;
+--
+ALTER TABLE `releases` DROP COLUMN `dl_bloom`;
+--
+UPDATE `meta` SET `value` = '2' WHERE `name` = 'data_version';
@@ -0,0 +1,7 @@
+ALTER TABLE `transcodes` ADD COLUMN `size` BIGINT DEFAULT 0 NOT NULL;
+--
+ALTER TABLE `transcodes` ADD COLUMN `encode_millis` BIGINT DEFAULT 0 NOT NULL;
+--
+ALTER TABLE `transcodes` ADD COLUMN `downloads` INT DEFAULT 0 NOT NULL;
+--
+UPDATE `meta` SET `value` = '3' WHERE `name` = 'data_version';
@@ -0,0 +1,3 @@
+ALTER TABLE `tracks` ADD COLUMN `loudness_histogram` BLOB NULL;
+--
+UPDATE `meta` SET `value` = '4' WHERE `name` = 'data_version';
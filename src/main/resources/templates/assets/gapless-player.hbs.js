@@ -347,7 +347,91 @@
 			});
 		}
 	});
-	audio.src = "{{root}}transcode/"+(release ? "release/"+release : "track/"+(overrideSlug || tracks[0].slug))+"?format="+selectedFormat.name;
+	/**
+	 * Streams a release a segment at a time through Media Source Extensions, so seeking far into
+	 * it only waits for the segment being seeked to instead of everything before it.
+	 */
+	async function setUpSegments() {
+		const res = await fetch("{{root}}api/v1/release/"+release+"/segments?format="+encodeURIComponent(selectedFormat.name));
+		if (!res.ok) throw new Error("Manifest request failed with "+res.status);
+		const manifest = await res.json();
+		const ms = new MediaSource();
+		audio.src = URL.createObjectURL(ms);
+		await new Promise((resolve) => ms.addEventListener("sourceopen", resolve, {once: true}));
+		ms.duration = manifest.duration;
+		const sb = ms.addSourceBuffer(manifest.mimeType);
+		// MP3 has no timestamps of its own, so "segments" mode isn't an option for it
+		sb.mode = "sequence";
+		const loaded = new Set();
+		let queue = Promise.resolve();
+		function append(buf) {
+			return new Promise((resolve, reject) => {
+				sb.addEventListener("updateend", resolve, {once: true});
+				sb.addEventListener("error", reject, {once: true});
+				sb.appendBuffer(buf);
+			});
+		}
+		function remove(start, end) {
+			return new Promise((resolve) => {
+				sb.addEventListener("updateend", resolve, {once: true});
+				sb.remove(start, end);
+			});
+		}
+		function load(index) {
+			if (index < 0 || index >= manifest.segments || loaded.has(index)) return queue;
+			loaded.add(index);
+			queue = queue.then(async () => {
+				const segRes = await fetch(manifest.segmentUrl+index);
+				if (!segRes.ok) throw new Error("Segment "+index+" request failed with "+segRes.status);
+				const buf = await segRes.arrayBuffer();
+				const start = index*manifest.segmentDuration;
+				const end = Math.min(manifest.duration, start+manifest.segmentDuration);
+				// each segment is encoded with a little extra audio in front to absorb encoder
+				// priming, which the append window throws away
+				sb.appendWindowEnd = Infinity;
+				sb.appendWindowStart = start;
+				sb.appendWindowEnd = end;
+				sb.timestampOffset = Math.max(0, start-manifest.preroll);
+				try {
+					await append(buf);
+				} catch (e) {
+					// probably out of room; forget what's long behind us and try again
+					loaded.forEach((i) => {
+						if ((i+1)*manifest.segmentDuration < audio.currentTime-manifest.segmentDuration) loaded.delete(i);
+					});
+					await remove(0, Math.max(0, audio.currentTime-manifest.segmentDuration));
+					await append(buf);
+				}
+				if (index === manifest.segments-1 && ms.readyState === "open") ms.endOfStream();
+			}).catch((e) => {
+				loaded.delete(index);
+				console.error("Failed to load segment "+index, e);
+			});
+			return queue;
+		}
+		function loadAround(time) {
+			const index = Math.floor(time/manifest.segmentDuration);
+			load(index);
+			load(index+1);
+			load(index+2);
+		}
+		audio.addEventListener("seeking", () => loadAround(audio.currentTime));
+		audio.addEventListener("timeupdate", () => loadAround(audio.currentTime));
+		loadAround(0);
+		console.info("Using segmented streaming ("+manifest.segments+" segments)");
+	}
+	let segmented = false;
+	if (release && selectedFormat.segmented && window.MediaSource && MediaSource.isTypeSupported(selectedFormat.mime)) {
+		try {
+			await setUpSegments();
+			segmented = true;
+		} catch (e) {
+			console.error("Can't use segmented streaming, falling back to a single stream", e);
+		}
+	}
+	if (!segmented) {
+		audio.src = "{{root}}transcode/"+(release ? "release/"+release : "track/"+(overrideSlug || tracks[0].slug))+"?format="+selectedFormat.name;
+	}
 	function updateBuffered() {
 		if (audio.buffered.length > 0 && currentTrack !== null) {
 			let end = audio.buffered.end(audio.buffered.length-1);
@@ -456,5 +540,6 @@
 	});
 	updateVolume();
 	updateTime();
-	audio.load();
+	// reloading would detach the MediaSource and throw away everything appended to it
+	if (!segmented) audio.load();
 })();